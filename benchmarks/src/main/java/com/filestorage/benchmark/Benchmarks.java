@@ -0,0 +1,31 @@
+package com.filestorage.benchmark;
+
+import com.filestorage.service.S3Service;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Fixtures shared by the benchmarks
+final class Benchmarks {
+    
+    static final String BUCKET = "benchmark-bucket";
+    
+    private Benchmarks() {
+    }
+    
+    // An S3Service with the application's default settings, talking to the given endpoint
+    static S3Service s3Service(String endpoint, boolean async) {
+        return new S3Service(BUCKET, "us-east-1",
+                DataSize.ofMegabytes(16), DataSize.ofMegabytes(8), 4, 16, 3,
+                async, 256, 50, 200, Duration.ofSeconds(30),
+                Duration.ofMinutes(15), Duration.ofMinutes(2), DataSize.ofGigabytes(1),
+                endpoint, "embedded", "embedded", "STANDARD_IA", "Standard", 7);
+    }
+    
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,91 @@
+package com.filestorage.benchmark;
+
+import com.filestorage.loadtest.EmbeddedS3Server;
+import com.filestorage.service.LocalStorageBackend;
+import com.filestorage.service.ObjectContent;
+import com.filestorage.service.S3Service;
+import com.filestorage.service.StorageBackend;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a whole object out of storage: buffered into a byte array (how downloads used to work),
+ * copied through a stream, or handed to {@link ObjectContent#transferTo} as the download endpoint does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g", "-Dsun.net.httpserver.nodelay=true"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DownloadBenchmark {
+    
+    private static final String KEY = "benchmark/object.bin";
+    
+    @Param({"local", "s3"})
+    private String backend;
+    
+    @Param({"65536", "1048576", "16777216"})
+    private int size;
+    
+    private final OutputStream sink = OutputStream.nullOutputStream();
+    private Path directory;
+    private EmbeddedS3Server embeddedS3;
+    private StorageBackend storage;
+    
+    @Setup
+    public void setUp() throws IOException {
+        if (backend.equals("s3")) {
+            embeddedS3 = new EmbeddedS3Server(0, true);
+            storage = Benchmarks.s3Service(embeddedS3.getEndpoint(), false);
+        } else {
+            directory = Files.createTempDirectory("download-benchmark");
+            storage = new LocalStorageBackend(directory.toString(), directory.resolve("cold").toString());
+        }
+        storage.store(KEY, new ByteArrayInputStream(Benchmarks.randomBytes(size)), size, "application/octet-stream");
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        if (storage instanceof S3Service s3Service) {
+            s3Service.shutdown();
+        }
+        if (embeddedS3 != null) {
+            embeddedS3.close();
+        }
+        if (directory != null) {
+            FileSystemUtils.deleteRecursively(directory);
+        }
+    }
+    
+    @Benchmark
+    public long byteArray() throws IOException {
+        try (ObjectContent content = storage.read(KEY, 0, -1)) {
+            byte[] bytes = content.getInputStream().readAllBytes();
+            sink.write(bytes);
+            return bytes.length;
+        }
+    }
+    
+    @Benchmark
+    public long streamed() throws IOException {
+        try (ObjectContent content = storage.read(KEY, 0, -1)) {
+            return StreamUtils.copy(content.getInputStream(), sink);
+        }
+    }
+    
+    @Benchmark
+    public long transferTo() throws IOException {
+        try (ObjectContent content = storage.read(KEY, 0, -1)) {
+            return content.transferTo(sink);
+        }
+    }
+}
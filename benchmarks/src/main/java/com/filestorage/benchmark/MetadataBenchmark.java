@@ -0,0 +1,116 @@
+package com.filestorage.benchmark;
+
+import com.filestorage.FileStorageApplication;
+import com.filestorage.model.FileMetadata;
+import com.filestorage.model.FileSummary;
+import com.filestorage.model.User;
+import com.filestorage.repository.FileMetadataRepository;
+import com.filestorage.repository.UserRepository;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileMetadata persistence and the dashboard's keyset-paginated listing, run through the real
+ * repositories and Hibernate configuration on in-memory H2. One user owns {@code files} rows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MetadataBenchmark {
+    
+    // Same page size as the dashboard, plus the look-ahead row
+    private static final Pageable PAGE = PageRequest.of(0, 51);
+    
+    @Param({"10000"})
+    private int files;
+    
+    private Path uploadDir;
+    private ConfigurableApplicationContext context;
+    private FileMetadataRepository fileMetadataRepository;
+    private User user;
+    private FileSummary middle;
+    
+    @Setup
+    public void setUp() throws IOException {
+        uploadDir = Files.createTempDirectory("metadata-benchmark");
+        context = new SpringApplicationBuilder(FileStorageApplication.class)
+                .properties(
+                        "server.port=0",
+                        "file.upload-dir=" + uploadDir,
+                        "spring.datasource.url=jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1",
+                        "spring.jpa.show-sql=false",
+                        "spring.jpa.properties.hibernate.format_sql=false",
+                        "logging.level.root=WARN",
+                        "logging.level.com.filestorage=WARN",
+                        "logging.level.org.hibernate.SQL=WARN",
+                        "logging.level.org.springframework.security=WARN")
+                .run();
+        fileMetadataRepository = context.getBean(FileMetadataRepository.class);
+        
+        user = new User();
+        user.setUsername("benchmark");
+        user.setPassword("unused");
+        user.setEmail("benchmark@example.com");
+        user = context.getBean(UserRepository.class).save(user);
+        
+        List<FileMetadata> batch = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            batch.add(newFileMetadata(i));
+            if (batch.size() == 500) {
+                fileMetadataRepository.saveAll(batch);
+                batch.clear();
+            }
+        }
+        fileMetadataRepository.saveAll(batch);
+        
+        List<FileSummary> firstPage = fileMetadataRepository.findFirstPage(user.getId(), PageRequest.of(0, files / 2));
+        middle = firstPage.get(firstPage.size() - 1);
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        context.close();
+        FileSystemUtils.deleteRecursively(uploadDir);
+    }
+    
+    @Benchmark
+    public FileMetadata insert() {
+        return fileMetadataRepository.save(newFileMetadata(-1));
+    }
+    
+    @Benchmark
+    public List<FileSummary> firstPage() {
+        return fileMetadataRepository.findFirstPage(user.getId(), PAGE);
+    }
+    
+    @Benchmark
+    public List<FileSummary> pageAfter() {
+        return fileMetadataRepository.findPageAfter(user.getId(), middle.getUploadedAt(), middle.getId(), PAGE);
+    }
+    
+    private FileMetadata newFileMetadata(int index) {
+        String name = "file-" + index + ".txt";
+        FileMetadata fileMetadata = new FileMetadata();
+        fileMetadata.setFileName(Benchmarks.BUCKET + "-" + System.nanoTime() + "-" + name);
+        fileMetadata.setOriginalFileName(name);
+        fileMetadata.setFileType("text/plain");
+        fileMetadata.setFileSize(1024L);
+        fileMetadata.setFilePath("benchmark/" + name);
+        fileMetadata.setUser(user);
+        return fileMetadata;
+    }
+}
@@ -0,0 +1,32 @@
+package com.filestorage.benchmark;
+
+import com.filestorage.service.FileStorageService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage key generation. UUID.randomUUID draws from a shared SecureRandom, so the multi-threaded
+ * run shows whether concurrent uploads contend on it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StorageKeyBenchmark {
+    
+    private final String originalFilename = "quarterly-report-2024-final.pdf";
+    
+    @Benchmark
+    public String newStorageKey() {
+        return FileStorageService.newStorageKey(originalFilename);
+    }
+    
+    @Benchmark
+    @Threads(8)
+    public String newStorageKeyContended() {
+        return FileStorageService.newStorageKey(originalFilename);
+    }
+}
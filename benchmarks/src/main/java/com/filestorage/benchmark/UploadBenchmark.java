@@ -0,0 +1,57 @@
+package com.filestorage.benchmark;
+
+import com.filestorage.loadtest.EmbeddedS3Server;
+import com.filestorage.service.FileStorageService;
+import com.filestorage.service.S3Service;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storing an upload through S3Service against the in-process EmbeddedS3Server, so the AWS SDK's
+ * request marshalling, signing and HTTP client are on the measured path. 32 MB uploads take the
+ * parallel multipart route; {@code mode=async} uses the Netty-based S3AsyncClient.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Dsun.net.httpserver.nodelay=true"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UploadBenchmark {
+    
+    @Param({"sync", "async"})
+    private String mode;
+    
+    @Param({"65536", "1048576", "33554432"})
+    private int size;
+    
+    private EmbeddedS3Server embeddedS3;
+    private S3Service s3Service;
+    private MockMultipartFile file;
+    
+    @Setup
+    public void setUp() throws IOException {
+        // Uploaded bytes are checked and dropped, so long runs do not fill the heap
+        embeddedS3 = new EmbeddedS3Server(0, false);
+        s3Service = Benchmarks.s3Service(embeddedS3.getEndpoint(), mode.equals("async"));
+        file = new MockMultipartFile("file", "upload.bin", "application/octet-stream", Benchmarks.randomBytes(size));
+    }
+    
+    @TearDown
+    public void tearDown() {
+        s3Service.shutdown();
+        embeddedS3.close();
+    }
+    
+    @Benchmark
+    public void store() throws IOException {
+        try (InputStream inputStream = file.getInputStream()) {
+            s3Service.storeAsync(FileStorageService.newStorageKey(file.getOriginalFilename()), inputStream,
+                    file.getSize(), file.getContentType()).join();
+        }
+    }
+}
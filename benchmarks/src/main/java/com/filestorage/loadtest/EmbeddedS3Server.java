@@ -0,0 +1,412 @@
+package com.filestorage.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory stand-in for S3, for load tests and benchmarks without a bucket. It implements
+ * just enough of the REST API for S3Service: single and multipart PUTs, GET (with a single range),
+ * HEAD, DELETE, DeleteObjects, ListObjectsV2, CopyObject and RestoreObject, with path-style addressing.
+ * Storage classes are recorded; objects on an archive class can only be read once a restore has
+ * been requested, which completes immediately. Requests are not authenticated, so
+ * any credentials work. With {@code retainObjects = false} uploads are read and acknowledged but
+ * their bytes are dropped. The JDK HTTP server adds a few milliseconds per request, so timings are
+ * for comparing runs, not for estimating real S3 latency; run it with
+ * {@code -Dsun.net.httpserver.nodelay=true}, or small responses wait on delayed ACKs.
+ *
+ * <p>The benchmarks start it in-process; {@link #main} runs it on its own for the loadtest profile.
+ */
+public class EmbeddedS3Server implements AutoCloseable {
+    
+    private static final Pattern DELETE_KEY = Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL);
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final byte[] DISCARDED = new byte[0];
+    
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, Instant> modified = new ConcurrentHashMap<>();
+    private final Map<String, String> storageClasses = new ConcurrentHashMap<>();
+    private final Map<String, String> uploadStorageClasses = new ConcurrentHashMap<>();
+    private final Set<String> restored = ConcurrentHashMap.newKeySet();
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final boolean retainObjects;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    
+    // Port 0 picks a free port; see getEndpoint
+    public EmbeddedS3Server(int port, boolean retainObjects) throws IOException {
+        this.retainObjects = retainObjects;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "embedded-s3");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+    
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+    
+    // Options: port (default 9090)
+    public static void main(String[] args) throws IOException {
+        int port = 9090;
+        for (String arg : args) {
+            String option = arg.startsWith("--") ? arg.substring(2) : arg;
+            if (!option.startsWith("port=")) {
+                throw new IllegalArgumentException("Expected port=<number>, got " + arg);
+            }
+            port = Integer.parseInt(option.substring("port=".length()));
+        }
+        EmbeddedS3Server server = new EmbeddedS3Server(port, true);
+        System.out.println("Embedded S3 listening on " + server.getEndpoint() + "; stop with Ctrl+C");
+    }
+    
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = URLDecoder.decode(exchange.getRequestURI().getRawPath().replace("+", "%2B"), StandardCharsets.UTF_8);
+            String query = exchange.getRequestURI().getRawQuery() == null ? "" : exchange.getRequestURI().getRawQuery();
+            Map<String, String> parameters = parse(query);
+            // Path-style: /bucket/key
+            int slash = path.indexOf('/', 1);
+            String key = slash < 0 ? "" : path.substring(slash + 1);
+            
+            // The JDK server drops a keep-alive connection whose request stream was never opened, so the
+            // client's next request on it would fail; PUT and POST read their bodies themselves
+            String method = exchange.getRequestMethod();
+            if (!method.equals("PUT") && !method.equals("POST")) {
+                exchange.getRequestBody().close();
+            }
+            
+            switch (method) {
+                case "PUT" -> put(exchange, key, parameters);
+                case "POST" -> post(exchange, key, parameters);
+                case "GET" -> {
+                    if (key.isEmpty() && parameters.containsKey("list-type")) {
+                        list(exchange, parameters);
+                    } else {
+                        get(exchange, key, true);
+                    }
+                }
+                case "HEAD" -> get(exchange, key, false);
+                case "DELETE" -> delete(exchange, key, parameters);
+                default -> send(exchange, 405, null);
+            }
+        } catch (RuntimeException ex) {
+            send(exchange, 500, null);
+        }
+    }
+    
+    private void put(HttpExchange exchange, String key, Map<String, String> parameters) throws IOException {
+        byte[] body = readBody(exchange);
+        String uploadId = parameters.get("uploadId");
+        if (uploadId != null) {
+            Map<Integer, byte[]> parts = uploads.get(uploadId);
+            if (parts == null) {
+                send(exchange, 404, null);
+                return;
+            }
+            parts.put(Integer.parseInt(parameters.get("partNumber")), retainObjects ? body : DISCARDED);
+        } else if (exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+            copy(exchange, key);
+            return;
+        } else {
+            objects.put(key, retainObjects ? body : DISCARDED);
+            stored(key, exchange.getRequestHeaders().getFirst("x-amz-storage-class"));
+        }
+        exchange.getResponseHeaders().add("ETag", etag(body));
+        send(exchange, 200, null);
+    }
+    
+    private void copy(HttpExchange exchange, String key) throws IOException {
+        // "bucket/key", URL-encoded, optionally with a leading slash and a version
+        String source = URLDecoder.decode(exchange.getRequestHeaders().getFirst("x-amz-copy-source").split("\\?")[0]
+                .replace("+", "%2B"), StandardCharsets.UTF_8);
+        source = source.startsWith("/") ? source.substring(1) : source;
+        String sourceKey = source.substring(source.indexOf('/') + 1);
+        byte[] object = objects.get(sourceKey);
+        if (object == null) {
+            send(exchange, 404, null);
+            return;
+        }
+        if (isArchived(sourceKey)) {
+            sendError(exchange, 403, "InvalidObjectState");
+            return;
+        }
+        objects.put(key, object);
+        stored(key, exchange.getRequestHeaders().getFirst("x-amz-storage-class"));
+        sendXml(exchange, "<CopyObjectResult><ETag>" + escape(etag(object)) + "</ETag><LastModified>"
+                + modified.get(key) + "</LastModified></CopyObjectResult>");
+    }
+    
+    private void stored(String key, String storageClass) {
+        modified.put(key, Instant.now());
+        restored.remove(key);
+        if (storageClass == null || storageClass.equals("STANDARD")) {
+            storageClasses.remove(key);
+        } else {
+            storageClasses.put(key, storageClass);
+        }
+    }
+    
+    private boolean isArchived(String key) {
+        String storageClass = storageClasses.get(key);
+        return ("GLACIER".equals(storageClass) || "DEEP_ARCHIVE".equals(storageClass)) && !restored.contains(key);
+    }
+    
+    private void post(HttpExchange exchange, String key, Map<String, String> parameters) throws IOException {
+        byte[] body = readBody(exchange);
+        if (parameters.containsKey("delete")) {
+            StringBuilder result = new StringBuilder("<DeleteResult>");
+            Matcher keys = DELETE_KEY.matcher(new String(body, StandardCharsets.UTF_8));
+            while (keys.find()) {
+                String deleted = unescape(keys.group(1));
+                objects.remove(deleted);
+                forget(deleted);
+                result.append("<Deleted><Key>").append(escape(deleted)).append("</Key></Deleted>");
+            }
+            sendXml(exchange, result.append("</DeleteResult>").toString());
+        } else if (parameters.containsKey("restore")) {
+            if (!objects.containsKey(key)) {
+                send(exchange, 404, null);
+                return;
+            }
+            send(exchange, restored.add(key) ? 202 : 200, null);
+        } else if (parameters.containsKey("uploads")) {
+            String uploadId = UUID.randomUUID().toString();
+            uploads.put(uploadId, new ConcurrentHashMap<>());
+            String storageClass = exchange.getRequestHeaders().getFirst("x-amz-storage-class");
+            if (storageClass != null) {
+                uploadStorageClasses.put(uploadId, storageClass);
+            }
+            sendXml(exchange, "<InitiateMultipartUploadResult><Key>" + escape(key) + "</Key><UploadId>"
+                    + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+        } else if (parameters.containsKey("uploadId")) {
+            Map<Integer, byte[]> parts = uploads.remove(parameters.get("uploadId"));
+            if (parts == null) {
+                send(exchange, 404, null);
+                return;
+            }
+            ByteArrayOutputStream object = new ByteArrayOutputStream();
+            new TreeMap<>(parts).values().forEach(object::writeBytes);
+            objects.put(key, object.toByteArray());
+            stored(key, uploadStorageClasses.remove(parameters.get("uploadId")));
+            sendXml(exchange, "<CompleteMultipartUploadResult><Key>" + escape(key) + "</Key><ETag>\""
+                    + UUID.randomUUID() + "-" + parts.size() + "\"</ETag></CompleteMultipartUploadResult>");
+        } else {
+            send(exchange, 400, null);
+        }
+    }
+    
+    private void get(HttpExchange exchange, String key, boolean withBody) throws IOException {
+        byte[] object = objects.get(key);
+        if (object == null) {
+            send(exchange, 404, null);
+            return;
+        }
+        if (withBody && isArchived(key)) {
+            sendError(exchange, 403, "InvalidObjectState");
+            return;
+        }
+        exchange.getResponseHeaders().add("ETag", etag(object));
+        exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+        if (storageClasses.containsKey(key)) {
+            exchange.getResponseHeaders().add("x-amz-storage-class", storageClasses.get(key));
+        }
+        
+        int start = 0;
+        int end = object.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher matcher = range == null ? null : RANGE.matcher(range);
+        boolean partial = matcher != null && matcher.matches();
+        if (partial) {
+            start = Integer.parseInt(matcher.group(1));
+            end = matcher.group(2).isEmpty() ? end : Math.min(Integer.parseInt(matcher.group(2)), end);
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + object.length);
+        }
+        int length = Math.max(end - start + 1, 0);
+        
+        if (!withBody) {
+            exchange.getResponseHeaders().add("Content-Length", Integer.toString(length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(partial ? 206 : 200, length == 0 ? -1 : length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(object, start, length);
+        }
+    }
+    
+    private void delete(HttpExchange exchange, String key, Map<String, String> parameters) throws IOException {
+        String uploadId = parameters.get("uploadId");
+        if (uploadId != null) {
+            uploads.remove(uploadId);
+            uploadStorageClasses.remove(uploadId);
+        } else {
+            objects.remove(key);
+            forget(key);
+        }
+        send(exchange, 204, null);
+    }
+    
+    private void forget(String key) {
+        modified.remove(key);
+        storageClasses.remove(key);
+        restored.remove(key);
+    }
+    
+    // Keys in order, a page at a time; the continuation token is simply the last key of the previous page
+    private void list(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+        boolean urlEncoded = "url".equals(parameters.get("encoding-type"));
+        int maxKeys = Integer.parseInt(parameters.getOrDefault("max-keys", "1000"));
+        String after = parameters.getOrDefault("continuation-token", parameters.getOrDefault("start-after", ""));
+        String prefix = parameters.getOrDefault("prefix", "");
+        
+        StringBuilder result = new StringBuilder("<ListBucketResult>");
+        String last = null;
+        int count = 0;
+        boolean truncated = false;
+        for (String key : new TreeSet<>(objects.keySet()).tailSet(after, false)) {
+            if (!key.startsWith(prefix)) {
+                continue;
+            }
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            byte[] object = objects.get(key);
+            result.append("<Contents><Key>")
+                    .append(urlEncoded ? URLEncoder.encode(key, StandardCharsets.UTF_8) : escape(key))
+                    .append("</Key><LastModified>").append(modified.getOrDefault(key, Instant.EPOCH))
+                    .append("</LastModified><Size>").append(object == null ? 0 : object.length)
+                    .append("</Size></Contents>");
+            last = key;
+            count++;
+        }
+        result.append("<KeyCount>").append(count).append("</KeyCount><IsTruncated>").append(truncated)
+                .append("</IsTruncated>");
+        if (truncated) {
+            result.append("<NextContinuationToken>").append(escape(last)).append("</NextContinuationToken>");
+        }
+        if (urlEncoded) {
+            result.append("<EncodingType>url</EncodingType>");
+        }
+        sendXml(exchange, result.append("</ListBucketResult>").toString());
+    }
+    
+    // Plain-HTTP endpoints get signed aws-chunked bodies: "<hex size>;chunk-signature=...\r\n<data>\r\n"
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        byte[] raw;
+        try (InputStream inputStream = exchange.getRequestBody()) {
+            raw = inputStream.readAllBytes();
+        }
+        String contentSha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        if (contentSha256 == null || !contentSha256.startsWith("STREAMING-")) {
+            return raw;
+        }
+        
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(raw.length);
+        int position = 0;
+        while (position < raw.length) {
+            int lineEnd = indexOfCrlf(raw, position);
+            String header = new String(raw, position, lineEnd - position, StandardCharsets.US_ASCII);
+            int size = Integer.parseInt(header.split(";", 2)[0].trim(), 16);
+            if (size == 0) {
+                break;
+            }
+            decoded.write(raw, lineEnd + 2, size);
+            position = lineEnd + 2 + size + 2;
+        }
+        return decoded.toByteArray();
+    }
+    
+    private static int indexOfCrlf(byte[] bytes, int from) {
+        for (int i = from; i < bytes.length - 1; i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n') {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Malformed aws-chunked body");
+    }
+    
+    private static Map<String, String> parse(String query) {
+        Map<String, String> parameters = new TreeMap<>();
+        for (String parameter : query.split("&")) {
+            if (!parameter.isEmpty()) {
+                int equals = parameter.indexOf('=');
+                parameters.put(equals < 0 ? parameter : parameter.substring(0, equals),
+                        equals < 0 ? "" : URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+    
+    // The SDK checks single-part PUT and GET responses against the MD5 of the body
+    private static String etag(byte[] body) {
+        try {
+            return "\"" + HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(body)) + "\"";
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 not available", ex);
+        }
+    }
+    
+    private static void sendXml(HttpExchange exchange, String xml) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/xml");
+        send(exchange, 200, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static void sendError(HttpExchange exchange, int status, String code) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/xml");
+        send(exchange, status, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code + "</Code><Message>"
+                + code + "</Message></Error>").getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body == null ? -1 : body.length);
+        if (body != null) {
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        }
+    }
+    
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+    
+    private static String unescape(String value) {
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                .replace("&apos;", "'").replace("&amp;", "&");
+    }
+}
@@ -0,0 +1,420 @@
+package com.filestorage.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives a running instance (normally one started with the loadtest profile) with simulated
+ * users. Each registers, logs in and then keeps viewing the dashboard, uploading, downloading and
+ * deleting files, now and then logging in again; like a browser, it follows each form post with a
+ * dashboard load. Every choice comes from a Random seeded per user, so runs with the same options
+ * send the same mix. Users start evenly over the ramp-up, which is not measured; afterwards
+ * throughput and p50/p95/p99 latency per endpoint are printed and written as JSON.
+ *
+ * <p>Options ({@code name=value}, optionally prefixed with {@code --}): base-url, users, ramp-up, duration, think, seed, max-files,
+ * max-error-rate and out. The exit status is 1 when the error rate exceeds max-error-rate.
+ */
+public class LoadTest {
+    
+    private static final Pattern CSRF = Pattern.compile("name=\"_csrf\" value=\"([^\"]+)\"");
+    private static final Pattern FILE_ID = Pattern.compile("/download/(\\d+)\"");
+    
+    // Upload sizes and how often each is picked
+    private static final int[] UPLOAD_SIZES = {4 * 1024, 64 * 1024, 512 * 1024, 4 * 1024 * 1024};
+    private static final int[] UPLOAD_SIZE_WEIGHTS = {30, 30, 25, 15};
+    
+    private enum Action {
+        DASHBOARD(15), DOWNLOAD(45), UPLOAD(20), DELETE(15), LOGIN(5);
+        
+        private final int weight;
+        
+        Action(int weight) {
+            this.weight = weight;
+        }
+    }
+    
+    private enum Endpoint {
+        REGISTER("POST /register"),
+        LOGIN("POST /login"),
+        DASHBOARD("GET /dashboard"),
+        UPLOAD("POST /upload"),
+        DOWNLOAD("GET /download/{id}"),
+        DELETE("POST /delete/{id}"),
+        LOGOUT("POST /logout");
+        
+        private final String label;
+        
+        Endpoint(String label) {
+            this.label = label;
+        }
+    }
+    
+    private final String baseUrl;
+    private final int users;
+    private final Duration rampUp;
+    private final Duration duration;
+    private final Duration think;
+    private final long seed;
+    private final int maxFiles;
+    private final double maxErrorRate;
+    private final Path out;
+    
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    private final Map<Endpoint, Histogram> latencies = new EnumMap<>(Endpoint.class);
+    private final Map<Endpoint, LongAdder> errors = new EnumMap<>(Endpoint.class);
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private volatile boolean recording;
+    
+    LoadTest(Map<String, String> options) {
+        baseUrl = options.getOrDefault("base-url", "http://localhost:8080");
+        users = Integer.parseInt(options.getOrDefault("users", "50"));
+        rampUp = Duration.parse("PT" + options.getOrDefault("ramp-up", "30s"));
+        duration = Duration.parse("PT" + options.getOrDefault("duration", "5m"));
+        think = Duration.parse("PT" + options.getOrDefault("think", "0.5s"));
+        seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        maxFiles = Integer.parseInt(options.getOrDefault("max-files", "20"));
+        maxErrorRate = Double.parseDouble(options.getOrDefault("max-error-rate", "0.01"));
+        out = Path.of(options.getOrDefault("out", "target/loadtest-summary.json"));
+        for (Endpoint endpoint : Endpoint.values()) {
+            // Microseconds, up to ten minutes
+            latencies.put(endpoint, new ConcurrentHistogram(600_000_000L, 3));
+            errors.put(endpoint, new LongAdder());
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String option = arg.startsWith("--") ? arg.substring(2) : arg;
+            if (!option.contains("=")) {
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            }
+            options.put(option.substring(0, option.indexOf('=')), option.substring(option.indexOf('=') + 1));
+        }
+        System.exit(new LoadTest(options).run() ? 0 : 1);
+    }
+    
+    boolean run() throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        long measureFrom = start + rampUp.toNanos();
+        long deadline = measureFrom + duration.toNanos();
+        
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            long startAt = start + rampUp.toNanos() * i / Math.max(users, 1);
+            VirtualUser user = new VirtualUser(i, startAt, deadline);
+            Thread thread = new Thread(user, "user-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        
+        Thread.sleep(Math.max((measureFrom - System.nanoTime()) / 1_000_000, 0));
+        recording = true;
+        System.out.printf("Ramp-up done, measuring %d users for %s%n", users, duration);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - measureFrom) / 1e9;
+        return report(seconds);
+    }
+    
+    private boolean report(double seconds) throws IOException {
+        List<Map<String, Object>> endpoints = new ArrayList<>();
+        long totalRequests = 0;
+        long totalErrors = 0;
+        
+        System.out.printf("%n%-20s %9s %7s %9s %9s %9s %9s %9s%n",
+                "endpoint", "requests", "errors", "req/s", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        for (Endpoint endpoint : Endpoint.values()) {
+            Histogram histogram = latencies.get(endpoint);
+            long requests = histogram.getTotalCount();
+            long failed = errors.get(endpoint).sum();
+            if (requests + failed == 0) {
+                continue;
+            }
+            totalRequests += requests + failed;
+            totalErrors += failed;
+            
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("endpoint", endpoint.label);
+            row.put("requests", requests);
+            row.put("errors", failed);
+            row.put("throughput", requests / seconds);
+            row.put("p50", millis(histogram, 50));
+            row.put("p95", millis(histogram, 95));
+            row.put("p99", millis(histogram, 99));
+            row.put("max", histogram.getMaxValue() / 1000.0);
+            endpoints.add(row);
+            System.out.printf("%-20s %9d %7d %9.1f %9.1f %9.1f %9.1f %9.1f%n", endpoint.label, requests, failed,
+                    requests / seconds, row.get("p50"), row.get("p95"), row.get("p99"), row.get("max"));
+        }
+        double errorRate = totalRequests == 0 ? 0 : (double) totalErrors / totalRequests;
+        System.out.printf("%ntotal %.1f req/s, error rate %.2f%%%n", (totalRequests - totalErrors) / seconds, errorRate * 100);
+        
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("baseUrl", baseUrl);
+        summary.put("users", users);
+        summary.put("durationSeconds", seconds);
+        summary.put("seed", seed);
+        summary.put("errorRate", errorRate);
+        summary.put("endpoints", endpoints);
+        if (out.getParent() != null) {
+            Files.createDirectories(out.getParent());
+        }
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(out.toFile(), summary);
+        System.out.println("Summary written to " + out.toAbsolutePath());
+        return errorRate <= maxErrorRate;
+    }
+    
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+    
+    private class VirtualUser implements Runnable {
+        
+        private final int index;
+        private final long startAt;
+        private final long deadline;
+        private final Random random;
+        private final Map<String, String> cookies = new HashMap<>();
+        private final List<Long> fileIds = new ArrayList<>();
+        private final String username;
+        private String csrf;
+        
+        VirtualUser(int index, long startAt, long deadline) {
+            this.index = index;
+            this.startAt = startAt;
+            this.deadline = deadline;
+            this.random = new Random(seed + index);
+            this.username = "lt-" + runId + "-" + index;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(Math.max((startAt - System.nanoTime()) / 1_000_000, 0));
+                register();
+                login();
+                while (System.nanoTime() < deadline) {
+                    act(nextAction());
+                    long pause = think.toMillis() / 2 + (long) (random.nextDouble() * think.toMillis());
+                    Thread.sleep(pause);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        private Action nextAction() {
+            int total = Arrays.stream(Action.values()).mapToInt(action -> action.weight).sum();
+            int pick = random.nextInt(total);
+            Action action = Action.LOGIN;
+            for (Action candidate : Action.values()) {
+                if (pick < candidate.weight) {
+                    action = candidate;
+                    break;
+                }
+                pick -= candidate.weight;
+            }
+            
+            // Keep each user's file count between empty and max-files
+            if ((action == Action.DOWNLOAD || action == Action.DELETE) && fileIds.isEmpty()) {
+                return Action.UPLOAD;
+            }
+            if (action == Action.UPLOAD && fileIds.size() >= maxFiles) {
+                return Action.DELETE;
+            }
+            return action;
+        }
+        
+        private void act(Action action) throws InterruptedException {
+            switch (action) {
+                case DASHBOARD -> dashboard();
+                case DOWNLOAD -> download(fileIds.get(random.nextInt(fileIds.size())));
+                case UPLOAD -> {
+                    upload();
+                    dashboard();
+                }
+                case DELETE -> {
+                    delete(fileIds.remove(random.nextInt(fileIds.size())));
+                    dashboard();
+                }
+                case LOGIN -> {
+                    if (send(Endpoint.LOGOUT, form("/logout", Map.of("_csrf", csrf)), 302) != null) {
+                        cookies.clear();
+                        login();
+                    }
+                }
+            }
+        }
+        
+        private void register() throws InterruptedException {
+            String token = csrfFrom(get("/register"));
+            send(Endpoint.REGISTER, form("/register", Map.of("username", username, "email", username + "@loadtest.local",
+                    "password", "loadtest", "confirmPassword", "loadtest", "_csrf", token)), 200);
+        }
+        
+        private void login() throws InterruptedException {
+            String token = csrfFrom(get("/login"));
+            HttpResponse<String> response = send(Endpoint.LOGIN, form("/login",
+                    Map.of("username", username, "password", "loadtest", "_csrf", token)), 302);
+            if (response != null) {
+                dashboard();
+            }
+        }
+        
+        private void dashboard() throws InterruptedException {
+            HttpResponse<String> response = send(Endpoint.DASHBOARD, request("/dashboard").GET(), 200);
+            if (response == null) {
+                return;
+            }
+            csrf = csrfFrom(response);
+            fileIds.clear();
+            Matcher matcher = FILE_ID.matcher(response.body());
+            while (matcher.find()) {
+                fileIds.add(Long.parseLong(matcher.group(1)));
+            }
+        }
+        
+        private void upload() throws InterruptedException {
+            int size = uploadSize();
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            
+            String boundary = "----loadtest" + Long.toHexString(random.nextLong());
+            ByteArrayOutputStream body = new ByteArrayOutputStream(size + 512);
+            body.writeBytes(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"_csrf\"\r\n\r\n"
+                    + csrf + "\r\n").getBytes(StandardCharsets.UTF_8));
+            body.writeBytes(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"file-"
+                    + size + ".bin\"\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            body.writeBytes(content);
+            body.writeBytes(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+            
+            send(Endpoint.UPLOAD, request("/upload")
+                    .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())), 302);
+        }
+        
+        private void download(long fileId) throws InterruptedException {
+            send(Endpoint.DOWNLOAD, request("/download/" + fileId).GET(), HttpResponse.BodyHandlers.discarding(), 200);
+        }
+        
+        private void delete(long fileId) throws InterruptedException {
+            send(Endpoint.DELETE, form("/delete/" + fileId, Map.of("_csrf", csrf)), 302);
+        }
+        
+        private int uploadSize() {
+            int pick = random.nextInt(Arrays.stream(UPLOAD_SIZE_WEIGHTS).sum());
+            for (int i = 0; i < UPLOAD_SIZES.length; i++) {
+                if (pick < UPLOAD_SIZE_WEIGHTS[i]) {
+                    return UPLOAD_SIZES[i];
+                }
+                pick -= UPLOAD_SIZE_WEIGHTS[i];
+            }
+            return UPLOAD_SIZES[0];
+        }
+        
+        // Pages fetched only for their CSRF token are not measured
+        private HttpResponse<String> get(String path) throws InterruptedException {
+            try {
+                HttpResponse<String> response = client.send(request(path).GET().build(), HttpResponse.BodyHandlers.ofString());
+                keepCookies(response);
+                return response;
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+        
+        private HttpResponse<String> send(Endpoint endpoint, HttpRequest.Builder request, int expectedStatus)
+                throws InterruptedException {
+            return send(endpoint, request, HttpResponse.BodyHandlers.ofString(), expectedStatus);
+        }
+        
+        // Returns null when the request failed or got an unexpected status
+        private <T> HttpResponse<T> send(Endpoint endpoint, HttpRequest.Builder request,
+                                         HttpResponse.BodyHandler<T> bodyHandler, int expectedStatus)
+                throws InterruptedException {
+            long start = System.nanoTime();
+            HttpResponse<T> response;
+            try {
+                response = client.send(request.build(), bodyHandler);
+            } catch (IOException ex) {
+                response = null;
+            }
+            long elapsedMicros = (System.nanoTime() - start) / 1000;
+            
+            // Apart from logging out, a redirect to the login page means the session or credentials were rejected
+            boolean ok = response != null && response.statusCode() == expectedStatus
+                    && (endpoint == Endpoint.LOGOUT || !response.headers().firstValue("Location").orElse("").contains("/login"));
+            if (recording) {
+                if (ok) {
+                    latencies.get(endpoint).recordValue(Math.min(elapsedMicros, 600_000_000L));
+                } else {
+                    errors.get(endpoint).increment();
+                }
+            }
+            if (response != null) {
+                keepCookies(response);
+            }
+            return ok ? response : null;
+        }
+        
+        private HttpRequest.Builder request(String path) {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(Duration.ofMinutes(5));
+            if (!cookies.isEmpty()) {
+                StringJoiner cookieHeader = new StringJoiner("; ");
+                cookies.forEach((name, value) -> cookieHeader.add(name + "=" + value));
+                builder.header("Cookie", cookieHeader.toString());
+            }
+            return builder;
+        }
+        
+        private HttpRequest.Builder form(String path, Map<String, String> fields) {
+            StringJoiner body = new StringJoiner("&");
+            fields.forEach((name, value) -> body.add(URLEncoder.encode(name, StandardCharsets.UTF_8) + "="
+                    + URLEncoder.encode(value == null ? "" : value, StandardCharsets.UTF_8)));
+            return request(path)
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(body.toString()));
+        }
+        
+        private void keepCookies(HttpResponse<?> response) {
+            for (String setCookie : response.headers().allValues("Set-Cookie")) {
+                String pair = setCookie.split(";", 2)[0];
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    cookies.put(pair.substring(0, equals).trim(), pair.substring(equals + 1).trim());
+                }
+            }
+        }
+        
+        private String csrfFrom(HttpResponse<String> response) {
+            if (response == null) {
+                return "";
+            }
+            Matcher matcher = CSRF.matcher(response.body());
+            return matcher.find() ? matcher.group(1) : "";
+        }
+    }
+}
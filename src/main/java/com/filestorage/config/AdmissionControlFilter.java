@@ -0,0 +1,122 @@
+package com.filestorage.config;
+
+import com.filestorage.service.FileStorageUserDetails;
+import com.filestorage.service.TooManyTransfersException;
+import com.filestorage.service.TransferLimiter;
+import com.filestorage.service.TransferLimiter.Direction;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.OrRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Runs uploads and downloads through {@link TransferLimiter} before anything reads the request
+ * body, so excess load is answered with 429 and {@code Retry-After} while it is still cheap to
+ * turn away. It sits ahead of the CSRF filter, which reads form uploads to find their token.
+ */
+public class AdmissionControlFilter extends OncePerRequestFilter {
+    
+    private static final RequestMatcher UPLOADS = new OrRequestMatcher(
+            new AntPathRequestMatcher("/upload", "POST"),
+            new AntPathRequestMatcher("/api/files", "POST"),
+            new AntPathRequestMatcher("/api/files/stream/**"),
+            new AntPathRequestMatcher("/api/files/resumable/*/chunks/*", "PUT"));
+    
+    private static final RequestMatcher DOWNLOADS = new AntPathRequestMatcher("/download/**", "GET");
+    
+    private final TransferLimiter transferLimiter;
+    
+    public AdmissionControlFilter(TransferLimiter transferLimiter) {
+        this.transferLimiter = transferLimiter;
+    }
+    
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        Direction direction = UPLOADS.matches(request) ? Direction.UPLOAD
+                : DOWNLOADS.matches(request) ? Direction.DOWNLOAD : null;
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        // Anonymous requests are sent to the login page further down the chain
+        if (direction == null || authentication == null
+                || !(authentication.getPrincipal() instanceof FileStorageUserDetails user)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        
+        TransferLimiter.Permit permit;
+        try {
+            permit = transferLimiter.admit(user.getUserId(), direction, request.getContentLengthLong());
+        } catch (TooManyTransfersException ex) {
+            long seconds = ex.getRetryAfterSeconds();
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(seconds));
+            response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+            response.getWriter().write(ex.getMessage() + "; retry in " + seconds + "s");
+            return;
+        }
+        
+        boolean async = false;
+        try {
+            filterChain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                // Streamed downloads and async uploads finish after this returns
+                request.getAsyncContext().addListener(new ReleasingListener(permit));
+                async = true;
+            }
+        } finally {
+            if (!async) {
+                permit.release(responseLength(response));
+            }
+        }
+    }
+    
+    private static long responseLength(HttpServletResponse response) {
+        // Redirects to presigned URLs and 304s carry no file bytes
+        if (response.getStatus() >= 300) {
+            return 0;
+        }
+        String contentLength = response.getHeader(HttpHeaders.CONTENT_LENGTH);
+        try {
+            return contentLength != null ? Long.parseLong(contentLength) : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+    
+    private record ReleasingListener(TransferLimiter.Permit permit) implements AsyncListener {
+        
+        @Override
+        public void onComplete(AsyncEvent event) {
+            permit.release(responseLength((HttpServletResponse) event.getSuppliedResponse()));
+        }
+        
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            permit.release(-1);
+        }
+        
+        @Override
+        public void onError(AsyncEvent event) {
+            permit.release(-1);
+        }
+        
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // Keep listening across a restarted async cycle
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.filestorage.config;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.web.servlet.FlashMap;
+import org.springframework.web.servlet.support.AbstractFlashMapManager;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps flash attributes (the messages shown after an upload or delete redirect) in a short-lived
+ * cookie, so the stateless token mode needs no HTTP session for them and the redirect may land on
+ * any node. Attributes are stored as JSON, which covers the strings the controllers put there.
+ */
+public class CookieFlashMapManager extends AbstractFlashMapManager {
+    
+    private static final String COOKIE_NAME = "FLASH";
+    
+    private final ObjectMapper objectMapper;
+    
+    public CookieFlashMapManager(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+    
+    @Override
+    protected List<FlashMap> retrieveFlashMaps(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (COOKIE_NAME.equals(cookie.getName()) && !cookie.getValue().isEmpty()) {
+                try {
+                    List<StoredFlashMap> stored = objectMapper.readValue(Base64.getUrlDecoder().decode(cookie.getValue()),
+                            new TypeReference<List<StoredFlashMap>>() {});
+                    // Mutable: expired maps are removed from it in place
+                    return stored.stream().map(StoredFlashMap::toFlashMap).collect(Collectors.toList());
+                } catch (IOException | IllegalArgumentException ex) {
+                    // Unreadable, e.g. written by an older version; the messages are simply lost
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    protected void updateFlashMaps(List<FlashMap> flashMaps, HttpServletRequest request, HttpServletResponse response) {
+        String value = "";
+        if (!flashMaps.isEmpty()) {
+            try {
+                value = Base64.getUrlEncoder().withoutPadding().encodeToString(
+                        objectMapper.writeValueAsBytes(flashMaps.stream().map(StoredFlashMap::of).toList()));
+            } catch (IOException ex) {
+                throw new IllegalStateException("Could not store flash attributes", ex);
+            }
+        }
+        response.addHeader(HttpHeaders.SET_COOKIE, ResponseCookie.from(COOKIE_NAME, value)
+                .httpOnly(true)
+                .secure(request.isSecure())
+                .sameSite("Lax")
+                .path(request.getContextPath().isEmpty() ? "/" : request.getContextPath())
+                .maxAge(value.isEmpty() ? 0 : getFlashMapTimeout())
+                .build()
+                .toString());
+    }
+    
+    private record StoredFlashMap(String targetRequestPath, Map<String, List<String>> targetRequestParams,
+                                  long expirationTime, Map<String, Object> attributes) {
+        
+        static StoredFlashMap of(FlashMap flashMap) {
+            return new StoredFlashMap(flashMap.getTargetRequestPath(), flashMap.getTargetRequestParams(),
+                    flashMap.getExpirationTime(), Map.copyOf(flashMap));
+        }
+        
+        FlashMap toFlashMap() {
+            FlashMap flashMap = new FlashMap();
+            flashMap.putAll(attributes);
+            flashMap.setTargetRequestPath(targetRequestPath);
+            if (targetRequestParams != null) {
+                flashMap.addTargetRequestParams(new LinkedMultiValueMap<>(targetRequestParams));
+            }
+            flashMap.setExpirationTime(expirationTime);
+            return flashMap;
+        }
+    }
+}
@@ -1,17 +1,34 @@
 package com.filestorage.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.filestorage.service.CustomUserDetailsService;
+import com.filestorage.service.FileStorageUserDetails;
+import com.filestorage.service.TokenService;
+import com.filestorage.service.TransferLimiter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.autoconfigure.security.servlet.EndpointRequest;
+import org.springframework.boot.actuate.autoconfigure.web.server.ManagementPortType;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.env.Environment;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
 import org.springframework.security.config.annotation.authentication.configuration.AuthenticationConfiguration;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
+import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.authentication.session.NullAuthenticatedSessionStrategy;
+import org.springframework.security.web.csrf.CookieCsrfTokenRepository;
+import org.springframework.security.web.csrf.CsrfFilter;
+import org.springframework.security.web.header.HeaderWriterFilter;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.FlashMapManager;
 
 @Configuration
 @EnableWebSecurity
@@ -20,6 +37,15 @@ public class SecurityConfig {
     @Autowired
     private CustomUserDetailsService userDetailsService;
     
+    @Autowired
+    private TokenService tokenService;
+    
+    @Autowired
+    private TransferLimiter transferLimiter;
+    
+    @Autowired
+    private Environment environment;
+    
     @Bean
     public PasswordEncoder passwordEncoder() {
         return new BCryptPasswordEncoder();
@@ -38,11 +64,42 @@ public class SecurityConfig {
         return authConfig.getAuthenticationManager();
     }
     
+    // Stateless mode keeps flash messages in a cookie, so a redirect may land on any node
+    @Bean(name = DispatcherServlet.FLASH_MAP_MANAGER_BEAN_NAME)
+    @ConditionalOnProperty(name = "security.token.enabled", havingValue = "true")
+    public FlashMapManager flashMapManager(ObjectMapper objectMapper) {
+        return new CookieFlashMapManager(objectMapper);
+    }
+    
+    // Actuator, on its own port (management.server.port) or under /actuator on the application port. Scrapers do not
+    // log in, so metrics and the cross-tenant dedup totals are open only on a separate port, which binds to an
+    // internal address; users never see the dedup totals
+    @Bean
+    @Order(1)
+    public SecurityFilterChain managementFilterChain(HttpSecurity http) throws Exception {
+        boolean separatePort = ManagementPortType.get(environment) == ManagementPortType.DIFFERENT;
+        int managementPort = environment.getProperty("management.server.port", Integer.class, -1);
+        RequestMatcher management = separatePort
+                ? request -> request.getLocalPort() == managementPort
+                : EndpointRequest.toAnyEndpoint();
+        RequestMatcher internal = separatePort ? EndpointRequest.to("prometheus", "dedup") : request -> false;
+        
+        http
+            .securityMatcher(management)
+            .authorizeHttpRequests(authz -> authz
+                .requestMatchers(internal).permitAll()
+                .requestMatchers(EndpointRequest.to("dedup")).denyAll()
+                .anyRequest().authenticated()
+            );
+        return http.build();
+    }
+    
     @Bean
     public SecurityFilterChain filterChain(HttpSecurity http) throws Exception {
         http
             .authorizeHttpRequests(authz -> authz
                 .requestMatchers("/register", "/login", "/css/**", "/js/**", "/h2-console/**").permitAll()
+                .requestMatchers("/api/auth/token").permitAll()
                 .anyRequest().authenticated()
             )
             .formLogin(form -> form
@@ -60,12 +117,53 @@ public class SecurityConfig {
                 .permitAll()
             )
             .csrf(csrf -> csrf
-                .ignoringRequestMatchers("/h2-console/**")
+                // Credentials go in the body and the token comes back in it, so there is nothing to forge
+                .ignoringRequestMatchers("/h2-console/**", "/api/auth/token")
             )
             .headers(headers -> headers
                 .frameOptions().sameOrigin()
             );
         
+        if (tokenService.isEnabled()) {
+            configureTokens(http);
+        }
+        if (transferLimiter.isEnabled()) {
+            // Before CSRF, which reads form uploads for their token; after authentication from the session or a token
+            http.addFilterBefore(new AdmissionControlFilter(transferLimiter), CsrfFilter.class);
+        }
+        
         return http.build();
     }
+    
+    // Stateless mode: BCrypt runs only at login, and every later request is authenticated from the signed token
+    private void configureTokens(HttpSecurity http) throws Exception {
+        CookieCsrfTokenRepository csrfTokens = new CookieCsrfTokenRepository();
+        csrfTokens.setHeaderName("X-CSRF-TOKEN");
+        
+        http
+            .sessionManagement(session -> session
+                .sessionCreationPolicy(SessionCreationPolicy.STATELESS)
+            )
+            .formLogin(form -> form
+                .successHandler((request, response, authentication) -> {
+                    FileStorageUserDetails user = (FileStorageUserDetails) authentication.getPrincipal();
+                    TokenAuthenticationFilter.writeCookie(request, response, tokenService.issue(user), tokenService.getTtl());
+                    response.sendRedirect(request.getContextPath() + "/dashboard");
+                })
+            )
+            .logout(logout -> logout
+                .addLogoutHandler((request, response, authentication) -> {
+                    tokenService.revoke(TokenAuthenticationFilter.readToken(request));
+                    TokenAuthenticationFilter.clearCookie(request, response);
+                })
+            )
+            // Each request authenticates afresh, so the CSRF token is not replaced on authentication; browsers
+            // never attach a bearer header on their own, so those requests need no CSRF token
+            .csrf(csrf -> csrf
+                .csrfTokenRepository(csrfTokens)
+                .sessionAuthenticationStrategy(new NullAuthenticatedSessionStrategy())
+                .ignoringRequestMatchers(TokenAuthenticationFilter::hasBearerToken)
+            )
+            .addFilterAfter(new TokenAuthenticationFilter(tokenService), HeaderWriterFilter.class);
+    }
 }
@@ -0,0 +1,121 @@
+package com.filestorage.config;
+
+import com.filestorage.service.FileStorageUserDetails;
+import com.filestorage.service.IssuedToken;
+import com.filestorage.service.TokenService;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.context.RequestAttributeSecurityContextRepository;
+import org.springframework.security.web.context.SecurityContextRepository;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Authenticates requests from a signed token instead of the HTTP session: API clients send it as
+ * {@code Authorization: Bearer}, the dashboard gets it in an HttpOnly cookie at login. A bad bearer
+ * token is rejected outright; a bad cookie is dropped and the request continues unauthenticated.
+ */
+public class TokenAuthenticationFilter extends OncePerRequestFilter {
+    
+    public static final String COOKIE_NAME = "AUTH_TOKEN";
+    private static final String BEARER_PREFIX = "Bearer ";
+    
+    private final TokenService tokenService;
+    
+    // Carries the authentication over to async dispatches (streamed downloads), which skip this filter
+    private final SecurityContextRepository securityContextRepository = new RequestAttributeSecurityContextRepository();
+    
+    public TokenAuthenticationFilter(TokenService tokenService) {
+        this.tokenService = tokenService;
+    }
+    
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String header = request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (header != null && header.startsWith(BEARER_PREFIX)) {
+            Optional<FileStorageUserDetails> user = tokenService.verify(header.substring(BEARER_PREFIX.length()));
+            if (user.isEmpty()) {
+                response.setHeader(HttpHeaders.WWW_AUTHENTICATE, "Bearer error=\"invalid_token\"");
+                // Not sendError: the error page would be secured too and answer with a login redirect
+                response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+                return;
+            }
+            authenticate(user.get(), request, response);
+        } else {
+            String token = readCookie(request);
+            if (token != null) {
+                Optional<FileStorageUserDetails> user = tokenService.verify(token);
+                if (user.isPresent()) {
+                    authenticate(user.get(), request, response);
+                } else {
+                    clearCookie(request, response);
+                }
+            }
+        }
+        filterChain.doFilter(request, response);
+    }
+    
+    public static boolean hasBearerToken(HttpServletRequest request) {
+        String header = request.getHeader(HttpHeaders.AUTHORIZATION);
+        return header != null && header.startsWith(BEARER_PREFIX);
+    }
+    
+    // The token presented with this request, from the header or the cookie
+    public static String readToken(HttpServletRequest request) {
+        return hasBearerToken(request)
+                ? request.getHeader(HttpHeaders.AUTHORIZATION).substring(BEARER_PREFIX.length())
+                : readCookie(request);
+    }
+    
+    public static void writeCookie(HttpServletRequest request, HttpServletResponse response, IssuedToken token,
+                                   Duration ttl) {
+        response.addHeader(HttpHeaders.SET_COOKIE, cookie(request, token.token(), ttl).toString());
+    }
+    
+    public static void clearCookie(HttpServletRequest request, HttpServletResponse response) {
+        response.addHeader(HttpHeaders.SET_COOKIE, cookie(request, "", Duration.ZERO).toString());
+    }
+    
+    private static ResponseCookie cookie(HttpServletRequest request, String value, Duration maxAge) {
+        // Lax keeps the cookie off cross-site POSTs; CSRF tokens still guard the forms
+        return ResponseCookie.from(COOKIE_NAME, value)
+                .httpOnly(true)
+                .secure(request.isSecure())
+                .sameSite("Lax")
+                .path(request.getContextPath().isEmpty() ? "/" : request.getContextPath())
+                .maxAge(maxAge)
+                .build();
+    }
+    
+    private static String readCookie(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (COOKIE_NAME.equals(cookie.getName()) && !cookie.getValue().isEmpty()) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+    
+    private void authenticate(FileStorageUserDetails user, HttpServletRequest request, HttpServletResponse response) {
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        context.setAuthentication(new UsernamePasswordAuthenticationToken(user, null, user.getAuthorities()));
+        SecurityContextHolder.setContext(context);
+        securityContextRepository.saveContext(context, request, response);
+    }
+}
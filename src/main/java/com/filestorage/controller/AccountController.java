@@ -0,0 +1,41 @@
+package com.filestorage.controller;
+
+import com.filestorage.config.TokenAuthenticationFilter;
+import com.filestorage.service.BulkDeleteResult;
+import com.filestorage.service.FileStorageUserDetails;
+import com.filestorage.service.TokenService;
+import com.filestorage.service.UserService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.web.authentication.logout.SecurityContextLogoutHandler;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/api/account")
+public class AccountController {
+    
+    @Autowired
+    private UserService userService;
+    
+    @Autowired
+    private TokenService tokenService;
+    
+    // Deletes the signed-in account and all of its files, then signs it out. Storage keys that could not be
+    // removed are listed in the result, and the reconciler (when enabled) clears them later
+    @DeleteMapping
+    public BulkDeleteResult deleteAccount(Authentication authentication, HttpServletRequest request,
+                                          HttpServletResponse response) {
+        FileStorageUserDetails principal = (FileStorageUserDetails) authentication.getPrincipal();
+        BulkDeleteResult result = userService.deleteUser(principal.getUserId());
+        
+        new SecurityContextLogoutHandler().logout(request, response, authentication);
+        if (tokenService.isEnabled()) {
+            TokenAuthenticationFilter.clearCookie(request, response);
+        }
+        return result;
+    }
+}
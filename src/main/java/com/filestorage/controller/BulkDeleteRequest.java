@@ -0,0 +1,8 @@
+package com.filestorage.controller;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+// Either explicit ids, a cutoff ("older than"), or both
+public record BulkDeleteRequest(List<Long> ids, LocalDateTime olderThan) {
+}
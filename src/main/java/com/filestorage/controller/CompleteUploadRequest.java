@@ -0,0 +1,7 @@
+package com.filestorage.controller;
+
+import java.util.List;
+
+// Part ETags in part order; only needed for multipart uploads
+public record CompleteUploadRequest(List<String> partETags) {
+}
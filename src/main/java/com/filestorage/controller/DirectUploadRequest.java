@@ -0,0 +1,5 @@
+package com.filestorage.controller;
+
+// contentHash is an optional hex SHA-256; when given, storage rejects bytes that do not match it
+public record DirectUploadRequest(String fileName, String contentType, long size, String contentHash) {
+}
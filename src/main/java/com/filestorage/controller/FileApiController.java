@@ -0,0 +1,246 @@
+package com.filestorage.controller;
+
+import com.filestorage.model.FileMetadata;
+import com.filestorage.service.BulkDeleteResult;
+import com.filestorage.service.FilePage;
+import com.filestorage.service.FileStorageService;
+import com.filestorage.service.FileStorageUserDetails;
+import com.filestorage.service.PresignedUpload;
+import com.filestorage.service.QuotaExceededException;
+import com.filestorage.service.ResumableUpload;
+import com.filestorage.service.StorageUsage;
+import com.filestorage.service.TooManyTransfersException;
+import com.filestorage.service.UploadResult;
+import com.filestorage.service.UsageService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+@RestController
+@RequestMapping("/api/files")
+public class FileApiController {
+    
+    private static final int MAX_PAGE_SIZE = 200;
+    
+    @Autowired
+    private FileStorageService fileStorageService;
+    
+    @Autowired
+    private UsageService usageService;
+    
+    // "streaming" parses POST /stream bodies as they arrive; "container" spools them first
+    @Value("${storage.stream.multipart-parser:streaming}")
+    private String multipartParser;
+    
+    @GetMapping
+    public ResponseEntity<FilePage> listFiles(@RequestParam(value = "cursor", required = false) String cursor,
+                                              @RequestParam(value = "size", defaultValue = "50") int size,
+                                              @AuthenticationPrincipal FileStorageUserDetails principal) {
+        try {
+            int pageSize = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+            return ResponseEntity.ok(fileStorageService.getUserFilesPage(principal.getUserId(), cursor, pageSize));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    @GetMapping("/usage")
+    public StorageUsage getUsage(@AuthenticationPrincipal FileStorageUserDetails principal) {
+        return usageService.getUsage(principal.getUserId());
+    }
+    
+    @PostMapping
+    public CompletableFuture<ResponseEntity<List<UploadResult>>> uploadFiles(@RequestParam("files") List<MultipartFile> files,
+                                                                             @AuthenticationPrincipal FileStorageUserDetails principal) {
+        List<MultipartFile> nonEmpty = files.stream().filter(file -> !file.isEmpty()).toList();
+        if (nonEmpty.isEmpty()) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        return fileStorageService.storeFilesAsync(nonEmpty, principal.getUserId()).thenApply(ResponseEntity::ok);
+    }
+    
+    // Files are parsed out of the body and stored while it is still arriving, with no multipart spool.
+    // Send the CSRF token in the X-CSRF-TOKEN header: a _csrf form field would make the container
+    // read, and spool, the whole body to find it before this runs
+    @PostMapping(value = "/stream", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<List<UploadResult>> streamFiles(HttpServletRequest request,
+                                                          @AuthenticationPrincipal FileStorageUserDetails principal) throws IOException {
+        List<UploadResult> results = new ArrayList<>();
+        try {
+            MultipartFileParts parts = MultipartFileParts.of(request, !"container".equals(multipartParser));
+            MultipartFileParts.FilePart part;
+            while ((part = parts.next()) != null) {
+                try (InputStream inputStream = part.inputStream()) {
+                    results.add(UploadResult.stored(fileStorageService.storeStream(inputStream, part.name(),
+                            part.contentType(), principal.getUserId())));
+                } catch (MaxUploadSizeExceededException e) {
+                    // The rest of the body is not read; files before this one stay stored
+                    results.add(UploadResult.failed(part.name(), e.getMessage()));
+                    return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(results);
+                } catch (QuotaExceededException e) {
+                    results.add(UploadResult.failed(part.name(), e.getMessage()));
+                    return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).body(results);
+                } catch (TooManyTransfersException e) {
+                    results.add(UploadResult.failed(part.name(), e.getMessage()));
+                    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                            .header(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()))
+                            .body(results);
+                } catch (RuntimeException e) {
+                    results.add(UploadResult.failed(part.name(), e.getMessage()));
+                }
+            }
+        } catch (MultipartFileParts.MalformedMultipartException e) {
+            return ResponseEntity.badRequest().body(results);
+        }
+        
+        if (results.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(results);
+    }
+    
+    // A single file as the raw request body, stored while it arrives. Form bodies are refused because
+    // the form filter would consume them before this runs
+    @PutMapping(value = "/stream/{fileName}", consumes = "!" + MediaType.APPLICATION_FORM_URLENCODED_VALUE)
+    public ResponseEntity<UploadResult> streamFile(@PathVariable String fileName, HttpServletRequest request,
+                                                   @AuthenticationPrincipal FileStorageUserDetails principal) throws IOException {
+        try (InputStream inputStream = request.getInputStream()) {
+            FileMetadata fileMetadata = fileStorageService.storeStream(inputStream, fileName, request.getContentType(),
+                    principal.getUserId());
+            return ResponseEntity.ok(UploadResult.stored(fileMetadata));
+        } catch (MaxUploadSizeExceededException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        } catch (QuotaExceededException e) {
+            return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    @PostMapping("/uploads")
+    public ResponseEntity<PresignedUpload> startDirectUpload(@RequestBody DirectUploadRequest request,
+                                                             @AuthenticationPrincipal FileStorageUserDetails principal) {
+        try {
+            return ResponseEntity.ok(fileStorageService.startDirectUpload(principal.getUserId(), request.fileName(),
+                    request.contentType(), request.size(), request.contentHash()));
+        } catch (QuotaExceededException e) {
+            return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    @PostMapping("/uploads/{uploadId}/complete")
+    public ResponseEntity<UploadResult> completeDirectUpload(@PathVariable String uploadId,
+                                                             @RequestBody(required = false) CompleteUploadRequest request,
+                                                             @AuthenticationPrincipal FileStorageUserDetails principal) {
+        try {
+            FileMetadata fileMetadata = fileStorageService.completeDirectUpload(principal.getUserId(), uploadId,
+                    request == null ? null : request.partETags());
+            return ResponseEntity.ok(UploadResult.stored(fileMetadata));
+        } catch (IllegalStateException | NoSuchElementException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    @PostMapping("/resumable")
+    public ResponseEntity<ResumableUpload> startResumableUpload(@RequestBody ResumableUploadRequest request,
+                                                                @AuthenticationPrincipal FileStorageUserDetails principal) {
+        try {
+            return ResponseEntity.ok(fileStorageService.startResumableUpload(principal.getUserId(), request.fileName(),
+                    request.contentType(), request.size()));
+        } catch (QuotaExceededException e) {
+            return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    @GetMapping("/resumable/{uploadId}")
+    public ResponseEntity<ResumableUpload> getResumableUpload(@PathVariable String uploadId,
+                                                              @AuthenticationPrincipal FileStorageUserDetails principal) {
+        try {
+            return ResponseEntity.ok(fileStorageService.getResumableUpload(principal.getUserId(), uploadId));
+        } catch (NoSuchElementException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+    
+    // The chunk is the raw request body, so it is not subject to the multipart size limits. Form
+    // content types are refused because their bodies are consumed by the form filter before this runs
+    @PutMapping(value = "/resumable/{uploadId}/chunks/{index}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<ResumableUpload> uploadChunk(@PathVariable String uploadId, @PathVariable int index,
+                                                       HttpServletRequest request,
+                                                       @AuthenticationPrincipal FileStorageUserDetails principal) throws IOException {
+        // The length is checked against the chunk before any bytes are read, so it has to be declared
+        long length = request.getContentLengthLong();
+        if (length < 0) {
+            return ResponseEntity.status(HttpStatus.LENGTH_REQUIRED).build();
+        }
+        try (InputStream inputStream = request.getInputStream()) {
+            return ResponseEntity.ok(fileStorageService.storeChunk(principal.getUserId(), uploadId, index,
+                    inputStream, length));
+        } catch (IllegalStateException | NoSuchElementException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    @PostMapping("/resumable/{uploadId}/complete")
+    public ResponseEntity<UploadResult> completeResumableUpload(@PathVariable String uploadId,
+                                                                @AuthenticationPrincipal FileStorageUserDetails principal) {
+        try {
+            FileMetadata fileMetadata = fileStorageService.completeResumableUpload(principal.getUserId(), uploadId);
+            return ResponseEntity.ok(UploadResult.stored(fileMetadata));
+        } catch (IllegalStateException | NoSuchElementException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+    }
+    
+    @DeleteMapping("/resumable/{uploadId}")
+    public ResponseEntity<Void> abortResumableUpload(@PathVariable String uploadId,
+                                                     @AuthenticationPrincipal FileStorageUserDetails principal) {
+        try {
+            fileStorageService.abortResumableUpload(principal.getUserId(), uploadId);
+            return ResponseEntity.noContent().build();
+        } catch (IllegalStateException | NoSuchElementException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+    
+    @PostMapping("/delete")
+    public ResponseEntity<BulkDeleteResult> deleteFiles(@RequestBody BulkDeleteRequest request,
+                                                        @AuthenticationPrincipal FileStorageUserDetails principal) {
+        boolean hasIds = request.ids() != null && !request.ids().isEmpty();
+        if (!hasIds && request.olderThan() == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        
+        BulkDeleteResult result = fileStorageService.deleteFiles(principal.getUserId(), request.ids(), request.olderThan());
+        return ResponseEntity.ok(result);
+    }
+}
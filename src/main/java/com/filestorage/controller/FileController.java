@@ -1,98 +1,279 @@
 package com.filestorage.controller;
 
 import com.filestorage.model.FileMetadata;
-import com.filestorage.model.User;
+import com.filestorage.service.AccessTracker;
+import com.filestorage.service.ArchiveService;
+import com.filestorage.service.FilePage;
 import com.filestorage.service.FileStorageService;
-import com.filestorage.service.UserService;
+import com.filestorage.service.FileStorageUserDetails;
+import com.filestorage.service.ObjectArchivedException;
+import com.filestorage.service.ObjectContent;
+import com.filestorage.service.TooManyTransfersException;
+import com.filestorage.service.UploadResult;
+import com.filestorage.service.UsageService;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.core.Authentication;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 
+import java.io.FileNotFoundException;
+import java.net.URL;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.time.ZoneId;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Controller
 public class FileController {
     
+    private static final Logger logger = LoggerFactory.getLogger(FileController.class);
+    
     @Autowired
     private FileStorageService fileStorageService;
     
     @Autowired
-    private UserService userService;
+    private ArchiveService archiveService;
+    
+    @Autowired
+    private UsageService usageService;
+    
+    @Autowired
+    private AccessTracker accessTracker;
+    
+    // Stored files never change, so browsers may keep a download this long without asking again
+    @Value("${storage.download.max-age:365d}")
+    private Duration downloadMaxAge;
+    
+    private static final int DASHBOARD_PAGE_SIZE = 50;
     
     @GetMapping("/dashboard")
-    public String showDashboard(Authentication authentication, Model model) {
-        User user = userService.findByUsername(authentication.getName());
-        List<FileMetadata> files = fileStorageService.getUserFiles(user);
+    public String showDashboard(@RequestParam(value = "cursor", required = false) String cursor,
+                                @AuthenticationPrincipal FileStorageUserDetails principal, Model model) {
+        FilePage page;
+        try {
+            page = fileStorageService.getUserFilesPage(principal.getUserId(), cursor, DASHBOARD_PAGE_SIZE);
+        } catch (IllegalArgumentException e) {
+            return "redirect:/dashboard";
+        }
         
-        model.addAttribute("username", user.getUsername());
-        model.addAttribute("files", files);
+        model.addAttribute("username", principal.getUsername());
+        model.addAttribute("files", page.files());
+        model.addAttribute("nextCursor", page.nextCursor());
+        model.addAttribute("usage", usageService.getUsage(principal.getUserId()));
         
         return "dashboard";
     }
     
     @PostMapping("/upload")
-    public String uploadFile(@RequestParam("file") MultipartFile file,
-                            Authentication authentication,
-                            RedirectAttributes redirectAttributes) {
-        try {
-            if (file.isEmpty()) {
-                redirectAttributes.addFlashAttribute("error", "Please select a file to upload");
-                return "redirect:/dashboard";
-            }
-            
-            User user = userService.findByUsername(authentication.getName());
-            fileStorageService.storeFile(file, user);
-            
-            redirectAttributes.addFlashAttribute("message", 
-                    "File uploaded successfully: " + file.getOriginalFilename());
-            
-        } catch (Exception e) {
-            redirectAttributes.addFlashAttribute("error", 
-                    "Failed to upload file: " + e.getMessage());
+    public CompletableFuture<String> uploadFile(@RequestParam("file") List<MultipartFile> files,
+                                                @AuthenticationPrincipal FileStorageUserDetails principal,
+                                                RedirectAttributes redirectAttributes) {
+        files = files.stream().filter(file -> !file.isEmpty()).toList();
+        if (files.isEmpty()) {
+            redirectAttributes.addFlashAttribute("error", "Please select a file to upload");
+            return CompletableFuture.completedFuture("redirect:/dashboard");
         }
         
-        return "redirect:/dashboard";
+        // With a non-blocking backend the request thread is released while the bytes are transferred
+        CompletableFuture<Void> upload;
+        if (files.size() == 1) {
+            String originalFilename = files.get(0).getOriginalFilename();
+            upload = fileStorageService.storeFileAsync(files.get(0), principal.getUserId())
+                    .thenAccept(fileMetadata -> redirectAttributes.addFlashAttribute("message", 
+                            "File uploaded successfully: " + originalFilename));
+        } else {
+            upload = fileStorageService.storeFilesAsync(files, principal.getUserId()).thenAccept(results -> {
+                List<String> failed = results.stream()
+                        .filter(result -> result.error() != null)
+                        .map(result -> result.originalFileName() + " (" + result.error() + ")")
+                        .toList();
+                
+                redirectAttributes.addFlashAttribute("message", 
+                        (results.size() - failed.size()) + " of " + results.size() + " files uploaded successfully");
+                if (!failed.isEmpty()) {
+                    redirectAttributes.addFlashAttribute("error", 
+                            "Failed to upload: " + String.join(", ", failed));
+                }
+            });
+        }
+        
+        return upload.handle((ignored, ex) -> {
+            if (ex != null) {
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                redirectAttributes.addFlashAttribute("error", 
+                        "Failed to upload file: " + cause.getMessage());
+            }
+            return "redirect:/dashboard";
+        });
+    }
+    
+    // Streams the selected files, or all of the user's files, as a ZIP built on the fly
+    @GetMapping("/download/archive")
+    public ResponseEntity<StreamingResponseBody> downloadArchive(@RequestParam(value = "ids", required = false) List<Long> ids,
+                                                                 @AuthenticationPrincipal FileStorageUserDetails principal) {
+        Long userId = principal.getUserId();
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"files.zip\"")
+                .body(outputStream -> archiveService.writeArchive(userId, ids, outputStream));
     }
     
     @GetMapping("/download/{fileId}")
-    public ResponseEntity<Resource> downloadFile(@PathVariable Long fileId,
-                                                 Authentication authentication) {
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> downloadFile(@PathVariable Long fileId,
+                                                                                 @RequestHeader HttpHeaders requestHeaders,
+                                                                                 ServletWebRequest webRequest,
+                                                                                 @AuthenticationPrincipal FileStorageUserDetails principal) {
+        FileMetadata fileMetadata;
         try {
-            User user = userService.findByUsername(authentication.getName());
-            FileMetadata fileMetadata = fileStorageService.getFileMetadata(fileId, user);
-            Resource resource = fileStorageService.loadFileAsResource(fileId, user);
-            
-            String contentType = fileMetadata.getFileType();
-            if (contentType == null) {
-                contentType = "application/octet-stream";
-            }
-            
-            return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(contentType))
-                    .header(HttpHeaders.CONTENT_DISPOSITION, 
-                            "attachment; filename=\"" + fileMetadata.getOriginalFileName() + "\"")
-                    .body(resource);
-                    
+            fileMetadata = fileStorageService.getFileMetadata(fileId, principal.getUserId());
         } catch (Exception e) {
-            return ResponseEntity.notFound().build();
+            return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
+        }
+        
+        // In presigned mode the client fetches the bytes from storage itself, Range requests included
+        Optional<URL> downloadUrl = fileStorageService.getDownloadUrl(fileMetadata);
+        if (downloadUrl.isPresent()) {
+            accessTracker.recordAccess(fileId, true);
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.FOUND)
+                    .header(HttpHeaders.LOCATION, downloadUrl.get().toString())
+                    .build());
+        }
+        
+        long fileSize = fileMetadata.getFileSize();
+        long lastModified = getLastModified(fileMetadata);
+        
+        // Compressed files go out whole: as stored to clients that accept the encoding, decompressed otherwise
+        boolean compressed = FileStorageService.isCompressed(fileMetadata);
+        boolean passThrough = compressed && acceptsEncoding(requestHeaders, fileMetadata.getContentEncoding());
+        String etag = getETag(fileMetadata, passThrough);
+        
+        // Caching headers go on the servlet response before the handler returns: a 304 needs them too, and
+        // Spring Security adds its no-cache headers to async responses unless they are already there
+        HttpServletResponse servletResponse = webRequest.getResponse();
+        servletResponse.setHeader(HttpHeaders.CACHE_CONTROL,
+                CacheControl.maxAge(downloadMaxAge).cachePrivate().immutable().getHeaderValue());
+        if (compressed) {
+            servletResponse.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        
+        // Answered from metadata alone, without opening the object in storage; this also sets ETag and Last-Modified
+        if (webRequest.checkNotModified(etag, lastModified)) {
+            accessTracker.recordAccess(fileId, false);
+            return CompletableFuture.completedFuture(null);
         }
+        
+        // Only a single satisfiable range is served as 206; anything else falls back to the full object
+        HttpRange range = compressed ? null : resolveRange(requestHeaders, etag, lastModified);
+        long start = 0;
+        long end = fileSize - 1;
+        if (range != null) {
+            try {
+                start = range.getRangeStart(fileSize);
+                end = range.getRangeEnd(fileSize);
+                // HttpRange accepts a first byte past the end of the file
+                if (start >= fileSize) {
+                    throw new IllegalArgumentException("Range starts past the end of the file");
+                }
+            } catch (IllegalArgumentException e) {
+                return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + fileSize)
+                        .cacheControl(CacheControl.noStore())
+                        .build());
+            }
+        }
+        
+        String contentType = fileMetadata.getFileType();
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+        }
+        
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(range != null ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK)
+                .contentType(MediaType.parseMediaType(contentType))
+                .contentLength(passThrough ? FileStorageService.getStoredSize(fileMetadata) : end - start + 1)
+                .header(HttpHeaders.ACCEPT_RANGES, compressed ? "none" : "bytes")
+                .header(HttpHeaders.CONTENT_DISPOSITION, 
+                        "attachment; filename=\"" + fileMetadata.getOriginalFileName() + "\"");
+        if (passThrough) {
+            response.header(HttpHeaders.CONTENT_ENCODING, fileMetadata.getContentEncoding());
+        }
+        if (range != null) {
+            response.header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + fileSize);
+        }
+        
+        // A download fetched in ranges is counted once, by the range that starts it
+        accessTracker.recordAccess(fileId, start == 0);
+        
+        // The request thread is released until storage answers; the bytes are then piped straight
+        // to the servlet output and the backend decides how to copy them
+        CompletableFuture<ObjectContent> opened;
+        if (passThrough) {
+            opened = fileStorageService.openStoredFileAsync(fileMetadata);
+        } else if (range != null) {
+            opened = fileStorageService.openFileAsync(fileMetadata, start, end);
+        } else {
+            opened = fileStorageService.openFileAsync(fileMetadata, 0, -1);
+        }
+        return opened.handle((content, ex) -> {
+            if (ex != null) {
+                // Replaces the long-lived caching set above; a header on the ResponseEntity would be added alongside it
+                servletResponse.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noStore().getHeaderValue());
+                ObjectArchivedException archived = findCause(ex, ObjectArchivedException.class);
+                if (archived != null) {
+                    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                            .header(HttpHeaders.RETRY_AFTER, Long.toString(archived.getRetryAfter().toSeconds()))
+                            .build();
+                }
+                // This node has no free storage slot; the client is told when to try again
+                TooManyTransfersException busy = findCause(ex, TooManyTransfersException.class);
+                if (busy != null) {
+                    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                            .header(HttpHeaders.RETRY_AFTER, Long.toString(busy.getRetryAfterSeconds()))
+                            .build();
+                }
+                // Only storage confirming the object is gone is a 404; any other failure is the backend's
+                if (findCause(ex, NoSuchKeyException.class) != null || findCause(ex, NoSuchFileException.class) != null
+                        || findCause(ex, FileNotFoundException.class) != null) {
+                    return ResponseEntity.notFound().build();
+                }
+                logger.warn("Could not read file {} from storage: {}", fileId, ex.getMessage());
+                return ResponseEntity.status(isStorageUnavailable(ex) ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.BAD_GATEWAY)
+                        .build();
+            }
+            return response.body(outputStream -> {
+                try (content) {
+                    content.transferTo(outputStream);
+                }
+            });
+        });
     }
     
     @PostMapping("/delete/{fileId}")
     public String deleteFile(@PathVariable Long fileId,
-                            Authentication authentication,
+                            @AuthenticationPrincipal FileStorageUserDetails principal,
                             RedirectAttributes redirectAttributes) {
         try {
-            User user = userService.findByUsername(authentication.getName());
-            fileStorageService.deleteFile(fileId, user);
+            fileStorageService.deleteFile(fileId, principal.getUserId());
             
             redirectAttributes.addFlashAttribute("message", "File deleted successfully");
         } catch (Exception e) {
@@ -101,4 +282,99 @@ public class FileController {
         
         return "redirect:/dashboard";
     }
+    
+    private HttpRange resolveRange(HttpHeaders requestHeaders, String etag, long lastModified) {
+        List<HttpRange> ranges;
+        try {
+            ranges = requestHeaders.getRange();
+        } catch (IllegalArgumentException e) {
+            // A malformed Range header is ignored rather than rejected
+            return null;
+        }
+        if (ranges.size() != 1) {
+            return null;
+        }
+        
+        String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+        if (ifRange != null) {
+            // An entity tag must match strongly; weak ones never do
+            if (ifRange.startsWith("\"")) {
+                return ifRange.equals(etag) ? ranges.get(0) : null;
+            }
+            if (ifRange.startsWith("W/") || lastModified <= 0) {
+                return null;
+            }
+            try {
+                if (requestHeaders.getFirstDate(HttpHeaders.IF_RANGE) / 1000 != lastModified / 1000) {
+                    return null;
+                }
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        
+        return ranges.get(0);
+    }
+    
+    // Storage failures arrive wrapped by the async read; files on an archive storage class, for one, are
+    // restored on first read and the client is told when to come back
+    private static <T extends Throwable> T findCause(Throwable ex, Class<T> type) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return type.cast(cause);
+            }
+        }
+        return null;
+    }
+    
+    // Storage never answered, or is throttling us: worth retrying, unlike an error response
+    private static boolean isStorageUnavailable(Throwable ex) {
+        AwsServiceException serviceException = findCause(ex, AwsServiceException.class);
+        if (serviceException != null) {
+            return serviceException.statusCode() == HttpStatus.SERVICE_UNAVAILABLE.value()
+                    || serviceException.isThrottlingException();
+        }
+        return findCause(ex, SdkClientException.class) != null;
+    }
+    
+    private boolean acceptsEncoding(HttpHeaders requestHeaders, String encoding) {
+        for (String header : requestHeaders.getOrEmpty(HttpHeaders.ACCEPT_ENCODING)) {
+            for (String coding : header.split(",")) {
+                String[] parts = coding.trim().split(";");
+                String name = parts[0].trim();
+                if (!name.equalsIgnoreCase(encoding) && !name.equals("*")) {
+                    continue;
+                }
+                // "gzip;q=0" explicitly refuses the encoding
+                boolean refused = false;
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            refused = Double.parseDouble(parameter.substring(2)) <= 0;
+                        } catch (NumberFormatException e) {
+                            refused = true;
+                        }
+                    }
+                }
+                return !refused;
+            }
+        }
+        return false;
+    }
+    
+    // The stored validator, told apart per encoding since gzip bytes sent as stored are a different representation
+    private String getETag(FileMetadata fileMetadata, boolean passThrough) {
+        if (fileMetadata.getEtag() == null) {
+            return null;
+        }
+        return "\"" + fileMetadata.getEtag() + (passThrough ? "-" + fileMetadata.getContentEncoding() : "") + "\"";
+    }
+    
+    private long getLastModified(FileMetadata fileMetadata) {
+        if (fileMetadata.getUploadedAt() == null) {
+            return -1;
+        }
+        return fileMetadata.getUploadedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
@@ -0,0 +1,94 @@
+package com.filestorage.controller;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.Part;
+import org.apache.commons.fileupload2.core.DiskFileItem;
+import org.apache.commons.fileupload2.core.DiskFileItemFactory;
+import org.apache.commons.fileupload2.core.FileItemInput;
+import org.apache.commons.fileupload2.core.FileItemInputIterator;
+import org.apache.commons.fileupload2.core.FileUploadException;
+import org.apache.commons.fileupload2.jakarta.servlet6.JakartaServletFileUpload;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * The file parts of a multipart request, one at a time. Commons FileUpload 2 parses them out of the
+ * body as it arrives, but has only milestone releases so far; {@code storage.stream.multipart-parser=container}
+ * switches to the container's parser instead, which spools the whole body first.
+ */
+abstract class MultipartFileParts {
+    
+    record FilePart(String name, String contentType, InputStream inputStream) {
+    }
+    
+    // A body that is not valid multipart, or that the container refused to parse
+    static class MalformedMultipartException extends IOException {
+        
+        MalformedMultipartException(Throwable cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+    
+    static MultipartFileParts of(HttpServletRequest request, boolean streaming) throws IOException {
+        return streaming ? new Streaming(request) : new Container(request);
+    }
+    
+    // The next file part, skipping form fields and the empty part browsers send when nothing was chosen; null at the end
+    abstract FilePart next() throws IOException;
+    
+    private static class Streaming extends MultipartFileParts {
+        
+        private final FileItemInputIterator items;
+        
+        Streaming(HttpServletRequest request) throws IOException {
+            try {
+                this.items = new JakartaServletFileUpload<DiskFileItem, DiskFileItemFactory>().getItemIterator(request);
+            } catch (FileUploadException ex) {
+                throw new MalformedMultipartException(ex);
+            }
+        }
+        
+        @Override
+        FilePart next() throws IOException {
+            try {
+                while (items.hasNext()) {
+                    FileItemInput item = items.next();
+                    if (!item.isFormField() && StringUtils.hasText(item.getName())) {
+                        return new FilePart(item.getName(), item.getContentType(), item.getInputStream());
+                    }
+                }
+                return null;
+            } catch (FileUploadException ex) {
+                throw new MalformedMultipartException(ex);
+            }
+        }
+    }
+    
+    private static class Container extends MultipartFileParts {
+        
+        private final Iterator<Part> parts;
+        
+        Container(HttpServletRequest request) throws IOException {
+            try {
+                this.parts = request.getParts().iterator();
+            } catch (ServletException | IllegalStateException ex) {
+                throw new MalformedMultipartException(ex);
+            }
+        }
+        
+        @Override
+        FilePart next() throws IOException {
+            while (parts.hasNext()) {
+                Part part = parts.next();
+                if (StringUtils.hasText(part.getSubmittedFileName())) {
+                    return new FilePart(part.getSubmittedFileName(), part.getContentType(), part.getInputStream());
+                }
+            }
+            return null;
+        }
+    }
+}
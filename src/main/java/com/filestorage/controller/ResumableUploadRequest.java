@@ -0,0 +1,4 @@
+package com.filestorage.controller;
+
+public record ResumableUploadRequest(String fileName, String contentType, long size) {
+}
@@ -0,0 +1,21 @@
+package com.filestorage.controller;
+
+import com.filestorage.service.TooManyTransfersException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+
+// Back-pressure raised after admission, e.g. no free storage slot within the timeout: 503 with Retry-After
+@ControllerAdvice
+public class StorageBusyHandler {
+    
+    @ExceptionHandler(TooManyTransfersException.class)
+    public ResponseEntity<String> handleBusy(TooManyTransfersException ex) {
+        long seconds = ex.getRetryAfterSeconds();
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(seconds))
+                .body(ex.getMessage() + "; retry in " + seconds + "s");
+    }
+}
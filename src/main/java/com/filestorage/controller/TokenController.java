@@ -0,0 +1,55 @@
+package com.filestorage.controller;
+
+import com.filestorage.config.TokenAuthenticationFilter;
+import com.filestorage.service.FileStorageUserDetails;
+import com.filestorage.service.IssuedToken;
+import com.filestorage.service.TokenService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.web.bind.annotation.*;
+
+// Bearer tokens for API clients in the stateless mode; the dashboard gets its token as a cookie at login
+@RestController
+@RequestMapping("/api/auth/token")
+public class TokenController {
+    
+    @Autowired
+    private TokenService tokenService;
+    
+    @Autowired
+    private AuthenticationManager authenticationManager;
+    
+    @PostMapping
+    public ResponseEntity<IssuedToken> issueToken(@RequestBody TokenRequest request) {
+        if (!tokenService.isEnabled()) {
+            return ResponseEntity.notFound().build();
+        }
+        try {
+            Authentication authentication = authenticationManager.authenticate(
+                    new UsernamePasswordAuthenticationToken(request.username(), request.password()));
+            return ResponseEntity.ok(tokenService.issue((FileStorageUserDetails) authentication.getPrincipal()));
+        } catch (AuthenticationException e) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+    }
+    
+    // Revokes the token the request was made with
+    @DeleteMapping
+    public ResponseEntity<Void> revokeToken(HttpServletRequest request) {
+        if (!tokenService.isEnabled()) {
+            return ResponseEntity.notFound().build();
+        }
+        String token = TokenAuthenticationFilter.readToken(request);
+        if (token == null || tokenService.verify(token).isEmpty()) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        tokenService.revoke(token);
+        return ResponseEntity.noContent().build();
+    }
+}
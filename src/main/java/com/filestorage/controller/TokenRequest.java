@@ -0,0 +1,4 @@
+package com.filestorage.controller;
+
+public record TokenRequest(String username, String password) {
+}
@@ -7,14 +7,19 @@ import lombok.NoArgsConstructor;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "file_metadata")
+@Table(name = "file_metadata", indexes = {
+        @Index(name = "idx_file_metadata_user_uploaded", columnList = "user_id, uploaded_at, id"),
+        @Index(name = "idx_file_metadata_file_name", columnList = "file_name")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class FileMetadata {
     
+    // Pooled sequence ids (allocated 50 at a time) let Hibernate batch inserts, which IDENTITY prevents
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "file_metadata_seq")
+    @SequenceGenerator(name = "file_metadata_seq", sequenceName = "file_metadata_seq", allocationSize = 50)
     private Long id;
     
     @Column(nullable = false)
@@ -32,10 +37,43 @@ public class FileMetadata {
     @Column(nullable = false)
     private String filePath;
     
+    // SHA-256 of the content; null for files stored before deduplication
+    @Column(length = 64)
+    private String contentHash;
+    
+    // Encoding of the stored bytes ("gzip"); null when they are stored as uploaded
+    @Column(length = 16)
+    private String contentEncoding;
+    
+    // Bytes held in storage; differs from fileSize for compressed content, null for older files
+    private Long storedSize;
+    
+    // Strong validator for downloads, fixed at upload since stored content is never rewritten; null for older files
+    @Column(length = 64)
+    private String etag;
+    
+    // PENDING while the bytes wait in the write-behind spool; null for files stored before it existed
+    @Enumerated(EnumType.STRING)
+    @Column(length = 16)
+    private FileStatus status;
+    
+    // Flushed in batches from the in-memory access counters, so they trail the latest downloads a little
+    private Long downloadCount;
+    private LocalDateTime lastAccessedAt;
+    
+    // Null for files that were never moved, which are on the standard tier
+    @Enumerated(EnumType.STRING)
+    @Column(length = 16)
+    private StorageTier storageTier;
+    
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "user_id", nullable = false)
     private User user;
     
+    // Read-only view of the owner's id so ownership checks never touch the lazy association
+    @Column(name = "user_id", insertable = false, updatable = false)
+    private Long userId;
+    
     @Column(name = "uploaded_at")
     private LocalDateTime uploadedAt;
     
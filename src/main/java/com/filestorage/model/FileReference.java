@@ -0,0 +1,10 @@
+package com.filestorage.model;
+
+// Projection of what is needed to release a file's stored bytes and its share of the owner's usage
+public interface FileReference {
+    Long getId();
+    String getFileName();
+    String getContentHash();
+    Long getFileSize();
+    Long getUserId();
+}
@@ -0,0 +1,6 @@
+package com.filestorage.model;
+
+// Whether a file's bytes have reached storage; PENDING files are still in a node's write-behind spool
+public enum FileStatus {
+    PENDING, AVAILABLE
+}
@@ -0,0 +1,12 @@
+package com.filestorage.model;
+
+import java.time.LocalDateTime;
+
+// Read-only projection of the columns the file listing needs
+public interface FileSummary {
+    Long getId();
+    String getOriginalFileName();
+    String getFileType();
+    Long getFileSize();
+    LocalDateTime getUploadedAt();
+}
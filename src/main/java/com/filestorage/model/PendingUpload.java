@@ -0,0 +1,51 @@
+package com.filestorage.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.time.LocalDateTime;
+
+// An upload that has been started but not yet completed: either signed for the client to send
+// straight to storage, or a resumable upload whose chunks come in through this application
+@Entity
+@Table(name = "pending_uploads", indexes = {
+        @Index(name = "idx_pending_uploads_expires", columnList = "expires_at"),
+        @Index(name = "idx_pending_uploads_storage_key", columnList = "storage_key")
+})
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PendingUpload {
+    
+    @Id
+    @Column(length = 36)
+    private String id;
+    
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+    
+    @Column(nullable = false)
+    private String storageKey;
+    
+    @Column(nullable = false)
+    private String originalFileName;
+    
+    private String fileType;
+    
+    @Column(nullable = false)
+    private Long fileSize;
+    
+    // Only set when the store verifies the uploaded bytes against it
+    @Column(length = 64)
+    private String contentHash;
+    
+    private String multipartUploadId;
+    
+    // Pushed back by every chunk of a resumable upload
+    @Column(name = "expires_at", nullable = false)
+    private LocalDateTime expiresAt;
+    
+    // Only set for resumable uploads; chunk i is part i + 1 of the multipart upload
+    private Long chunkSize;
+}
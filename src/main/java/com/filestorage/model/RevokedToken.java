@@ -0,0 +1,35 @@
+package com.filestorage.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.time.LocalDateTime;
+
+// A signed token, or all of a user's tokens issued before a point in time, that must no longer be accepted.
+// Rows are only needed until the tokens they cover would have expired anyway
+@Entity
+@Table(name = "revoked_tokens", indexes = @Index(name = "idx_revoked_tokens_expires", columnList = "expires_at"))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RevokedToken {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    // Null when the row revokes every token of the user issued before issuedBefore
+    @Column(name = "token_id")
+    private Long tokenId;
+    
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+    
+    // Epoch milliseconds; only set for user-wide revocations
+    @Column(name = "issued_before")
+    private Long issuedBefore;
+    
+    @Column(name = "expires_at", nullable = false)
+    private LocalDateTime expiresAt;
+}
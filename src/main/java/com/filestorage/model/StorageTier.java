@@ -0,0 +1,6 @@
+package com.filestorage.model;
+
+// Where a file's bytes are kept; COLD is the cheaper tier for files nobody has read in a while
+public enum StorageTier {
+    STANDARD, COLD
+}
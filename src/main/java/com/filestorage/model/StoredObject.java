@@ -0,0 +1,47 @@
+package com.filestorage.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "stored_objects", indexes = @Index(name = "idx_stored_objects_storage_key", columnList = "storage_key"))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StoredObject {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    // SHA-256 of the content, hex encoded
+    @Column(nullable = false, unique = true, length = 64)
+    private String contentHash;
+    
+    @Column(nullable = false)
+    private String storageKey;
+    
+    @Column(nullable = false)
+    private Long size;
+    
+    @Column(nullable = false)
+    private Long referenceCount;
+    
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+    
+    // Encoding of the stored bytes; null when stored as uploaded
+    @Column(length = 16)
+    private String encoding;
+    
+    // Bytes held in storage (size is the uncompressed length); null for older objects
+    private Long storedSize;
+    
+    @PrePersist
+    protected void onCreate() {
+        createdAt = LocalDateTime.now();
+    }
+}
@@ -0,0 +1,32 @@
+package com.filestorage.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// A chunk of a resumable upload that is safely in storage, kept so the upload survives a restart
+@Entity
+@Table(name = "uploaded_parts", uniqueConstraints = @UniqueConstraint(name = "uk_uploaded_parts_part",
+        columnNames = {"upload_id", "part_number"}))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UploadedPart {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @Column(name = "upload_id", nullable = false, length = 36)
+    private String uploadId;
+    
+    @Column(name = "part_number", nullable = false)
+    private Integer partNumber;
+    
+    @Column(nullable = false)
+    private String etag;
+    
+    @Column(nullable = false)
+    private Long size;
+}
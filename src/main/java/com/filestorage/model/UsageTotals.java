@@ -0,0 +1,8 @@
+package com.filestorage.model;
+
+// Projection of a user's total file bytes and count, from the usage stripes or from the files themselves
+public interface UsageTotals {
+    Long getUserId();
+    Long getBytesUsed();
+    Long getFileCount();
+}
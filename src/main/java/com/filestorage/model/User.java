@@ -27,7 +27,8 @@ public class User {
     
     private boolean enabled = true;
     
-    @OneToMany(mappedBy = "user", cascade = CascadeType.ALL, orphanRemoval = true)
+    // Files are removed by FileStorageService.deleteAllFiles before the user, never through a JPA cascade
+    @OneToMany(mappedBy = "user")
     private List<FileMetadata> files = new ArrayList<>();
     
     // Constructors
@@ -0,0 +1,33 @@
+package com.filestorage.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// One stripe of a user's storage usage; the usage is the sum of the stripes, so the updates of a busy
+// account are spread over several rows instead of all queueing on one
+@Entity
+@Table(name = "user_usage", uniqueConstraints = @UniqueConstraint(name = "uk_user_usage_stripe",
+        columnNames = {"user_id", "stripe"}))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserUsage {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+    
+    @Column(nullable = false)
+    private Integer stripe;
+    
+    @Column(name = "bytes_used", nullable = false)
+    private Long bytesUsed;
+    
+    @Column(name = "file_count", nullable = false)
+    private Long fileCount;
+}
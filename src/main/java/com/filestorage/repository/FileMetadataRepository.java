@@ -1,9 +1,21 @@
 package com.filestorage.repository;
 
 import com.filestorage.model.FileMetadata;
+import com.filestorage.model.FileReference;
+import com.filestorage.model.FileStatus;
+import com.filestorage.model.FileSummary;
+import com.filestorage.model.StorageTier;
+import com.filestorage.model.UsageTotals;
 import com.filestorage.model.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -12,4 +24,115 @@ public interface FileMetadataRepository extends JpaRepository<FileMetadata, Long
     List<FileMetadata> findByUser(User user);
     List<FileMetadata> findByUserOrderByUploadedAtDesc(User user);
     Optional<FileMetadata> findByIdAndUser(Long id, User user);
+    Optional<FileMetadata> findByIdAndUserId(Long id, Long userId);
+    
+    // Keyset pagination over idx_file_metadata_user_uploaded (user_id, uploaded_at, id)
+    @Query("select f.id as id, f.originalFileName as originalFileName, f.fileType as fileType, " +
+           "f.fileSize as fileSize, f.uploadedAt as uploadedAt from FileMetadata f " +
+           "where f.user.id = :userId order by f.uploadedAt desc, f.id desc")
+    List<FileSummary> findFirstPage(@Param("userId") Long userId, Pageable pageable);
+    
+    @Query("select f.id as id, f.originalFileName as originalFileName, f.fileType as fileType, " +
+           "f.fileSize as fileSize, f.uploadedAt as uploadedAt from FileMetadata f " +
+           "where f.user.id = :userId and (f.uploadedAt < :uploadedAt or (f.uploadedAt = :uploadedAt and f.id < :id)) " +
+           "order by f.uploadedAt desc, f.id desc")
+    List<FileSummary> findPageAfter(@Param("userId") Long userId,
+                                    @Param("uploadedAt") LocalDateTime uploadedAt,
+                                    @Param("id") Long id,
+                                    Pageable pageable);
+    
+    @Query("select f.id as id, f.fileName as fileName, f.contentHash as contentHash, f.fileSize as fileSize, " +
+           "f.userId as userId " +
+           "from FileMetadata f where f.userId = :userId and f.id in :ids")
+    List<FileReference> findReferencesByIds(@Param("userId") Long userId, @Param("ids") Collection<Long> ids);
+    
+    @Query("select f.id as id, f.fileName as fileName, f.contentHash as contentHash, f.fileSize as fileSize, " +
+           "f.userId as userId " +
+           "from FileMetadata f where f.userId = :userId and f.uploadedAt < :cutoff")
+    List<FileReference> findReferencesOlderThan(@Param("userId") Long userId, @Param("cutoff") LocalDateTime cutoff);
+    
+    @Query("select f.id as id, f.fileName as fileName, f.contentHash as contentHash, f.fileSize as fileSize, " +
+           "f.userId as userId " +
+           "from FileMetadata f where f.userId = :userId")
+    List<FileReference> findReferencesByUserId(@Param("userId") Long userId);
+    
+    @Query("select f.id as id, f.fileName as fileName, f.contentHash as contentHash, f.fileSize as fileSize, " +
+           "f.userId as userId " +
+           "from FileMetadata f where f.fileName = :fileName")
+    List<FileReference> findReferencesByFileName(@Param("fileName") String fileName);
+    
+    // Reconciliation walks all files in id order; PENDING ones are only due once their spool has had time to drain
+    @Query("select f.id as id, f.fileName as fileName, f.contentHash as contentHash, f.fileSize as fileSize, " +
+           "f.userId as userId from FileMetadata f where f.id > :afterId and " +
+           "((f.status = :pending and f.uploadedAt < :pendingCutoff) or " +
+           "((f.status is null or f.status <> :pending) and f.uploadedAt < :cutoff)) order by f.id")
+    List<FileReference> findReconcilableAfter(@Param("afterId") Long afterId,
+                                              @Param("pending") FileStatus pending,
+                                              @Param("cutoff") LocalDateTime cutoff,
+                                              @Param("pendingCutoff") LocalDateTime pendingCutoff,
+                                              Pageable pageable);
+    
+    @Query("select distinct f.fileName from FileMetadata f where f.fileName in :keys")
+    List<String> findExistingFileNames(@Param("keys") Collection<String> keys);
+    
+    boolean existsByFileName(String fileName);
+    
+    Optional<FileMetadata> findFirstByFileName(String fileName);
+    
+    // Write-behind: every file sharing the spooled object becomes AVAILABLE together
+    @Transactional
+    @Modifying
+    @Query("update FileMetadata f set f.status = :available where f.fileName = :fileName and f.status = :pending")
+    int markAvailable(@Param("fileName") String fileName,
+                      @Param("pending") FileStatus pending,
+                      @Param("available") FileStatus available);
+    
+    // Lifecycle: storage keys whose files (all of them, when content is shared) have not been read since the cutoff
+    @Query("select f.fileName from FileMetadata f where f.fileName > :after group by f.fileName " +
+           "having max(coalesce(f.lastAccessedAt, f.uploadedAt)) < :cutoff " +
+           "and sum(case when f.storageTier = :cold or f.status = :pending then 1 else 0 end) = 0 " +
+           "order by f.fileName")
+    List<String> findKeysToDemote(@Param("after") String after,
+                                  @Param("cutoff") LocalDateTime cutoff,
+                                  @Param("cold") StorageTier cold,
+                                  @Param("pending") FileStatus pending,
+                                  Pageable pageable);
+    
+    // Cold keys that were read (or uploaded again) since the cutoff
+    @Query("select f.fileName from FileMetadata f where f.fileName > :after group by f.fileName " +
+           "having max(coalesce(f.lastAccessedAt, f.uploadedAt)) >= :cutoff " +
+           "and sum(case when f.storageTier = :cold then 1 else 0 end) > 0 " +
+           "order by f.fileName")
+    List<String> findKeysToPromote(@Param("after") String after,
+                                   @Param("cutoff") LocalDateTime cutoff,
+                                   @Param("cold") StorageTier cold,
+                                   Pageable pageable);
+    
+    @Transactional
+    @Modifying
+    @Query("update FileMetadata f set f.storageTier = :tier where f.fileName = :fileName")
+    int updateStorageTier(@Param("fileName") String fileName, @Param("tier") StorageTier tier);
+    
+    // Archive downloads walk a user's files in id order, a chunk at a time
+    List<FileMetadata> findByUserIdAndIdGreaterThanOrderByIdAsc(Long userId, Long id, Pageable pageable);
+    List<FileMetadata> findByUserIdAndIdIn(Long userId, Collection<Long> ids);
+    
+    @Modifying
+    @Query("delete from FileMetadata f where f.id in :ids")
+    int deleteByIdIn(@Param("ids") Collection<Long> ids);
+    
+    // What the usage stripes should add up to; only read by reconciliation and for accounts seen for the first time
+    @Query("select f.userId as userId, sum(f.fileSize) as bytesUsed, count(f) as fileCount from FileMetadata f " +
+           "where f.userId = :userId group by f.userId")
+    Optional<UsageTotals> findUsage(@Param("userId") Long userId);
+    
+    @Query("select f.userId as userId, sum(f.fileSize) as bytesUsed, count(f) as fileCount from FileMetadata f " +
+           "group by f.userId")
+    List<UsageTotals> findAllUsage();
+    
+    @Query("select coalesce(sum(f.fileSize), 0) from FileMetadata f")
+    long sumFileBytes();
+    
+    @Query("select coalesce(sum(coalesce(f.storedSize, f.fileSize)), 0) from FileMetadata f where f.contentHash is null")
+    long sumUndeduplicatedBytes();
 }
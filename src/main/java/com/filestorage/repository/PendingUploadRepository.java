@@ -0,0 +1,33 @@
+package com.filestorage.repository;
+
+import com.filestorage.model.PendingUpload;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface PendingUploadRepository extends JpaRepository<PendingUpload, String> {
+    Optional<PendingUpload> findByIdAndUserId(String id, Long userId);
+    List<PendingUpload> findByExpiresAtBefore(LocalDateTime cutoff);
+    
+    @Query("select p.storageKey from PendingUpload p where p.storageKey in :keys")
+    List<String> findExistingStorageKeys(@Param("keys") Collection<String> keys);
+    
+    // Returns 1 for exactly one caller, so an upload is completed or expired at most once
+    @Transactional
+    @Modifying
+    @Query("delete from PendingUpload p where p.id = :id")
+    int claim(@Param("id") String id);
+    
+    @Transactional
+    @Modifying
+    @Query("update PendingUpload p set p.expiresAt = :expiresAt where p.id = :id")
+    int extend(@Param("id") String id, @Param("expiresAt") LocalDateTime expiresAt);
+}
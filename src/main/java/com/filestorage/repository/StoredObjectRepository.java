@@ -0,0 +1,50 @@
+package com.filestorage.repository;
+
+import com.filestorage.model.StoredObject;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface StoredObjectRepository extends JpaRepository<StoredObject, Long> {
+    Optional<StoredObject> findByContentHash(String contentHash);
+    
+    // Objects down to no references are being released, so they are not referenced again
+    @Transactional
+    @Modifying
+    @Query("update StoredObject s set s.referenceCount = s.referenceCount + 1 " +
+           "where s.contentHash = :hash and s.referenceCount > 0")
+    int incrementReferences(@Param("hash") String contentHash);
+    
+    @Transactional
+    @Modifying
+    @Query("update StoredObject s set s.referenceCount = s.referenceCount - 1 where s.contentHash = :hash")
+    int decrementReferences(@Param("hash") String contentHash);
+    
+    @Transactional
+    @Modifying
+    @Query("delete from StoredObject s where s.contentHash = :hash and s.referenceCount <= 0")
+    int deleteIfUnreferenced(@Param("hash") String contentHash);
+    
+    // Locks the rows so a concurrent upload cannot re-reference them before they are deleted
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select s from StoredObject s where s.contentHash in :hashes and s.referenceCount <= 0")
+    List<StoredObject> findUnreferencedForUpdate(@Param("hashes") Collection<String> contentHashes);
+    
+    @Query("select s.storageKey from StoredObject s where s.storageKey in :keys")
+    List<String> findExistingStorageKeys(@Param("keys") Collection<String> keys);
+    
+    @Query("select count(s) from StoredObject s")
+    long countObjects();
+    
+    @Query("select coalesce(sum(coalesce(s.storedSize, s.size)), 0) from StoredObject s")
+    long sumStoredBytes();
+}
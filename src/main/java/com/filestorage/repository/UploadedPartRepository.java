@@ -0,0 +1,28 @@
+package com.filestorage.repository;
+
+import com.filestorage.model.UploadedPart;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface UploadedPartRepository extends JpaRepository<UploadedPart, Long> {
+    List<UploadedPart> findByUploadIdOrderByPartNumber(String uploadId);
+    Optional<UploadedPart> findByUploadIdAndPartNumber(String uploadId, Integer partNumber);
+    
+    @Transactional
+    @Modifying
+    @Query("delete from UploadedPart p where p.uploadId = :uploadId")
+    int deleteByUploadId(@Param("uploadId") String uploadId);
+    
+    // Parts recorded just as their upload was completed or discarded
+    @Transactional
+    @Modifying
+    @Query("delete from UploadedPart p where not exists (select u from PendingUpload u where u.id = p.uploadId)")
+    int deleteOrphans();
+}
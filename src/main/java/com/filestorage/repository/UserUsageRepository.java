@@ -0,0 +1,43 @@
+package com.filestorage.repository;
+
+import com.filestorage.model.UsageTotals;
+import com.filestorage.model.UserUsage;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface UserUsageRepository extends JpaRepository<UserUsage, Long> {
+    List<UserUsage> findByUserId(Long userId);
+    
+    // Holds back usage updates for the user until the caller's transaction ends
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select u from UserUsage u where u.userId = :userId order by u.stripe")
+    List<UserUsage> findByUserIdForUpdate(@Param("userId") Long userId);
+    
+    @Modifying
+    @Query("update UserUsage u set u.bytesUsed = u.bytesUsed + :bytes, u.fileCount = u.fileCount + :files " +
+           "where u.userId = :userId and u.stripe = :stripe")
+    int add(@Param("userId") Long userId, @Param("stripe") int stripe,
+            @Param("bytes") long bytes, @Param("files") long files);
+    
+    @Query("select u.userId as userId, sum(u.bytesUsed) as bytesUsed, sum(u.fileCount) as fileCount " +
+           "from UserUsage u where u.userId = :userId group by u.userId")
+    Optional<UsageTotals> findTotals(@Param("userId") Long userId);
+    
+    @Query("select u.userId as userId, sum(u.bytesUsed) as bytesUsed, sum(u.fileCount) as fileCount " +
+           "from UserUsage u group by u.userId")
+    List<UsageTotals> findAllTotals();
+    
+    @Transactional
+    @Modifying
+    @Query("delete from UserUsage u where u.userId = :userId")
+    int deleteByUserId(@Param("userId") Long userId);
+}
@@ -0,0 +1,195 @@
+package com.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Download counts and last-access times per file, recorded without touching the database. Each
+ * stripe is a fixed-size, open-addressed table of primitive counters and threads pick a stripe by
+ * their id, so recording allocates nothing and a popular file's counter is not shared by every core.
+ * A scheduled flush swaps each stripe's table for an empty spare and adds the drained totals to
+ * {@code file_metadata} in one JDBC batch.
+ */
+@Service
+public class AccessTracker {
+    
+    private static final Logger logger = LoggerFactory.getLogger(AccessTracker.class);
+    
+    private static final int BATCH_SIZE = 1000;
+    private static final int MAX_PROBES = 16;
+    
+    private static final String FLUSH_SQL = "update file_metadata set download_count = coalesce(download_count, 0) + ?, "
+            + "last_accessed_at = case when last_accessed_at is null or last_accessed_at < ? then ? "
+            + "else last_accessed_at end where id = ?";
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    private final Stripe[] stripes;
+    // Held only while the stripes are swapped and drained; the database batch runs after it is released
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private final Counter dropped;
+    
+    public AccessTracker(@Value("${storage.access.stripes:0}") int stripes,
+                         @Value("${storage.access.stripe-capacity:16384}") int stripeCapacity,
+                         MeterRegistry meterRegistry) {
+        int count = stripes > 0 ? stripes : Runtime.getRuntime().availableProcessors();
+        // Powers of two, so picking a stripe and a slot is a mask
+        this.stripes = new Stripe[Integer.highestOneBit(Math.max(count - 1, 1)) << 1];
+        int capacity = Integer.highestOneBit(Math.max(stripeCapacity - 1, 1)) << 1;
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe(capacity);
+        }
+        this.dropped = Counter.builder("storage.access.dropped")
+                .description("File accesses not counted because a stripe's table was full until the next flush")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Records that a file was read. {@code download} is false for accesses that only update the
+     * last-access time, such as a 304 or a later range of a download already counted.
+     */
+    public void recordAccess(long fileId, boolean download) {
+        Stripe stripe = stripes[(int) mix(Thread.currentThread().getId()) & (stripes.length - 1)];
+        long now = System.currentTimeMillis();
+        // Shared with other recorders; only the flush takes it exclusively, to swap the table
+        long stamp = stripe.lock.readLock();
+        try {
+            if (!stripe.active.record(fileId, download ? 1 : 0, now)) {
+                dropped.increment();
+            }
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+    
+    @PreDestroy
+    @Scheduled(fixedDelayString = "${storage.access.flush-interval:PT30S}")
+    public void flush() {
+        Map<Long, long[]> totals = new HashMap<>();
+        drainLock.lock();
+        try {
+            for (Stripe stripe : stripes) {
+                long stamp = stripe.lock.writeLock();
+                AccessTable drained = stripe.active;
+                stripe.active = stripe.spare;
+                stripe.lock.unlockWrite(stamp);
+                
+                drained.drainTo(totals);
+                stripe.spare = drained;
+            }
+        } finally {
+            drainLock.unlock();
+        }
+        // Concurrent flushes each write what they drained; the update adds counts and keeps the latest time
+        if (totals.isEmpty()) {
+            return;
+        }
+        
+        // Ascending ids, so nodes flushing at the same time lock rows in the same order
+        List<Map.Entry<Long, long[]>> updates = new ArrayList<>(new TreeMap<>(totals).entrySet());
+        try {
+            jdbcTemplate.batchUpdate(FLUSH_SQL, updates, BATCH_SIZE, (statement, entry) -> {
+                Timestamp lastAccess = new Timestamp(entry.getValue()[1]);
+                statement.setLong(1, entry.getValue()[0]);
+                statement.setTimestamp(2, lastAccess);
+                statement.setTimestamp(3, lastAccess);
+                statement.setLong(4, entry.getKey());
+            });
+        } catch (RuntimeException ex) {
+            // Access data is advisory; losing one interval of it is better than holding it indefinitely
+            logger.warn("Could not flush access counts for {} files", updates.size(), ex);
+        }
+    }
+    
+    private static long mix(long value) {
+        value *= 0x9e3779b97f4a7c15L;
+        return value ^ (value >>> 32);
+    }
+    
+    private static final class Stripe {
+        
+        final StampedLock lock = new StampedLock();
+        // Guarded by lock: replaced under the write lock, used under read locks
+        AccessTable active;
+        // Only touched by the flush, under its drain lock
+        AccessTable spare;
+        
+        Stripe(int capacity) {
+            active = new AccessTable(capacity);
+            spare = new AccessTable(capacity);
+        }
+    }
+    
+    // File ids are keys (0 marks a free slot; ids start at 1), with a count and last-access time alongside
+    private static final class AccessTable {
+        
+        private final AtomicLongArray fileIds;
+        private final AtomicLongArray downloads;
+        private final AtomicLongArray lastAccess;
+        private final int mask;
+        
+        AccessTable(int capacity) {
+            fileIds = new AtomicLongArray(capacity);
+            downloads = new AtomicLongArray(capacity);
+            lastAccess = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+        }
+        
+        boolean record(long fileId, long count, long now) {
+            int index = (int) mix(fileId) & mask;
+            for (int probe = 0; probe < MAX_PROBES; probe++, index = (index + 1) & mask) {
+                long current = fileIds.get(index);
+                if (current == 0 && fileIds.compareAndSet(index, 0, fileId)) {
+                    current = fileId;
+                } else if (current == 0) {
+                    // Another thread claimed the slot first, possibly for this file
+                    current = fileIds.get(index);
+                }
+                if (current != fileId) {
+                    continue;
+                }
+                
+                if (count > 0) {
+                    downloads.addAndGet(index, count);
+                }
+                // A racing recorder may leave a time a few milliseconds older; close enough for tiering
+                if (lastAccess.get(index) < now) {
+                    lastAccess.set(index, now);
+                }
+                return true;
+            }
+            return false;
+        }
+        
+        // Only called once no recorder can reach the table any more
+        void drainTo(Map<Long, long[]> totals) {
+            for (int i = 0; i <= mask; i++) {
+                long fileId = fileIds.get(i);
+                if (fileId == 0) {
+                    continue;
+                }
+                long[] total = totals.computeIfAbsent(fileId, id -> new long[2]);
+                total[0] += downloads.get(i);
+                total[1] = Math.max(total[1], lastAccess.get(i));
+                fileIds.set(i, 0);
+                downloads.set(i, 0);
+                lastAccess.set(i, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.filestorage.service;
+
+import com.filestorage.model.FileMetadata;
+import com.filestorage.repository.FileMetadataRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams a user's files into a ZIP archive as it is downloaded. Files are read in id order a
+ * chunk at a time and up to {@code storage.archive.prefetch} objects are opened ahead of the
+ * entry being written, so memory use does not depend on the size of the archive. Files that
+ * cannot be opened are listed, with the reason, in a final {@value #MISSING_FILES_ENTRY} entry.
+ */
+@Service
+public class ArchiveService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveService.class);
+    
+    private static final int CHUNK_SIZE = 100;
+    
+    static final String MISSING_FILES_ENTRY = "MISSING_FILES.txt";
+    
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/vnd.rar", "application/x-bzip2", "application/x-xz",
+            "application/zstd", "application/pdf", "application/java-archive", "application/epub+zip");
+    
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "7z", "rar", "bz2", "xz", "zst", "jar", "pdf", "epub",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "aac", "ogg", "m4a", "flac",
+            "mp4", "mov", "mkv", "webm", "avi", "docx", "xlsx", "pptx");
+    
+    @Autowired
+    private FileStorageService fileStorageService;
+    
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+    
+    @Autowired
+    private AccessTracker accessTracker;
+    
+    @Value("${storage.archive.prefetch:4}")
+    private int prefetch;
+    
+    // Shared by all archive downloads; opens queue behind it, so concurrent archives cannot spawn threads without limit
+    @Value("${storage.archive.prefetch-threads:16}")
+    private int prefetchThreads;
+    
+    private ExecutorService prefetchExecutor;
+    
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger();
+        prefetchExecutor = Executors.newFixedThreadPool(Math.max(prefetchThreads, 1), runnable -> {
+            Thread thread = new Thread(runnable, "archive-prefetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
+    }
+    
+    // Archives the given files, or all of the user's files when fileIds is null or empty
+    public void writeArchive(Long userId, List<Long> fileIds, OutputStream outputStream) throws IOException {
+        Iterator<FileMetadata> files = fileIds == null || fileIds.isEmpty()
+                ? allFiles(userId)
+                : selectedFiles(userId, new ArrayList<>(new LinkedHashSet<>(fileIds)));
+        Deque<PendingEntry> window = new ArrayDeque<>();
+        Set<String> entryNames = new HashSet<>();
+        List<String> missing = new ArrayList<>();
+        
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(outputStream, 64 * 1024));
+        try {
+            while (files.hasNext() || !window.isEmpty()) {
+                while (window.size() < Math.max(prefetch, 1) && files.hasNext()) {
+                    FileMetadata fileMetadata = files.next();
+                    window.add(new PendingEntry(fileMetadata, CompletableFuture
+                            .supplyAsync(() -> fileStorageService.openFileAsync(fileMetadata, 0, -1, false), prefetchExecutor)
+                            .thenCompose(Function.identity())));
+                }
+                writeEntry(zip, window.poll(), entryNames, missing);
+            }
+            if (!missing.isEmpty()) {
+                writeMissingFiles(zip, missing, entryNames);
+            }
+            zip.finish();
+            zip.flush();
+        } finally {
+            // The client may have gone away mid-archive; release whatever was opened ahead
+            window.forEach(PendingEntry::closeQuietly);
+        }
+    }
+    
+    private void writeEntry(ZipOutputStream zip, PendingEntry entry, Set<String> entryNames,
+                            List<String> missing) throws IOException {
+        FileMetadata fileMetadata = entry.fileMetadata();
+        ObjectContent content;
+        try {
+            content = entry.content().join();
+        } catch (RuntimeException ex) {
+            // Nothing of it has been written yet, so the rest of the archive can still be sent
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            logger.warn("Leaving {} out of archive: {}", fileMetadata.getFileName(), cause.getMessage());
+            missing.add(fileMetadata.getOriginalFileName() + ": " + cause.getMessage());
+            return;
+        }
+        
+        accessTracker.recordAccess(fileMetadata.getId(), true);
+        try (content) {
+            ZipEntry zipEntry = new ZipEntry(uniqueName(fileMetadata.getOriginalFileName(), entryNames));
+            if (fileMetadata.getUploadedAt() != null) {
+                zipEntry.setTimeLocal(fileMetadata.getUploadedAt());
+            }
+            
+            // Stored entries need their CRC up front, so already-compressed content is deflated
+            // at level 0 instead: the bytes are copied through without being compressed again
+            zip.setLevel(isCompressed(fileMetadata) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+            zip.putNextEntry(zipEntry);
+            content.getInputStream().transferTo(zip);
+            zip.closeEntry();
+        }
+        // Push each finished entry out instead of waiting for the buffer to fill
+        zip.flush();
+    }
+    
+    private static void writeMissingFiles(ZipOutputStream zip, List<String> missing, Set<String> entryNames) throws IOException {
+        zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+        zip.putNextEntry(new ZipEntry(uniqueName(MISSING_FILES_ENTRY, entryNames)));
+        Writer writer = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+        writer.write(missing.size() + " file(s) could not be read and are not in this archive:\n");
+        for (String line : missing) {
+            writer.write(line + "\n");
+        }
+        writer.flush();
+        zip.closeEntry();
+    }
+    
+    private Iterator<FileMetadata> allFiles(Long userId) {
+        return new ChunkIterator(lastId -> fileMetadataRepository.findByUserIdAndIdGreaterThanOrderByIdAsc(
+                userId, lastId == null ? 0L : lastId, PageRequest.of(0, CHUNK_SIZE)));
+    }
+    
+    private Iterator<FileMetadata> selectedFiles(Long userId, List<Long> fileIds) {
+        List<List<Long>> chunks = new ArrayList<>();
+        for (int i = 0; i < fileIds.size(); i += CHUNK_SIZE) {
+            chunks.add(fileIds.subList(i, Math.min(i + CHUNK_SIZE, fileIds.size())));
+        }
+        Iterator<List<Long>> remaining = chunks.iterator();
+        
+        return new ChunkIterator(lastId -> {
+            while (remaining.hasNext()) {
+                // Keep the requested order; ids the user does not own are skipped
+                List<Long> chunk = remaining.next();
+                Map<Long, FileMetadata> found = new HashMap<>();
+                fileMetadataRepository.findByUserIdAndIdIn(userId, chunk).forEach(file -> found.put(file.getId(), file));
+                List<FileMetadata> ordered = chunk.stream().map(found::get).filter(Objects::nonNull).toList();
+                if (!ordered.isEmpty()) {
+                    return ordered;
+                }
+            }
+            return List.of();
+        });
+    }
+    
+    private static String uniqueName(String originalFileName, Set<String> entryNames) {
+        // Entry names must not escape the extraction directory or collide with each other
+        String name = originalFileName == null || originalFileName.isBlank()
+                ? "file"
+                : originalFileName.replace('\\', '_').replace('/', '_');
+        if (name.equals(".") || name.equals("..")) {
+            name = "file";
+        }
+        
+        String candidate = name;
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int copy = 2; !entryNames.add(candidate); copy++) {
+            candidate = base + " (" + copy + ")" + extension;
+        }
+        return candidate;
+    }
+    
+    private static boolean isCompressed(FileMetadata fileMetadata) {
+        String contentType = fileMetadata.getFileType();
+        if (contentType != null) {
+            String type = contentType.toLowerCase(Locale.ROOT);
+            int parameters = type.indexOf(';');
+            if (parameters >= 0) {
+                type = type.substring(0, parameters).trim();
+            }
+            if (COMPRESSED_TYPES.contains(type) || type.startsWith("video/") || type.startsWith("audio/")
+                    || (type.startsWith("image/") && !type.equals("image/svg+xml") && !type.equals("image/bmp"))) {
+                return true;
+            }
+        }
+        
+        String name = fileMetadata.getOriginalFileName();
+        int dot = name == null ? -1 : name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+    
+    // Pulls files a chunk at a time; the loader gets the last id returned and an empty chunk ends the iteration
+    private static class ChunkIterator implements Iterator<FileMetadata> {
+        
+        private final Function<Long, List<FileMetadata>> loader;
+        private Iterator<FileMetadata> chunk = Collections.emptyIterator();
+        private Long lastId;
+        private boolean exhausted;
+        
+        ChunkIterator(Function<Long, List<FileMetadata>> loader) {
+            this.loader = loader;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            if (!chunk.hasNext() && !exhausted) {
+                List<FileMetadata> next = loader.apply(lastId);
+                exhausted = next.isEmpty();
+                chunk = next.iterator();
+            }
+            return chunk.hasNext();
+        }
+        
+        @Override
+        public FileMetadata next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            FileMetadata fileMetadata = chunk.next();
+            lastId = fileMetadata.getId();
+            return fileMetadata;
+        }
+    }
+    
+    private record PendingEntry(FileMetadata fileMetadata, CompletableFuture<ObjectContent> content) {
+        
+        void closeQuietly() {
+            content.thenAccept(opened -> {
+                try {
+                    opened.close();
+                } catch (IOException ex) {
+                    logger.debug("Could not close prefetched object", ex);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.filestorage.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it and fails the read that would go past {@code maxSize}, so an
+ * oversized upload is stopped as soon as it crosses the limit rather than after it has been received.
+ */
+class BoundedInputStream extends FilterInputStream {
+    
+    private final long maxSize;
+    private long count;
+    private boolean limitExceeded;
+    
+    BoundedInputStream(InputStream inputStream, long maxSize) {
+        super(inputStream);
+        this.maxSize = maxSize;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            advance(1);
+        }
+        return b;
+    }
+    
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = super.read(buffer, offset, length);
+        if (read > 0) {
+            advance(read);
+        }
+        return read;
+    }
+    
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        advance(skipped);
+        return skipped;
+    }
+    
+    // Marking would let a reader count the same bytes twice
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+    
+    public long getCount() {
+        return count;
+    }
+    
+    public long getMaxSize() {
+        return maxSize;
+    }
+    
+    public boolean isLimitExceeded() {
+        return limitExceeded;
+    }
+    
+    private void advance(long bytes) throws IOException {
+        count += bytes;
+        if (count > maxSize) {
+            limitExceeded = true;
+            throw new IOException("Upload exceeds the maximum size of " + maxSize + " bytes");
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.filestorage.service;
+
+import java.util.List;
+import java.util.Map;
+
+// failedKeys maps storage keys that could not be removed to the reason; their metadata is already gone
+public record BulkDeleteResult(int deleted, List<Long> notFound, Map<String, String> failedKeys) {
+}
@@ -0,0 +1,125 @@
+package com.filestorage.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decides which uploads are stored gzip-compressed and does the (de)compression. Candidates are
+ * picked by content type and then confirmed with the byte entropy of a sample from the start of
+ * the file, so mislabelled binary or already-compressed data is left alone.
+ */
+@Component
+public class ContentCompression {
+    
+    public static final String GZIP = "gzip";
+    
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    // Content that shrinks less than this is stored as uploaded rather than decompressed on every read
+    private static final double MAX_RATIO = 0.9;
+    
+    private static final Set<String> COMPRESSIBLE_TYPES = Set.of(
+            "application/json", "application/x-ndjson", "application/xml", "application/javascript",
+            "application/x-yaml", "application/yaml", "application/sql", "application/csv",
+            "application/x-sh", "application/rtf", "image/svg+xml", "image/bmp");
+    
+    private final boolean enabled;
+    private final long minSize;
+    private final double maxEntropy;
+    
+    public ContentCompression(@Value("${storage.compression.enabled:false}") boolean enabled,
+                              @Value("${storage.compression.min-size:4KB}") DataSize minSize,
+                              @Value("${storage.compression.max-entropy:7.0}") double maxEntropy) {
+        this.enabled = enabled;
+        this.minSize = minSize.toBytes();
+        this.maxEntropy = maxEntropy;
+    }
+    
+    public boolean shouldCompress(MultipartFile file) throws IOException {
+        if (!enabled || file.getSize() < minSize || !isCompressibleType(file.getContentType())) {
+            return false;
+        }
+        
+        byte[] sample;
+        try (InputStream inputStream = file.getInputStream()) {
+            sample = inputStream.readNBytes(SAMPLE_SIZE);
+        }
+        return entropy(sample) <= maxEntropy;
+    }
+    
+    // Writes the gzip-compressed content to a temporary file that the caller deletes; the caller closes the stream
+    public Path compress(InputStream inputStream) throws IOException {
+        Path compressed = Files.createTempFile("upload-", ".gz");
+        try (OutputStream outputStream = new GZIPOutputStream(Files.newOutputStream(compressed), BUFFER_SIZE)) {
+            inputStream.transferTo(outputStream);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(compressed);
+            throw ex;
+        }
+        return compressed;
+    }
+    
+    public boolean isWorthwhile(long compressedSize, long size) {
+        return compressedSize <= size * MAX_RATIO;
+    }
+    
+    // Wraps stored content so it is decompressed as it is read
+    public static ObjectContent decompress(ObjectContent stored) {
+        return new ObjectContent() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return new GZIPInputStream(stored.getInputStream(), BUFFER_SIZE);
+            }
+            
+            @Override
+            public void close() throws IOException {
+                stored.close();
+            }
+        };
+    }
+    
+    private static boolean isCompressibleType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        int parameters = type.indexOf(';');
+        if (parameters >= 0) {
+            type = type.substring(0, parameters).trim();
+        }
+        return type.startsWith("text/") || COMPRESSIBLE_TYPES.contains(type)
+                || type.endsWith("+json") || type.endsWith("+xml");
+    }
+    
+    // Shannon entropy in bits per byte: text is usually 4-6, compressed or encrypted data close to 8
+    private static double entropy(byte[] sample) {
+        if (sample.length == 0) {
+            return 0;
+        }
+        int[] counts = new int[256];
+        for (byte b : sample) {
+            counts[b & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / sample.length;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return entropy;
+    }
+}
@@ -0,0 +1,24 @@
+package com.filestorage.service;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Deduplication totals across all users. Only served on the internal management port (see SecurityConfig).
+ */
+@Component
+@Endpoint(id = "dedup")
+public class DeduplicationEndpoint {
+    
+    private final FileStorageService fileStorageService;
+    
+    public DeduplicationEndpoint(FileStorageService fileStorageService) {
+        this.fileStorageService = fileStorageService;
+    }
+    
+    @ReadOperation
+    public DeduplicationReport report() {
+        return fileStorageService.getDeduplicationReport();
+    }
+}
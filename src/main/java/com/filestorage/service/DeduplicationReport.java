@@ -0,0 +1,13 @@
+package com.filestorage.service;
+
+public record DeduplicationReport(long files, long logicalBytes, long storedObjects, long storedBytes) {
+    
+    public long getSavedBytes() {
+        return logicalBytes - storedBytes;
+    }
+    
+    // logical bytes per stored byte; 1.0 means nothing was deduplicated
+    public double getRatio() {
+        return storedBytes == 0 ? 1.0 : (double) logicalBytes / storedBytes;
+    }
+}
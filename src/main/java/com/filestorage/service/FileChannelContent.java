@@ -0,0 +1,83 @@
+package com.filestorage.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A byte range of an open file, read through a positioned channel
+class FileChannelContent implements ObjectContent {
+    
+    private final FileChannel channel;
+    private final long start;
+    private final long length;
+    
+    FileChannelContent(FileChannel channel, long start, long length) {
+        this.channel = channel;
+        this.start = start;
+        this.length = length;
+    }
+    
+    // end < 0 reads to the end of the file
+    static FileChannelContent open(Path path, long start, long end) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        long last = end >= 0 ? Math.min(end, channel.size() - 1) : channel.size() - 1;
+        return new FileChannelContent(channel, start, Math.max(last - start + 1, 0));
+    }
+    
+    long length() {
+        return length;
+    }
+    
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new BoundedChannelInputStream(channel.position(start), length);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+    
+    private static class BoundedChannelInputStream extends InputStream {
+        
+        private final InputStream delegate;
+        private long remaining;
+        
+        BoundedChannelInputStream(FileChannel channel, long length) {
+            this.delegate = Channels.newInputStream(channel);
+            this.remaining = length;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = delegate.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = delegate.read(buffer, offset, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
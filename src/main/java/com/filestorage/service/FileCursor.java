@@ -0,0 +1,34 @@
+package com.filestorage.service;
+
+import com.filestorage.model.FileSummary;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+
+/**
+ * Keyset position in a user's file listing: the (uploadedAt, id) of the last row of the previous page,
+ * encoded as an opaque URL-safe token.
+ */
+public record FileCursor(LocalDateTime uploadedAt, Long id) {
+    
+    public static FileCursor after(FileSummary file) {
+        return new FileCursor(file.getUploadedAt(), file.getId());
+    }
+    
+    public String encode() {
+        String raw = uploadedAt + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    public static FileCursor decode(String token) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int separator = raw.indexOf('|');
+            return new FileCursor(LocalDateTime.parse(raw.substring(0, separator)),
+                    Long.parseLong(raw.substring(separator + 1)));
+        } catch (RuntimeException ex) {
+            throw new IllegalArgumentException("Invalid cursor", ex);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.filestorage.service;
+
+import com.filestorage.model.FileReference;
+import com.filestorage.repository.FileMetadataRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.interceptor.SimpleKey;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+
+/**
+ * Evicts entries cached by {@link FileStorageService#getFileMetadata}, which are keyed by (fileId, userId).
+ * Status and tier updates go by storage key, shared by every deduplicated copy, so those evict each row using it.
+ */
+@Component
+public class FileMetadataCache {
+    
+    static final String CACHE_NAME = "fileMetadata";
+    
+    @Autowired
+    private CacheManager cacheManager;
+    
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+    
+    public void evict(Long userId, Collection<FileReference> files) {
+        Cache cache = cacheManager.getCache(CACHE_NAME);
+        if (cache != null) {
+            files.forEach(file -> cache.evict(new SimpleKey(file.getId(), userId)));
+        }
+    }
+    
+    public void evictStorageKey(String fileName) {
+        Cache cache = cacheManager.getCache(CACHE_NAME);
+        if (cache != null) {
+            fileMetadataRepository.findReferencesByFileName(fileName)
+                    .forEach(file -> cache.evict(new SimpleKey(file.getId(), file.getUserId())));
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.filestorage.service;
+
+import com.filestorage.model.FileSummary;
+
+import java.util.List;
+
+// nextCursor is null on the last page
+public record FilePage(List<FileSummary> files, String nextCursor) {
+}
@@ -1,87 +1,1020 @@
 package com.filestorage.service;
 
 import com.filestorage.model.FileMetadata;
-import com.filestorage.model.User;
+import com.filestorage.model.FileReference;
+import com.filestorage.model.FileStatus;
+import com.filestorage.model.FileSummary;
+import com.filestorage.model.PendingUpload;
+import com.filestorage.model.StorageTier;
+import com.filestorage.model.StoredObject;
+import com.filestorage.model.UploadedPart;
 import com.filestorage.repository.FileMetadataRepository;
+import com.filestorage.repository.PendingUploadRepository;
+import com.filestorage.repository.StoredObjectRepository;
+import com.filestorage.repository.UploadedPartRepository;
+import com.filestorage.repository.UserRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.core.io.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
-import java.util.List;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 @Service
 public class FileStorageService {
     
+    private static final Logger logger = LoggerFactory.getLogger(FileStorageService.class);
+    
+    // Upper bound for IN lists and JDBC batches in bulk operations
+    private static final int BATCH_SIZE = 1000;
+    
+    private static final int MAX_SAVE_ATTEMPTS = 3;
+    
     @Autowired
     private FileMetadataRepository fileMetadataRepository;
     
     @Autowired
-    private S3Service s3Service;
+    private StoredObjectRepository storedObjectRepository;
+    
+    @Autowired
+    private UserRepository userRepository;
+    
+    @Autowired
+    private PendingUploadRepository pendingUploadRepository;
+    
+    @Autowired
+    private UploadedPartRepository uploadedPartRepository;
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired(required = false)
+    private ObjectCache objectCache;
+    
+    @Autowired(required = false)
+    private UploadSpool uploadSpool;
+    
+    @Autowired
+    private ContentCompression contentCompression;
+    
+    @Autowired
+    private StorageMetrics storageMetrics;
+    
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    private FileMetadataCache fileMetadataCache;
+    
+    @Autowired
+    private Environment environment;
+    
+    @Autowired
+    private UsageService usageService;
+    
+    @Value("${storage.upload.parallelism:8}")
+    private int uploadParallelism;
+    
+    // Direct uploads and downloads through signed URLs, when the backend supports them
+    @Value("${storage.presigned.enabled:false}")
+    private boolean presignedEnabled;
     
-    public FileMetadata storeFile(MultipartFile file, User user) {
+    // How long a client has to complete a direct upload before it is discarded
+    @Value("${storage.presigned.upload-window:1h}")
+    private Duration uploadWindow;
+    
+    // A resumable upload is discarded once no chunk has arrived for this long
+    @Value("${storage.resumable.session-timeout:24h}")
+    private Duration resumableSessionTimeout;
+    
+    @Value("${storage.resumable.max-file-size:50GB}")
+    private DataSize resumableMaxFileSize;
+    
+    // Streamed uploads are cut off as soon as they pass this size
+    @Value("${storage.stream.max-file-size:5GB}")
+    private DataSize streamMaxFileSize;
+    
+    private Executor uploadExecutor;
+    
+    @PostConstruct
+    public void init() {
+        // With virtual threads the storage backend bounds concurrency, not the size of this pool
+        if (Threading.VIRTUAL.isActive(environment)) {
+            uploadExecutor = new VirtualThreadTaskExecutor("file-upload-");
+            return;
+        }
+        
+        AtomicInteger threadCount = new AtomicInteger();
+        uploadExecutor = Executors.newFixedThreadPool(uploadParallelism, runnable -> {
+            Thread thread = new Thread(runnable, "file-upload-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        if (uploadExecutor instanceof ExecutorService executorService) {
+            executorService.shutdown();
+        }
+    }
+    
+    public FileMetadata storeFile(MultipartFile file, Long userId) {
+        return join(storeFileAsync(file, userId));
+    }
+    
+    // Preparing an upload reads all of it (hashing, compression, staging), so it runs on the upload pool
+    public CompletableFuture<FileMetadata> storeFileAsync(MultipartFile file, Long userId) {
         try {
-            // Upload to S3
-            String s3FileName = s3Service.uploadFile(file);
-            
-            // Save metadata to database
-            FileMetadata fileMetadata = new FileMetadata();
-            fileMetadata.setFileName(s3FileName);
-            fileMetadata.setOriginalFileName(StringUtils.cleanPath(file.getOriginalFilename()));
-            fileMetadata.setFileType(file.getContentType());
-            fileMetadata.setFileSize(file.getSize());
-            // Store the full S3 URL for reference, or just the key if preferred. 
-            // Using logic from S3Service.getFileUrl for consistency.
-            fileMetadata.setFilePath(s3Service.getFileUrl(s3FileName)); 
-            fileMetadata.setUser(user);
-            
-            return fileMetadataRepository.save(fileMetadata);
-            
+            usageService.checkQuota(userId, file.getSize(), 1);
+        } catch (QuotaExceededException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        return CompletableFuture.supplyAsync(() -> prepareFile(file), uploadExecutor)
+                .thenCompose(Function.identity())
+                .thenApply(fileMetadata -> saveFileMetadata(fileMetadata, userId));
+    }
+    
+    /**
+     * Stores an upload while it is still arriving: the bytes go to the backend as they are read, without
+     * a temp file, and are hashed on the way through. Identical content is therefore only recognised once
+     * the copy is stored, which is then dropped; compression is not applied on this path.
+     */
+    public FileMetadata storeStream(InputStream inputStream, String fileName, String contentType, Long userId) {
+        if (!StringUtils.hasText(fileName)) {
+            throw new IllegalArgumentException("A file name is required");
+        }
+        String originalFilename = StringUtils.cleanPath(fileName);
+        String fileType = StringUtils.hasText(contentType) ? contentType : "application/octet-stream";
+        String storageKey = newStorageKey(originalFilename);
+        
+        // The size is only known at the end, so the stream is cut off where it would exceed the quota
+        StorageUsage usage = usageService.getUsage(userId);
+        if (!usage.allows(0, 1)) {
+            throw new QuotaExceededException(usage);
+        }
+        boolean quotaBound = usage.getRemainingBytes() < streamMaxFileSize.toBytes();
+        BoundedInputStream bounded = new BoundedInputStream(inputStream,
+                Math.min(usage.getRemainingBytes(), streamMaxFileSize.toBytes()));
+        MessageDigest digest = sha256();
+        long size;
+        try {
+            // The backend removes whatever it has written when the stream fails part way
+            size = join(storageMetrics.timeStreamedPut(() -> {
+                storageBackend.store(storageKey, new DigestInputStream(bounded, digest), -1, fileType);
+                return CompletableFuture.completedFuture(bounded.getCount());
+            }));
+        } catch (RuntimeException ex) {
+            if (bounded.isLimitExceeded()) {
+                if (quotaBound) {
+                    throw new QuotaExceededException(usage);
+                }
+                throw new MaxUploadSizeExceededException(bounded.getMaxSize());
+            }
+            throw new RuntimeException("Could not store file. Please try again!", unwrap(ex));
+        }
+        
+        return saveFileMetadata(newFileMetadata(storageKey, null, size, originalFilename, fileType, size,
+                HexFormat.of().formatHex(digest.digest())), userId);
+    }
+    
+    // Signs the upload and records it as pending; the bytes never pass through this application
+    public PresignedUpload startDirectUpload(Long userId, String fileName, String contentType, long size,
+                                             String contentHash) {
+        PresigningStorageBackend presigning = presigningBackend()
+                .orElseThrow(() -> new IllegalStateException("Direct uploads are not enabled"));
+        if (!StringUtils.hasText(fileName) || size < 0) {
+            throw new IllegalArgumentException("A file name and size are required");
+        }
+        if (contentHash != null && !contentHash.matches("[0-9a-fA-F]{64}")) {
+            throw new IllegalArgumentException("contentHash must be a hex encoded SHA-256");
+        }
+        usageService.checkQuota(userId, size, 1);
+        String originalFilename = StringUtils.cleanPath(fileName);
+        String hash = contentHash == null ? null : contentHash.toLowerCase(Locale.ROOT);
+        
+        // Content is never deduplicated on the client's word alone: the bytes are always uploaded,
+        // and only a hash the store has verified is used to share them on completion
+        String storageKey = newStorageKey(originalFilename);
+        PresigningStorageBackend.DirectUpload upload;
+        try {
+            upload = presigning.presignUpload(storageKey, contentType, size, hash);
         } catch (IOException ex) {
-            throw new RuntimeException("Could not store file to S3. Please try again!", ex);
+            throw new RuntimeException("Could not start upload", ex);
         }
+        
+        PendingUpload pendingUpload = pendingUploadRepository.save(new PendingUpload(UUID.randomUUID().toString(),
+                userId, storageKey, originalFilename, contentType, size,
+                upload.contentHashVerified() ? hash : null, upload.multipartUploadId(),
+                LocalDateTime.now().plus(uploadWindow), null));
+        return new PresignedUpload(pendingUpload.getId(), upload.partSize(), upload.partUrls(), upload.headers(),
+                pendingUpload.getExpiresAt());
     }
     
-    public Resource loadFileAsResource(Long fileId, User user) {
+    // Called by the client once the bytes are in storage; commits the metadata row
+    public FileMetadata completeDirectUpload(Long userId, String uploadId, List<String> partETags) {
+        PresigningStorageBackend presigning = presigningBackend()
+                .orElseThrow(() -> new IllegalStateException("Direct uploads are not enabled"));
+        // Only the user who started an upload can complete it, and only once
+        PendingUpload pendingUpload = pendingUploadRepository.findByIdAndUserId(uploadId, userId)
+                .filter(pending -> pending.getChunkSize() == null)
+                .filter(pending -> pendingUploadRepository.claim(pending.getId()) == 1)
+                .orElseThrow(() -> new NoSuchElementException("Upload not found"));
+        String storageKey = pendingUpload.getStorageKey();
+        
+        long size;
         try {
-            FileMetadata fileMetadata = fileMetadataRepository.findByIdAndUser(fileId, user)
-                    .orElseThrow(() -> new RuntimeException("File not found"));
-            
-            // Download bytes from S3
-            byte[] data = s3Service.downloadFile(fileMetadata.getFileName());
-            
-            return new ByteArrayResource(data);
-            
-        } catch (Exception ex) {
-            throw new RuntimeException("File not found or could not download from S3", ex);
+            presigning.completeUpload(storageKey, pendingUpload.getMultipartUploadId(),
+                    partETags == null ? List.of() : partETags);
+            size = presigning.verifyUpload(storageKey, pendingUpload.getContentHash());
+        } catch (IOException | RuntimeException ex) {
+            discardQuietly(presigning, pendingUpload);
+            throw new RuntimeException("Could not complete upload", ex);
+        }
+        if (size != pendingUpload.getFileSize()) {
+            discardQuietly(presigning, pendingUpload);
+            throw new IllegalArgumentException("Uploaded content does not match the declared size or hash");
+        }
+        
+        return saveFileMetadata(newFileMetadata(storageKey, null, size, pendingUpload.getOriginalFileName(),
+                pendingUpload.getFileType(), size, pendingUpload.getContentHash()), userId);
+    }
+    
+    // Opens a resumable upload; its chunks can then be sent in any order, in parallel, and again after a failure
+    public ResumableUpload startResumableUpload(Long userId, String fileName, String contentType, long size) {
+        MultipartStorageBackend multipart = multipartBackend()
+                .orElseThrow(() -> new IllegalStateException("Resumable uploads are not supported by this storage backend"));
+        if (!StringUtils.hasText(fileName) || size <= 0) {
+            throw new IllegalArgumentException("A file name and a size above zero are required");
+        }
+        if (size > resumableMaxFileSize.toBytes()) {
+            throw new IllegalArgumentException("File is larger than " + resumableMaxFileSize);
+        }
+        usageService.checkQuota(userId, size, 1);
+        String originalFilename = StringUtils.cleanPath(fileName);
+        String storageKey = newStorageKey(originalFilename);
+        
+        String multipartUploadId;
+        try {
+            multipartUploadId = multipart.createUpload(storageKey, contentType);
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not start upload", ex);
+        }
+        PendingUpload pendingUpload = pendingUploadRepository.save(new PendingUpload(UUID.randomUUID().toString(),
+                userId, storageKey, originalFilename, contentType, size, null, multipartUploadId,
+                LocalDateTime.now().plus(resumableSessionTimeout), multipart.partSize(size)));
+        return toResumableUpload(pendingUpload, List.of());
+    }
+    
+    public ResumableUpload getResumableUpload(Long userId, String uploadId) {
+        PendingUpload pendingUpload = findResumableUpload(userId, uploadId);
+        return toResumableUpload(pendingUpload, uploadedPartRepository.findByUploadIdOrderByPartNumber(uploadId));
+    }
+    
+    // Streams one chunk (from 0) straight into its storage part; the request body is never buffered whole
+    public ResumableUpload storeChunk(Long userId, String uploadId, int index, InputStream inputStream, long length) {
+        MultipartStorageBackend multipart = multipartBackend()
+                .orElseThrow(() -> new IllegalStateException("Resumable uploads are not supported by this storage backend"));
+        PendingUpload pendingUpload = findResumableUpload(userId, uploadId);
+        if (index < 0 || index >= chunkCount(pendingUpload)) {
+            throw new IllegalArgumentException("No chunk " + index + " in this upload");
+        }
+        long expectedLength = Math.min(pendingUpload.getChunkSize(),
+                pendingUpload.getFileSize() - index * pendingUpload.getChunkSize());
+        if (length != expectedLength) {
+            throw new IllegalArgumentException("Chunk " + index + " must be " + expectedLength + " bytes");
+        }
+        
+        int partNumber = index + 1;
+        String etag = join(storageMetrics.timePut(length, () -> CompletableFuture.completedFuture(
+                multipart.uploadPart(pendingUpload.getStorageKey(), pendingUpload.getMultipartUploadId(),
+                        partNumber, inputStream, length))));
+        recordPart(uploadId, partNumber, etag, length);
+        pendingUploadRepository.extend(uploadId, LocalDateTime.now().plus(resumableSessionTimeout));
+        return getResumableUpload(userId, uploadId);
+    }
+    
+    // Assembles the chunks and records the file. A failed attempt leaves the upload in place to be retried
+    public FileMetadata completeResumableUpload(Long userId, String uploadId) {
+        MultipartStorageBackend multipart = multipartBackend()
+                .orElseThrow(() -> new IllegalStateException("Resumable uploads are not supported by this storage backend"));
+        PendingUpload pendingUpload = findResumableUpload(userId, uploadId);
+        List<UploadedPart> parts = uploadedPartRepository.findByUploadIdOrderByPartNumber(uploadId);
+        int missing = chunkCount(pendingUpload) - parts.size();
+        if (missing > 0) {
+            throw new IllegalArgumentException(missing + " chunks have not been received");
+        }
+        
+        try {
+            multipart.completeUpload(pendingUpload.getStorageKey(), pendingUpload.getMultipartUploadId(),
+                    parts.stream().map(UploadedPart::getEtag).toList());
+        } catch (IOException | RuntimeException ex) {
+            throw new RuntimeException("Could not complete upload", ex);
+        }
+        // Of two concurrent completions, only one records the file
+        if (pendingUploadRepository.claim(uploadId) != 1) {
+            throw new NoSuchElementException("Upload not found");
+        }
+        uploadedPartRepository.deleteByUploadId(uploadId);
+        
+        long size = pendingUpload.getFileSize();
+        return saveFileMetadata(newFileMetadata(pendingUpload.getStorageKey(), null, size,
+                pendingUpload.getOriginalFileName(), pendingUpload.getFileType(), size, null), userId);
+    }
+    
+    public void abortResumableUpload(Long userId, String uploadId) {
+        MultipartStorageBackend multipart = multipartBackend()
+                .orElseThrow(() -> new IllegalStateException("Resumable uploads are not supported by this storage backend"));
+        PendingUpload pendingUpload = findResumableUpload(userId, uploadId);
+        if (pendingUploadRepository.claim(uploadId) == 1) {
+            discardQuietly(multipart, pendingUpload);
+        }
+    }
+    
+    // Discards direct uploads that were never completed and resumable uploads that went quiet
+    @Scheduled(fixedDelayString = "${storage.uploads.cleanup-interval:PT10M}")
+    public void expirePendingUploads() {
+        Optional<MultipartStorageBackend> multipart = multipartBackend();
+        if (multipart.isEmpty()) {
+            return;
+        }
+        for (PendingUpload pendingUpload : pendingUploadRepository.findByExpiresAtBefore(LocalDateTime.now())) {
+            if (pendingUploadRepository.claim(pendingUpload.getId()) == 1) {
+                discardQuietly(multipart.get(), pendingUpload);
+            }
+        }
+        uploadedPartRepository.deleteOrphans();
+    }
+    
+    public List<UploadResult> storeFiles(List<MultipartFile> files, Long userId) {
+        return join(storeFilesAsync(files, userId));
+    }
+    
+    // Uploads the files to storage in parallel, then inserts all metadata rows in one JDBC batch
+    public CompletableFuture<List<UploadResult>> storeFilesAsync(List<MultipartFile> files, Long userId) {
+        // Files are admitted in order while they fit in the quota; the rest fail without being stored
+        StorageUsage usage = usageService.getUsage(userId);
+        long admittedBytes = 0;
+        int admittedFiles = 0;
+        List<CompletableFuture<FileMetadata>> uploads = new ArrayList<>(files.size());
+        for (MultipartFile file : files) {
+            if (!usage.allows(admittedBytes + file.getSize(), admittedFiles + 1)) {
+                uploads.add(CompletableFuture.failedFuture(new QuotaExceededException(usage)));
+                continue;
+            }
+            admittedBytes += file.getSize();
+            admittedFiles++;
+            uploads.add(CompletableFuture.supplyAsync(() -> prepareFile(file), uploadExecutor)
+                    .thenCompose(Function.identity()));
+        }
+        
+        return CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0]))
+                .handleAsync((ignored, ex) -> saveUploads(files, uploads, userId), uploadExecutor);
+    }
+    
+    // Present when downloads are served straight from storage through a signed URL
+    public Optional<URL> getDownloadUrl(FileMetadata fileMetadata) {
+        if (isCompressed(fileMetadata) || fileMetadata.getStatus() == FileStatus.PENDING
+                || fileMetadata.getStorageTier() == StorageTier.COLD) {
+            // Storage would hand out the compressed bytes as-is, does not hold spooled ones yet, and cannot
+            // restore archived ones by itself, so these are still served through here
+            return Optional.empty();
+        }
+        return presigningBackend().map(presigning -> presigning.presignDownload(fileMetadata.getFileName(),
+                fileMetadata.getOriginalFileName(), fileMetadata.getFileType()));
+    }
+    
+    public ObjectContent openFile(FileMetadata fileMetadata, long start, long end) {
+        return join(openFileAsync(fileMetadata, start, end));
+    }
+    
+    public CompletableFuture<ObjectContent> openFileAsync(FileMetadata fileMetadata, long start, long end) {
+        return openFileAsync(fileMetadata, start, end, true);
+    }
+    
+    /**
+     * Completes once the bytes can be streamed; cache hits and blocking backends complete immediately.
+     * Bulk reads such as archives pass {@code populateCache = false} so they do not churn the cache.
+     * Compressed files are decompressed on the fly and can only be read whole.
+     */
+    public CompletableFuture<ObjectContent> openFileAsync(FileMetadata fileMetadata, long start, long end,
+                                                          boolean populateCache) {
+        if (!isCompressed(fileMetadata)) {
+            return openStoredAsync(fileMetadata, start, end, populateCache);
+        }
+        if (start != 0 || end >= 0) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Compressed files can only be read whole"));
+        }
+        return openStoredAsync(fileMetadata, 0, -1, populateCache).thenApply(ContentCompression::decompress);
+    }
+    
+    // The bytes exactly as stored, for passing compressed content through with its Content-Encoding
+    public CompletableFuture<ObjectContent> openStoredFileAsync(FileMetadata fileMetadata) {
+        return openStoredAsync(fileMetadata, 0, -1, true);
+    }
+    
+    public static boolean isCompressed(FileMetadata fileMetadata) {
+        return fileMetadata.getContentEncoding() != null;
+    }
+    
+    public static long getStoredSize(FileMetadata fileMetadata) {
+        return fileMetadata.getStoredSize() != null ? fileMetadata.getStoredSize() : fileMetadata.getFileSize();
+    }
+    
+    private CompletableFuture<ObjectContent> openStoredAsync(FileMetadata fileMetadata, long start, long end,
+                                                             boolean populateCache) {
+        String storageKey = fileMetadata.getFileName();
+        long storedSize = getStoredSize(fileMetadata);
+        if (uploadSpool != null && fileMetadata.getStatus() == FileStatus.PENDING) {
+            // Falls through to storage when the push completed in the meantime
+            ObjectContent spooled = uploadSpool.read(storageKey, start, end);
+            if (spooled != null) {
+                return CompletableFuture.completedFuture(spooled);
+            }
+        }
+        if (objectCache != null) {
+            ObjectContent cached = objectCache.read(storageKey, start, end);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
         }
+        
+        // Only full reads populate the cache; ranged misses go straight to storage
+        boolean populate = populateCache && objectCache != null && start == 0 && end < 0
+                && objectCache.isCacheable(storedSize);
+        long length = end < 0 ? storedSize - start : end - start + 1;
+        return storageMetrics.timeGet(length, () -> storageBackend.readAsync(storageKey, start, end)).handle((content, ex) -> {
+            if (ex != null) {
+                throw new RuntimeException("Could not read file from storage", unwrap(ex));
+            }
+            return populate ? objectCache.populate(storageKey, storedSize, content) : content;
+        });
     }
     
-    public List<FileMetadata> getUserFiles(User user) {
-        return fileMetadataRepository.findByUserOrderByUploadedAtDesc(user);
+    public FilePage getUserFilesPage(Long userId, String cursor, int pageSize) {
+        // Fetch one extra row to learn whether another page follows
+        Pageable limit = PageRequest.of(0, pageSize + 1);
+        List<FileSummary> files;
+        if (cursor == null || cursor.isBlank()) {
+            files = fileMetadataRepository.findFirstPage(userId, limit);
+        } else {
+            FileCursor position = FileCursor.decode(cursor);
+            files = fileMetadataRepository.findPageAfter(userId, position.uploadedAt(), position.id(), limit);
+        }
+        
+        if (files.size() <= pageSize) {
+            return new FilePage(files, null);
+        }
+        List<FileSummary> page = files.subList(0, pageSize);
+        return new FilePage(page, FileCursor.after(page.get(pageSize - 1)).encode());
     }
     
-    public void deleteFile(Long fileId, User user) {
+    @CacheEvict(cacheNames = "fileMetadata")
+    public void deleteFile(Long fileId, Long userId) {
         try {
-            FileMetadata fileMetadata = fileMetadataRepository.findByIdAndUser(fileId, user)
+            FileMetadata fileMetadata = fileMetadataRepository.findByIdAndUserId(fileId, userId)
                     .orElseThrow(() -> new RuntimeException("File not found"));
             
-            // Delete from S3
-            s3Service.deleteFile(fileMetadata.getFileName());
+            // Delete metadata from database, together with its share of the user's usage
+            boolean deleted = Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+                if (fileMetadataRepository.deleteByIdIn(List.of(fileId)) == 0) {
+                    return false;
+                }
+                usageService.record(userId, -fileMetadata.getFileSize(), -1);
+                return true;
+            }));
+            if (!deleted) {
+                // A concurrent delete got there first and releases the content itself
+                return;
+            }
             
-            // Delete metadata from database
-            fileMetadataRepository.delete(fileMetadata);
+            // Delete from storage once nothing else references the content
+            if (fileMetadata.getContentHash() == null) {
+                deleteStoredBytes(fileMetadata.getFileName());
+            } else {
+                releaseStoredObject(fileMetadata.getContentHash(), fileMetadata.getFileName());
+            }
             
         } catch (Exception ex) {
             throw new RuntimeException("Could not delete file", ex);
         }
     }
     
-    public FileMetadata getFileMetadata(Long fileId, User user) {
-        return fileMetadataRepository.findByIdAndUser(fileId, user)
+    // Deletes the given ids and/or everything uploaded before olderThan; either may be null
+    public BulkDeleteResult deleteFiles(Long userId, Collection<Long> fileIds, LocalDateTime olderThan) {
+        Map<Long, FileReference> files = new LinkedHashMap<>();
+        List<Long> notFound = new ArrayList<>();
+        
+        if (fileIds != null && !fileIds.isEmpty()) {
+            List<Long> requested = new ArrayList<>(new LinkedHashSet<>(fileIds));
+            for (List<Long> chunk : partition(requested)) {
+                fileMetadataRepository.findReferencesByIds(userId, chunk).forEach(file -> files.put(file.getId(), file));
+            }
+            requested.stream().filter(id -> !files.containsKey(id)).forEach(notFound::add);
+        }
+        if (olderThan != null) {
+            fileMetadataRepository.findReferencesOlderThan(userId, olderThan).forEach(file -> files.putIfAbsent(file.getId(), file));
+        }
+        
+        return deleteFileReferences(userId, new ArrayList<>(files.values()), notFound);
+    }
+    
+    // Removes rows found to be broken, e.g. by reconciliation, the same way a user's bulk delete would
+    public BulkDeleteResult removeFiles(Long userId, List<FileReference> files) {
+        return deleteFileReferences(userId, files, List.of());
+    }
+    
+    public BulkDeleteResult deleteAllFiles(Long userId) {
+        return deleteFileReferences(userId, fileMetadataRepository.findReferencesByUserId(userId), List.of());
+    }
+    
+    // Keyed by (fileId, userId), so a cached entry is only ever served to its owner
+    @Cacheable(cacheNames = "fileMetadata")
+    public FileMetadata getFileMetadata(Long fileId, Long userId) {
+        return fileMetadataRepository.findByIdAndUserId(fileId, userId)
                 .orElseThrow(() -> new RuntimeException("File not found"));
     }
+    
+    public DeduplicationReport getDeduplicationReport() {
+        long logicalBytes = fileMetadataRepository.sumFileBytes();
+        long storedBytes = storedObjectRepository.sumStoredBytes() + fileMetadataRepository.sumUndeduplicatedBytes();
+        return new DeduplicationReport(fileMetadataRepository.count(), logicalBytes,
+                storedObjectRepository.countObjects(), storedBytes);
+    }
+    
+    private BulkDeleteResult deleteFileReferences(Long userId, List<FileReference> files, List<Long> notFound) {
+        // Metadata and reference counts change in one transaction; storage is only touched after it commits
+        List<String> releasedKeys = transactionTemplate.execute(status -> releaseReferences(userId, files));
+        
+        fileMetadataCache.evict(userId, files);
+        
+        if (objectCache != null) {
+            releasedKeys.forEach(objectCache::invalidate);
+        }
+        if (uploadSpool != null) {
+            releasedKeys.forEach(uploadSpool::discard);
+        }
+        Map<String, String> failedKeys = Map.of();
+        if (!releasedKeys.isEmpty()) {
+            long start = System.nanoTime();
+            failedKeys = storageBackend.deleteAll(releasedKeys);
+            storageMetrics.recordDelete(start, failedKeys.isEmpty());
+        }
+        
+        return new BulkDeleteResult(files.size(), notFound, failedKeys);
+    }
+    
+    private List<String> releaseReferences(Long userId, List<FileReference> files) {
+        List<String> releasedKeys = new ArrayList<>();
+        Map<String, Integer> referencesByHash = new HashMap<>();
+        List<Long> fileIds = new ArrayList<>(files.size());
+        long releasedBytes = 0;
+        for (FileReference file : files) {
+            fileIds.add(file.getId());
+            releasedBytes += file.getFileSize();
+            if (file.getContentHash() == null) {
+                releasedKeys.add(file.getFileName());
+            } else {
+                referencesByHash.merge(file.getContentHash(), 1, Integer::sum);
+            }
+        }
+        
+        for (List<Long> chunk : partition(fileIds)) {
+            fileMetadataRepository.deleteByIdIn(chunk);
+        }
+        usageService.record(userId, -releasedBytes, -files.size());
+        
+        if (!referencesByHash.isEmpty()) {
+            jdbcTemplate.batchUpdate(
+                    "update stored_objects set reference_count = reference_count - ? where content_hash = ?",
+                    new ArrayList<>(referencesByHash.entrySet()), BATCH_SIZE,
+                    (statement, entry) -> {
+                        statement.setInt(1, entry.getValue());
+                        statement.setString(2, entry.getKey());
+                    });
+            
+            for (List<String> chunk : partition(new ArrayList<>(referencesByHash.keySet()))) {
+                List<StoredObject> unreferenced = storedObjectRepository.findUnreferencedForUpdate(chunk);
+                storedObjectRepository.deleteAllInBatch(unreferenced);
+                unreferenced.forEach(storedObject -> releasedKeys.add(storedObject.getStorageKey()));
+            }
+        }
+        return releasedKeys;
+    }
+    
+    private static <T> List<List<T>> partition(List<T> items) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < items.size(); i += BATCH_SIZE) {
+            chunks.add(items.subList(i, Math.min(i + BATCH_SIZE, items.size())));
+        }
+        return chunks;
+    }
+    
+    private List<UploadResult> saveUploads(List<MultipartFile> files, List<CompletableFuture<FileMetadata>> uploads,
+                                           Long userId) {
+        UploadResult[] results = new UploadResult[files.size()];
+        List<FileMetadata> prepared = new ArrayList<>();
+        List<Integer> preparedIndexes = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            String originalFilename = files.get(i).getOriginalFilename();
+            try {
+                FileMetadata fileMetadata = uploads.get(i).join();
+                fileMetadata.setUser(userRepository.getReferenceById(userId));
+                prepared.add(fileMetadata);
+                preparedIndexes.add(i);
+            } catch (CompletionException ex) {
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                results[i] = UploadResult.failed(originalFilename, cause.getMessage());
+            }
+        }
+        
+        if (!prepared.isEmpty()) {
+            long preparedBytes = prepared.stream().mapToLong(FileMetadata::getFileSize).sum();
+            List<StoredObject> contents = prepared.stream().map(FileStorageService::storedContent).toList();
+            List<String> storageKeys = prepared.stream().map(FileMetadata::getFileName).toList();
+            try {
+                List<FileMetadata> saved = saveInTransaction(() -> {
+                    for (int i = 0; i < prepared.size(); i++) {
+                        shareContent(prepared.get(i), contents.get(i));
+                    }
+                    List<FileMetadata> rows = fileMetadataRepository.saveAll(prepared);
+                    usageService.record(userId, preparedBytes, rows.size());
+                    return rows;
+                });
+                for (int i = 0; i < saved.size(); i++) {
+                    results[preparedIndexes.get(i)] = UploadResult.stored(saved.get(i));
+                    dropDuplicate(storageKeys.get(i), saved.get(i));
+                    submitIfPending(saved.get(i));
+                }
+            } catch (RuntimeException ex) {
+                storageKeys.forEach(this::deleteQuietly);
+                for (int i = 0; i < prepared.size(); i++) {
+                    results[preparedIndexes.get(i)] = UploadResult.failed(prepared.get(i).getOriginalFileName(),
+                            "Could not save file metadata");
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+    
+    // Stores the bytes and returns the unsaved metadata row; identical content is shared when the row is saved
+    private CompletableFuture<FileMetadata> prepareFile(MultipartFile file) {
+        String originalFilename = StringUtils.cleanPath(file.getOriginalFilename());
+        String contentType = file.getContentType();
+        
+        // Every stored object gets its own key, so a concurrent release of older content can never remove it
+        String storageKey = newStorageKey(originalFilename);
+        return storeBytes(storageKey, file).handle((storedObject, ex) -> {
+            if (ex != null) {
+                throw new RuntimeException("Could not store file. Please try again!", unwrap(ex));
+            }
+            return newFileMetadata(storedObject, originalFilename, contentType);
+        });
+    }
+    
+    private FileMetadata newFileMetadata(StoredObject storedObject, String originalFilename, String contentType) {
+        return newFileMetadata(storedObject.getStorageKey(), storedObject.getEncoding(),
+                storedObject.getStoredSize() != null ? storedObject.getStoredSize() : storedObject.getSize(),
+                originalFilename, contentType, storedObject.getSize(), storedObject.getContentHash());
+    }
+    
+    private FileMetadata newFileMetadata(String storageKey, String contentEncoding, long storedSize,
+                                         String originalFilename, String contentType, long size, String contentHash) {
+        FileMetadata fileMetadata = new FileMetadata();
+        fileMetadata.setFileName(storageKey);
+        fileMetadata.setOriginalFileName(originalFilename);
+        fileMetadata.setFileType(contentType);
+        fileMetadata.setFileSize(size);
+        fileMetadata.setFilePath(storageBackend.getLocation(storageKey));
+        fileMetadata.setContentHash(contentHash);
+        fileMetadata.setContentEncoding(contentEncoding);
+        fileMetadata.setStoredSize(storedSize);
+        // Uploads that were never hashed get one from their storage key, which no other upload shares
+        fileMetadata.setEtag(contentHash != null ? contentHash
+                : HexFormat.of().formatHex(sha256().digest(storageKey.getBytes(StandardCharsets.UTF_8))));
+        fileMetadata.setStatus(initialStatus(storageKey));
+        return fileMetadata;
+    }
+    
+    // Content shared with an upload still in the spool waits for the same push
+    private FileStatus initialStatus(String storageKey) {
+        return uploadSpool != null && uploadSpool.contains(storageKey) ? FileStatus.PENDING : FileStatus.AVAILABLE;
+    }
+    
+    private FileMetadata saveFileMetadata(FileMetadata fileMetadata, Long userId) {
+        fileMetadata.setUser(userRepository.getReferenceById(userId));
+        StoredObject content = storedContent(fileMetadata);
+        String storageKey = fileMetadata.getFileName();
+        
+        FileMetadata saved;
+        try {
+            // The row, its reference to the stored content and the user's usage change in one transaction
+            saved = saveInTransaction(() -> {
+                shareContent(fileMetadata, content);
+                FileMetadata row = fileMetadataRepository.save(fileMetadata);
+                usageService.record(userId, row.getFileSize(), 1);
+                return row;
+            });
+        } catch (RuntimeException ex) {
+            deleteQuietly(storageKey);
+            throw ex;
+        }
+        dropDuplicate(storageKey, saved);
+        submitIfPending(saved);
+        return saved;
+    }
+    
+    // A concurrent upload of the same content can register it first; the next attempt then references that
+    private <T> T saveInTransaction(Supplier<T> work) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return transactionTemplate.execute(status -> work.get());
+            } catch (DataIntegrityViolationException ex) {
+                if (attempt == MAX_SAVE_ATTEMPTS) {
+                    throw ex;
+                }
+            }
+        }
+    }
+    
+    // The freshly stored copy a row was prepared with, to be registered unless identical content already is
+    private static StoredObject storedContent(FileMetadata fileMetadata) {
+        if (fileMetadata.getContentHash() == null) {
+            return null;
+        }
+        return new StoredObject(null, fileMetadata.getContentHash(), fileMetadata.getFileName(),
+                fileMetadata.getFileSize(), 1L, null, fileMetadata.getContentEncoding(), fileMetadata.getStoredSize());
+    }
+    
+    /**
+     * Points the row at a stored object with its content, adding a reference, or else registers the fresh copy.
+     * Runs in the transaction that saves the row, so a reference is never counted without the row. Objects whose
+     * references have run out are being released and are not taken up again. Uploads without a hash share nothing.
+     */
+    private void shareContent(FileMetadata fileMetadata, StoredObject content) {
+        if (content == null) {
+            return;
+        }
+        StoredObject storedObject;
+        if (storedObjectRepository.incrementReferences(content.getContentHash()) == 1) {
+            storedObject = storedObjectRepository.findByContentHash(content.getContentHash()).orElseThrow();
+        } else {
+            storedObject = storedObjectRepository.saveAndFlush(new StoredObject(null, content.getContentHash(),
+                    content.getStorageKey(), content.getSize(), 1L, null, content.getEncoding(), content.getStoredSize()));
+        }
+        fileMetadata.setFileName(storedObject.getStorageKey());
+        fileMetadata.setFilePath(storageBackend.getLocation(storedObject.getStorageKey()));
+        fileMetadata.setContentEncoding(storedObject.getEncoding());
+        fileMetadata.setStoredSize(storedObject.getStoredSize() != null ? storedObject.getStoredSize() : storedObject.getSize());
+        fileMetadata.setStatus(initialStatus(storedObject.getStorageKey()));
+    }
+    
+    // Drops the fresh copy once the saved row references identical content stored before it
+    private void dropDuplicate(String storageKey, FileMetadata saved) {
+        if (!storageKey.equals(saved.getFileName())) {
+            deleteQuietly(storageKey);
+        }
+    }
+    
+    // Spooled bytes are only pushed once a committed row refers to them
+    private void submitIfPending(FileMetadata fileMetadata) {
+        if (uploadSpool != null && fileMetadata.getStatus() == FileStatus.PENDING) {
+            uploadSpool.submit(fileMetadata.getFileName());
+        }
+    }
+    
+    private Optional<PresigningStorageBackend> presigningBackend() {
+        if (presignedEnabled && storageBackend instanceof PresigningStorageBackend presigning) {
+            return Optional.of(presigning);
+        }
+        return Optional.empty();
+    }
+    
+    private Optional<MultipartStorageBackend> multipartBackend() {
+        if (storageBackend instanceof MultipartStorageBackend multipart) {
+            return Optional.of(multipart);
+        }
+        return Optional.empty();
+    }
+    
+    private PendingUpload findResumableUpload(Long userId, String uploadId) {
+        return pendingUploadRepository.findByIdAndUserId(uploadId, userId)
+                .filter(pending -> pending.getChunkSize() != null)
+                .orElseThrow(() -> new NoSuchElementException("Upload not found"));
+    }
+    
+    private static int chunkCount(PendingUpload pendingUpload) {
+        return (int) ((pendingUpload.getFileSize() + pendingUpload.getChunkSize() - 1) / pendingUpload.getChunkSize());
+    }
+    
+    private static ResumableUpload toResumableUpload(PendingUpload pendingUpload, List<UploadedPart> parts) {
+        List<Integer> receivedChunks = parts.stream().map(part -> part.getPartNumber() - 1).toList();
+        // Parts are in part order, so the gap-free run from the start ends at the first missing number
+        long offset = 0;
+        int nextPartNumber = 1;
+        for (UploadedPart part : parts) {
+            if (part.getPartNumber() != nextPartNumber++) {
+                break;
+            }
+            offset += part.getSize();
+        }
+        return new ResumableUpload(pendingUpload.getId(), pendingUpload.getFileSize(), pendingUpload.getChunkSize(),
+                chunkCount(pendingUpload), receivedChunks, offset, pendingUpload.getExpiresAt());
+    }
+    
+    private void recordPart(String uploadId, int partNumber, String etag, long size) {
+        UploadedPart part = uploadedPartRepository.findByUploadIdAndPartNumber(uploadId, partNumber)
+                .orElseGet(() -> new UploadedPart(null, uploadId, partNumber, null, null));
+        part.setEtag(etag);
+        part.setSize(size);
+        try {
+            uploadedPartRepository.saveAndFlush(part);
+        } catch (DataIntegrityViolationException ex) {
+            // The same chunk was sent twice at once; whichever ETag is kept, a mismatch only fails completion
+            UploadedPart existing = uploadedPartRepository.findByUploadIdAndPartNumber(uploadId, partNumber)
+                    .orElseThrow(() -> ex);
+            existing.setEtag(etag);
+            uploadedPartRepository.saveAndFlush(existing);
+        }
+    }
+    
+    private void discardQuietly(MultipartStorageBackend multipart, PendingUpload pendingUpload) {
+        uploadedPartRepository.deleteByUploadId(pendingUpload.getId());
+        try {
+            if (pendingUpload.getMultipartUploadId() != null) {
+                multipart.abortUpload(pendingUpload.getStorageKey(), pendingUpload.getMultipartUploadId());
+            }
+        } catch (IOException | RuntimeException ex) {
+            // Already completed or aborted; the object itself is removed below
+            logger.debug("Could not abort upload {}", pendingUpload.getId(), ex);
+        }
+        try {
+            multipart.delete(pendingUpload.getStorageKey());
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Could not discard upload {} at {}", pendingUpload.getId(), pendingUpload.getStorageKey(), ex);
+        }
+    }
+    
+    private void deleteQuietly(String storageKey) {
+        try {
+            deleteStoredBytes(storageKey);
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Could not delete stored object {}", storageKey, ex);
+        }
+    }
+    
+    /**
+     * Stores the upload, compressed when that pays off, and hashes it in the same pass: while compressing,
+     * or on its way to the spool or the backend. Returns the unregistered object.
+     */
+    private CompletableFuture<StoredObject> storeBytes(String storageKey, MultipartFile file) {
+        long size = file.getSize();
+        MessageDigest digest = sha256();
+        String contentHash = null;
+        try {
+            if (contentCompression.shouldCompress(file)) {
+                Path compressed;
+                try (InputStream inputStream = new DigestInputStream(file.getInputStream(), digest)) {
+                    compressed = contentCompression.compress(inputStream);
+                }
+                contentHash = HexFormat.of().formatHex(digest.digest());
+                try {
+                    long compressedSize = Files.size(compressed);
+                    if (contentCompression.isWorthwhile(compressedSize, size)) {
+                        StoredObject storedObject = new StoredObject(null, contentHash, storageKey, size, 1L, null,
+                                ContentCompression.GZIP, compressedSize);
+                        if (uploadSpool != null) {
+                            try (InputStream inputStream = Files.newInputStream(compressed)) {
+                                uploadSpool.write(storageKey, file.getContentType(), inputStream);
+                            }
+                            return CompletableFuture.completedFuture(storedObject);
+                        }
+                        // The compressed copy is stored synchronously, so it can be removed straight after
+                        return storageMetrics.timePut(compressedSize, () -> {
+                            try (InputStream inputStream = Files.newInputStream(compressed)) {
+                                storageBackend.store(storageKey, inputStream, compressedSize, file.getContentType());
+                            }
+                            return CompletableFuture.<Void>completedFuture(null);
+                        }).thenApply(ignored -> storedObject);
+                    }
+                } finally {
+                    Files.deleteIfExists(compressed);
+                }
+            }
+            
+            // Unless the compression pass already hashed it, the upload is hashed on its way through
+            CompletableFuture<Void> stored;
+            try (InputStream inputStream = contentHash == null
+                    ? new DigestInputStream(file.getInputStream(), digest) : file.getInputStream()) {
+                if (uploadSpool != null) {
+                    // Write-behind: a local, durable copy is enough to answer; a worker pushes it to storage
+                    uploadSpool.write(storageKey, file.getContentType(), inputStream);
+                    stored = CompletableFuture.completedFuture(null);
+                } else {
+                    stored = storageMetrics.timePut(size,
+                            () -> storageBackend.storeAsync(storageKey, inputStream, size, file.getContentType()));
+                }
+            }
+            // Backends read the whole stream before storeAsync returns, so the digest is complete here
+            StoredObject storedObject = new StoredObject(null,
+                    contentHash != null ? contentHash : HexFormat.of().formatHex(digest.digest()),
+                    storageKey, size, 1L, null, null, size);
+            return stored.thenApply(ignored -> storedObject);
+        } catch (IOException | RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+    
+    private void releaseStoredObject(String contentHash, String storageKey) throws IOException {
+        storedObjectRepository.decrementReferences(contentHash);
+        if (storedObjectRepository.deleteIfUnreferenced(contentHash) == 1) {
+            deleteStoredBytes(storageKey);
+        }
+    }
+    
+    private void deleteStoredBytes(String storageKey) throws IOException {
+        if (objectCache != null) {
+            objectCache.invalidate(storageKey);
+        }
+        if (uploadSpool != null) {
+            uploadSpool.discard(storageKey);
+        }
+        long start = System.nanoTime();
+        boolean deleted = false;
+        try {
+            storageBackend.delete(storageKey);
+            deleted = true;
+        } finally {
+            storageMetrics.recordDelete(start, deleted);
+        }
+    }
+    
+    // Rethrows the cause of a failed future so synchronous callers see the same exceptions as before
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw ex;
+        }
+    }
+    
+    // Storage keys stay unique per stored object while keeping the original name readable in the bucket
+    public static String newStorageKey(String originalFilename) {
+        return UUID.randomUUID().toString() + "-" + originalFilename;
+    }
+    
+    private static Throwable unwrap(Throwable ex) {
+        return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+    }
+    
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
 }
@@ -0,0 +1,22 @@
+package com.filestorage.service;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+
+import java.util.Collection;
+
+// Authenticated principal that carries the database id, so request handlers never look the user up again
+public class FileStorageUserDetails extends User {
+    
+    private final Long userId;
+    
+    public FileStorageUserDetails(Long userId, String username, String password, boolean enabled,
+                                  Collection<? extends GrantedAuthority> authorities) {
+        super(username, password, enabled, true, true, true, authorities);
+        this.userId = userId;
+    }
+    
+    public Long getUserId() {
+        return userId;
+    }
+}
@@ -0,0 +1,6 @@
+package com.filestorage.service;
+
+import java.time.Instant;
+
+public record IssuedToken(String token, Instant expiresAt) {
+}
@@ -0,0 +1,7 @@
+package com.filestorage.service;
+
+import java.time.Instant;
+
+// An object found when listing a storage backend
+public record ListedObject(String key, Instant lastModified) {
+}
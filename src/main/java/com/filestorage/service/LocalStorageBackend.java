@@ -0,0 +1,163 @@
+package com.filestorage.service;
+
+import com.filestorage.model.StorageTier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+@Service
+@ConditionalOnProperty(name = "storage.backend", havingValue = "local", matchIfMissing = true)
+public class LocalStorageBackend implements TieredStorageBackend {
+    
+    private final Path rootDirectory;
+    // The cold tier: typically a mount on cheaper disks; only created once something moves there
+    private final Path coldDirectory;
+    
+    public LocalStorageBackend(@Value("${file.upload-dir:./uploads}") String uploadDir,
+                               @Value("${storage.lifecycle.cold-directory:./uploads-cold}") String coldDir) throws IOException {
+        this.rootDirectory = Paths.get(uploadDir).toAbsolutePath().normalize();
+        this.coldDirectory = Paths.get(coldDir).toAbsolutePath().normalize();
+        Files.createDirectories(rootDirectory);
+    }
+    
+    @Override
+    public void store(String key, InputStream inputStream, long size, String contentType) throws IOException {
+        Path target = resolve(key);
+        Files.createDirectories(target.getParent());
+        Path tempFile = Files.createTempFile(target.getParent(), ".upload-", ".tmp");
+        try {
+            // Let the channel pull from the stream straight into the file
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+                 ReadableByteChannel source = Channels.newChannel(inputStream)) {
+                long position = 0;
+                long transferred;
+                while ((transferred = channel.transferFrom(source, position, Long.MAX_VALUE - position)) > 0) {
+                    position += transferred;
+                }
+            }
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+    
+    @Override
+    public void store(String key, MultipartFile file) throws IOException {
+        Path target = resolve(key);
+        Files.createDirectories(target.getParent());
+        Path tempFile = Files.createTempFile(target.getParent(), ".upload-", ".tmp");
+        try {
+            // When the multipart spool is on the same file system this is a rename, not a copy
+            file.transferTo(tempFile.toFile());
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+    
+    @Override
+    public ObjectContent read(String key, long start, long end) throws IOException {
+        // The standard tier first; a file moved to the cold tier in the meantime is found there
+        try {
+            return FileChannelContent.open(resolve(rootDirectory, key), start, end);
+        } catch (NoSuchFileException ex) {
+            Path cold = resolve(coldDirectory, key);
+            if (!Files.isRegularFile(cold)) {
+                throw new FileNotFoundException("File not found: " + key);
+            }
+            return FileChannelContent.open(cold, start, end);
+        }
+    }
+    
+    @Override
+    public boolean exists(String key) {
+        return Files.isRegularFile(resolve(rootDirectory, key)) || Files.isRegularFile(resolve(coldDirectory, key));
+    }
+    
+    @Override
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(resolve(rootDirectory, key));
+        Files.deleteIfExists(resolve(coldDirectory, key));
+    }
+    
+    @Override
+    public void moveToTier(String key, StorageTier tier) throws IOException {
+        Path source = resolve(tier == StorageTier.COLD ? rootDirectory : coldDirectory, key);
+        Path target = resolve(tier == StorageTier.COLD ? coldDirectory : rootDirectory, key);
+        if (!Files.isRegularFile(source)) {
+            if (Files.isRegularFile(target)) {
+                return;
+            }
+            throw new FileNotFoundException("File not found: " + key);
+        }
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            // Another file system: copy under a temporary name, then swap it in before removing the original
+            Path tempFile = Files.createTempFile(target.getParent(), ".upload-", ".tmp");
+            try {
+                Files.copy(source, tempFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            Files.delete(source);
+        }
+    }
+    
+    @Override
+    public Stream<ListedObject> list() throws IOException {
+        Stream<ListedObject> objects = list(rootDirectory);
+        if (!Files.isDirectory(coldDirectory)) {
+            return objects;
+        }
+        // Closing the concatenation closes both walks
+        return Stream.concat(objects, list(coldDirectory));
+    }
+    
+    @Override
+    public String getLocation(String key) {
+        return resolve(key).toUri().toString();
+    }
+    
+    private Path resolve(String key) {
+        return resolve(rootDirectory, key);
+    }
+    
+    private static Path resolve(Path directory, String key) {
+        Path path = directory.resolve(key).normalize();
+        if (!path.startsWith(directory) || path.equals(directory)) {
+            throw new IllegalArgumentException("Invalid storage key: " + key);
+        }
+        return path;
+    }
+    
+    // Skips the temporary files of stores still in progress
+    private static Stream<ListedObject> list(Path directory) throws IOException {
+        return Files.walk(directory)
+                .filter(path -> !path.getFileName().toString().startsWith(".upload-"))
+                .filter(Files::isRegularFile)
+                .map(path -> {
+                    try {
+                        return new ListedObject(directory.relativize(path).toString().replace('\\', '/'),
+                                Files.getLastModifiedTime(path).toInstant());
+                    } catch (IOException ex) {
+                        // Deleted while listing
+                        return null;
+                    }
+                })
+                .filter(Objects::nonNull);
+    }
+}
@@ -0,0 +1,28 @@
+package com.filestorage.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * A backend that can assemble an object from separately stored parts, so a large upload can be
+ * sent in pieces, in any order, and picked up again after a dropped connection.
+ */
+public interface MultipartStorageBackend extends StorageBackend {
+    
+    // Part size for an object of this size: the configured size, or larger when it would need too many parts
+    long partSize(long size);
+    
+    // Starts a multipart upload and returns its id
+    String createUpload(String key, String contentType) throws IOException;
+    
+    // Stores part partNumber (from 1) and returns its ETag; storing the same part again replaces it
+    String uploadPart(String key, String multipartUploadId, int partNumber, InputStream inputStream, long size)
+            throws IOException;
+    
+    // Assembles the parts, in part order; a no-op for single PUTs (null multipartUploadId)
+    void completeUpload(String key, String multipartUploadId, List<String> partETags) throws IOException;
+    
+    // Discards an upload that was never completed, and its parts
+    void abortUpload(String key, String multipartUploadId) throws IOException;
+}
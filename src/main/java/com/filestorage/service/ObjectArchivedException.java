@@ -0,0 +1,18 @@
+package com.filestorage.service;
+
+import java.time.Duration;
+
+// Raised when an object on an archive storage class has to be restored before it can be read; a restore has been requested
+public class ObjectArchivedException extends RuntimeException {
+    
+    private final Duration retryAfter;
+    
+    public ObjectArchivedException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+    
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,236 @@
+package com.filestorage.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Read-through cache of whole objects on a local disk tier, so hot files are served without a
+ * storage round trip and without holding their bytes on the heap. The in-memory index is a
+ * Caffeine cache weighted by object size; its W-TinyLFU admission keeps one-off large reads
+ * from evicting frequently read objects.
+ */
+@Component
+@ConditionalOnProperty(name = "storage.cache.enabled", havingValue = "true")
+public class ObjectCache {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ObjectCache.class);
+    
+    // Names of the files this cache writes: a random UUID, with ".tmp" while being populated
+    private static final Pattern CACHE_FILE_NAME = Pattern.compile(
+            "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}(\\.tmp)?");
+    
+    private final Path directory;
+    private final long maxObjectSize;
+    private final Cache<String, CachedFile> entries;
+    // Generation of each key being populated; invalidate bumps it so an in-flight populate does not publish stale bytes
+    private final Map<String, Long> populating = new ConcurrentHashMap<>();
+    
+    private final Counter bytesServed;
+    private final Counter bytesFetched;
+    
+    public ObjectCache(@Value("${storage.cache.directory:${java.io.tmpdir}/filestorage-cache}") String directory,
+                       @Value("${storage.cache.max-size:2GB}") DataSize maxSize,
+                       @Value("${storage.cache.max-object-size:64MB}") DataSize maxObjectSize,
+                       MeterRegistry meterRegistry) throws IOException {
+        this.directory = Paths.get(directory).toAbsolutePath().normalize();
+        this.maxObjectSize = maxObjectSize.toBytes();
+        
+        // Entries are not recovered across restarts, so drop the files an earlier run left. The directory is
+        // configurable and may hold other files, so only ones named like cache files are removed
+        Files.createDirectories(this.directory);
+        try (Stream<Path> files = Files.list(this.directory)) {
+            files.filter(file -> CACHE_FILE_NAME.matcher(file.getFileName().toString()).matches()
+                            && Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS))
+                    .forEach(ObjectCache::deleteQuietly);
+        }
+        
+        // Weights are in KiB so that multi-GB caches fit Caffeine's int weights
+        this.entries = Caffeine.newBuilder()
+                .maximumWeight(Math.max(maxSize.toKilobytes(), 1))
+                .weigher((String key, CachedFile file) ->
+                        (int) Math.min(Integer.MAX_VALUE, Math.max(file.size() / 1024, 1)))
+                .removalListener((String key, CachedFile file, RemovalCause cause) -> deleteQuietly(file.path()))
+                .recordStats()
+                .build();
+        
+        CaffeineCacheMetrics.monitor(meterRegistry, entries, "objectCache");
+        this.bytesServed = Counter.builder("storage.cache.bytes.served")
+                .description("Bytes served from the object cache instead of storage")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.bytesFetched = Counter.builder("storage.cache.bytes.fetched")
+                .description("Bytes of cacheable objects read from storage on a miss")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("storage.cache.size", entries, cache -> cache.policy().eviction()
+                        .map(eviction -> eviction.weightedSize().orElse(0L) * 1024.0).orElse(0.0))
+                .description("Approximate bytes held by the object cache")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+    
+    public boolean isCacheable(long size) {
+        return size <= maxObjectSize;
+    }
+    
+    // Returns null on a miss
+    public ObjectContent read(String key, long start, long end) {
+        CachedFile file = entries.getIfPresent(key);
+        if (file == null) {
+            return null;
+        }
+        try {
+            FileChannelContent content = FileChannelContent.open(file.path(), start, end);
+            bytesServed.increment(content.length());
+            return content;
+        } catch (IOException ex) {
+            // The file vanished underneath us; treat it as a miss
+            entries.invalidate(key);
+            return null;
+        }
+    }
+    
+    /**
+     * Wraps a full read from storage so the bytes are written to the disk tier as they are served.
+     * The entry is only published once the whole object has been read.
+     */
+    public ObjectContent populate(String key, long size, ObjectContent source) {
+        bytesFetched.increment(size);
+        if (populating.putIfAbsent(key, 0L) != null) {
+            return source;
+        }
+        
+        Path tempFile = directory.resolve(UUID.randomUUID() + ".tmp");
+        OutputStream spool;
+        try {
+            spool = Files.newOutputStream(tempFile);
+        } catch (IOException ex) {
+            populating.remove(key);
+            return source;
+        }
+        
+        return new ObjectContent() {
+            private long copied;
+            private boolean failed;
+            
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return new FilterInputStream(source.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0) {
+                            spool(new byte[] {(byte) b}, 0, 1);
+                        }
+                        return b;
+                    }
+                    
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int read = super.read(buffer, offset, length);
+                        if (read > 0) {
+                            spool(buffer, offset, read);
+                        }
+                        return read;
+                    }
+                };
+            }
+            
+            private void spool(byte[] buffer, int offset, int length) {
+                if (failed) {
+                    return;
+                }
+                try {
+                    spool.write(buffer, offset, length);
+                    copied += length;
+                } catch (IOException ex) {
+                    failed = true;
+                }
+            }
+            
+            @Override
+            public void close() throws IOException {
+                try {
+                    source.close();
+                } finally {
+                    finishPopulating(key, size, tempFile, spool, !failed && copied == size);
+                }
+            }
+        };
+    }
+    
+    public void invalidate(String key) {
+        populating.computeIfPresent(key, (k, generation) -> generation + 1);
+        entries.invalidate(key);
+    }
+    
+    private void finishPopulating(String key, long size, Path tempFile, OutputStream spool, boolean complete) {
+        Path target = null;
+        try {
+            spool.close();
+            if (complete) {
+                target = directory.resolve(UUID.randomUUID().toString());
+                Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException ex) {
+            logger.warn("Could not cache object {}: {}", key, ex.getMessage());
+            target = null;
+        } finally {
+            deleteQuietly(tempFile);
+        }
+        
+        if (target == null) {
+            populating.remove(key);
+            return;
+        }
+        // Published while holding the key's slot, so an invalidate either bumps the generation first or drops the entry after
+        CachedFile file = new CachedFile(target, size);
+        populating.compute(key, (k, generation) -> {
+            if (generation != null && generation == 0L) {
+                entries.put(key, file);
+            } else {
+                deleteQuietly(file.path());
+            }
+            return null;
+        });
+    }
+    
+    private static void deleteQuietly(Path path) {
+        try {
+            if (path != null) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException ex) {
+            logger.debug("Could not delete cache file {}", path, ex);
+        }
+    }
+    
+    private record CachedFile(Path path, long size) {
+    }
+}
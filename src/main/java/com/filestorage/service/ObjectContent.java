@@ -0,0 +1,35 @@
+package com.filestorage.service;
+
+import org.springframework.util.StreamUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An open read of a stored object. {@link #transferTo(OutputStream)} streams it through a
+ * small buffer, so the object is never held in memory whole.
+ */
+public interface ObjectContent extends Closeable {
+    
+    InputStream getInputStream() throws IOException;
+    
+    default long transferTo(OutputStream outputStream) throws IOException {
+        return StreamUtils.copy(getInputStream(), outputStream);
+    }
+    
+    static ObjectContent of(InputStream inputStream) {
+        return new ObjectContent() {
+            @Override
+            public InputStream getInputStream() {
+                return inputStream;
+            }
+            
+            @Override
+            public void close() throws IOException {
+                inputStream.close();
+            }
+        };
+    }
+}
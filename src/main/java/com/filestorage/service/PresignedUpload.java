@@ -0,0 +1,15 @@
+package com.filestorage.service;
+
+import java.net.URL;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instructions for uploading a file straight to storage: PUT each part to its URL with the
+ * given headers, then call the completion endpoint for {@code uploadId}, passing the part
+ * ETags in order when there is more than one part.
+ */
+public record PresignedUpload(String uploadId, long partSize, List<URL> partUrls,
+                              Map<String, String> headers, LocalDateTime expiresAt) {
+}
@@ -0,0 +1,32 @@
+package com.filestorage.service;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A backend that can hand clients short-lived signed URLs, so file bytes move between the
+ * client and the store directly instead of through this application.
+ */
+public interface PresigningStorageBackend extends MultipartStorageBackend {
+    
+    URL presignDownload(String key, String fileName, String contentType);
+    
+    /**
+     * Signs the requests needed to upload an object directly. When {@code contentHash} is given
+     * and the object fits in a single PUT, the store rejects bytes that do not match it.
+     */
+    DirectUpload presignUpload(String key, String contentType, long size, String contentHash) throws IOException;
+    
+    // Returns the stored size, or -1 when the object is missing or does not match contentHash
+    long verifyUpload(String key, String contentHash) throws IOException;
+    
+    /**
+     * One URL per part, in part order; a single PUT has one URL and a null multipartUploadId.
+     * The headers must be sent with every request because they are part of the signature.
+     */
+    record DirectUpload(String multipartUploadId, long partSize, List<URL> partUrls,
+                        Map<String, String> headers, boolean contentHashVerified) {
+    }
+}
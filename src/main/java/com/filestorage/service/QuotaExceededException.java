@@ -0,0 +1,10 @@
+package com.filestorage.service;
+
+// Raised before an upload reaches storage when it would take the user over their quota
+public class QuotaExceededException extends RuntimeException {
+    
+    public QuotaExceededException(StorageUsage usage) {
+        super("Storage quota exceeded: " + usage.bytesUsed() + " of " + usage.maxBytes() + " bytes and "
+                + usage.fileCount() + " of " + usage.maxFiles() + " files used");
+    }
+}
@@ -0,0 +1,55 @@
+package com.filestorage.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept as a single timestamp: the time at which it would be full again. Taking
+ * tokens pushes that time forward, so acquiring is one compare-and-set with no lock and no
+ * refill task. Anything costing more than the whole bucket is let through only when the bucket
+ * is full, and leaves it in debt for as long as it takes to pay back.
+ */
+class RateBucket {
+    
+    private final double nanosPerUnit;
+    private final long capacityNanos;
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+    
+    RateBucket(double unitsPerSecond, long capacity) {
+        this.nanosPerUnit = 1_000_000_000d / unitsPerSecond;
+        this.capacityNanos = (long) (capacity * nanosPerUnit);
+    }
+    
+    // Takes the tokens and returns 0, or returns how many nanoseconds to wait before there are enough
+    long tryAcquire(long units) {
+        long cost = (long) (units * nanosPerUnit);
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long base = Math.max(current, now);
+            long wait = base + Math.min(cost, capacityNanos) - now - capacityNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, base + cost)) {
+                return 0;
+            }
+        }
+    }
+    
+    // Takes tokens for work already done, going into debt when there are not enough
+    void charge(long units) {
+        long cost = (long) (units * nanosPerUnit);
+        long now = System.nanoTime();
+        fullAt.accumulateAndGet(now, (current, time) -> Math.max(current, time) + cost);
+    }
+    
+    // Gives back tokens taken for work that was then turned away
+    void refund(long units) {
+        long cost = (long) (units * nanosPerUnit);
+        fullAt.addAndGet(-cost);
+    }
+    
+    boolean isFull() {
+        return fullAt.get() - System.nanoTime() <= 0;
+    }
+}
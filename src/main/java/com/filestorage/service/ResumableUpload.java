@@ -0,0 +1,13 @@
+package com.filestorage.service;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * State of a resumable upload. Chunk {@code i} covers bytes {@code [i * chunkSize, (i + 1) * chunkSize)},
+ * the last one being shorter; {@code offset} is how many bytes from the start have arrived without
+ * a gap, for clients that simply resume where they stopped.
+ */
+public record ResumableUpload(String uploadId, long size, long chunkSize, int chunkCount,
+                              List<Integer> receivedChunks, long offset, LocalDateTime expiresAt) {
+}
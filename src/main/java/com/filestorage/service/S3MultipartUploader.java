@@ -0,0 +1,304 @@
+package com.filestorage.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads a stream of unknown length to S3, as a multipart upload unless it fits in one part.
+ * Each upload reads the client's bytes into its own part buffer and only takes one of the
+ * uploader's {@code maxBufferedParts} send permits once a part is complete; parts are uploaded
+ * concurrently while the next one is read, at most {@code maxInFlightParts} per upload. How many
+ * uploads read at once is bounded by admission control, not here.
+ */
+public class S3MultipartUploader {
+    
+    // S3 rejects non-final parts smaller than 5 MiB
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    
+    private static final Logger logger = LoggerFactory.getLogger(S3MultipartUploader.class);
+    
+    private final S3Client s3Client;
+    private final String bucketName;
+    private final int partSize;
+    private final int maxInFlightParts;
+    private final int maxPartAttempts;
+    private final S3RequestLimiter requestLimiter;
+    
+    private final Semaphore sendPermits;
+    private final long sendPermitTimeoutMillis;
+    private final int maxIdleBuffers;
+    private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleBuffers = new AtomicInteger();
+    private final ExecutorService executor;
+    
+    public S3MultipartUploader(S3Client s3Client, String bucketName, int partSize,
+                               int maxInFlightParts, int maxBufferedParts, int maxPartAttempts,
+                               Duration sendPermitTimeout, S3RequestLimiter requestLimiter) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Multipart part size must be at least 5MB");
+        }
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.partSize = partSize;
+        this.maxInFlightParts = maxInFlightParts;
+        this.maxPartAttempts = Math.max(1, maxPartAttempts);
+        this.requestLimiter = requestLimiter;
+        this.sendPermits = new Semaphore(Math.max(maxBufferedParts, 1));
+        this.sendPermitTimeoutMillis = sendPermitTimeout.toMillis();
+        this.maxIdleBuffers = Math.max(maxBufferedParts, 1);
+        
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(maxBufferedParts, 1), runnable -> {
+            Thread thread = new Thread(runnable, "s3-multipart-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    public void upload(String key, String contentType, InputStream inputStream) throws IOException {
+        // The first part is read before the upload is created, so a stream that fits in one part
+        // (the usual case when the size is not known up front) is sent as a single PUT. Reading takes
+        // no permit, so clients that are slow to send hold up nobody but themselves
+        byte[] firstBuffer = takeBuffer();
+        int firstLength;
+        try {
+            firstLength = readFully(inputStream, firstBuffer);
+        } catch (IOException | RuntimeException ex) {
+            recycleBuffer(firstBuffer);
+            throw ex;
+        }
+        if (firstLength < firstBuffer.length) {
+            try {
+                acquireSendPermit(key);
+                try {
+                    putObject(key, contentType, firstBuffer, firstLength);
+                } finally {
+                    sendPermits.release();
+                }
+            } finally {
+                recycleBuffer(firstBuffer);
+            }
+            return;
+        }
+        
+        String uploadId;
+        try {
+            CreateMultipartUploadRequest createRequest = CreateMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .contentType(contentType)
+                    .build();
+            uploadId = requestLimiter.call(() -> s3Client.createMultipartUpload(createRequest)).uploadId();
+        } catch (RuntimeException ex) {
+            recycleBuffer(firstBuffer);
+            throw ex;
+        }
+        
+        Semaphore inFlight = new Semaphore(maxInFlightParts);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        // The part read from the client and not yet handed to a sender
+        byte[] pendingBuffer = firstBuffer;
+        int pendingLength = firstLength;
+        
+        try {
+            int partNumber = 1;
+            while (!failed.get()) {
+                inFlight.acquire();
+                try {
+                    acquireSendPermit(key);
+                } catch (RuntimeException ex) {
+                    inFlight.release();
+                    throw ex;
+                }
+                
+                byte[] buffer = pendingBuffer;
+                int length = pendingLength;
+                int currentPart = partNumber++;
+                pendingBuffer = null;
+                parts.add(CompletableFuture
+                        .supplyAsync(() -> uploadPart(key, uploadId, currentPart, buffer, length, failed), executor)
+                        .whenComplete((part, ex) -> {
+                            if (ex != null) {
+                                failed.set(true);
+                            }
+                            recycleBuffer(buffer);
+                            sendPermits.release();
+                            inFlight.release();
+                        }));
+                if (length < buffer.length) {
+                    break;
+                }
+                
+                // The next part is read while the previous ones are being sent
+                pendingBuffer = takeBuffer();
+                pendingLength = readFully(inputStream, pendingBuffer);
+                if (pendingLength == 0) {
+                    break;
+                }
+            }
+            
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture[0])).join();
+            
+            List<CompletedPart> completedParts = new ArrayList<>(parts.size());
+            for (CompletableFuture<CompletedPart> part : parts) {
+                completedParts.add(part.join());
+            }
+            completedParts.sort(Comparator.comparing(CompletedPart::partNumber));
+            
+            requestLimiter.call(() -> s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .build()));
+        
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            abort(key, uploadId, parts, failed);
+            throw new IOException("Multipart upload interrupted: " + key, ex);
+        } catch (IOException ex) {
+            abort(key, uploadId, parts, failed);
+            throw ex;
+        } catch (RuntimeException ex) {
+            abort(key, uploadId, parts, failed);
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            throw new IOException("Multipart upload failed: " + key, cause);
+        } finally {
+            if (pendingBuffer != null) {
+                recycleBuffer(pendingBuffer);
+            }
+        }
+    }
+    
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    private void putObject(String key, String contentType, byte[] buffer, int length) throws IOException {
+        PutObjectRequest request = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .contentType(contentType)
+                .contentLength((long) length)
+                .build();
+        try {
+            requestLimiter.call(() -> s3Client.putObject(request,
+                    RequestBody.fromContentProvider(() -> new ByteArrayInputStream(buffer, 0, length),
+                            length, contentType != null ? contentType : "application/octet-stream")));
+        } catch (RuntimeException ex) {
+            throw new IOException("Upload failed: " + key, ex);
+        }
+    }
+    
+    private CompletedPart uploadPart(String key, String uploadId, int partNumber,
+                                     byte[] buffer, int length, AtomicBoolean failed) {
+        UploadPartRequest request = UploadPartRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .contentLength((long) length)
+                .build();
+        
+        for (int attempt = 1; ; attempt++) {
+            if (failed.get()) {
+                throw new CancellationException("Multipart upload aborted");
+            }
+            try {
+                // The content provider re-reads the same buffer on every attempt, so retries never copy it
+                UploadPartResponse response = requestLimiter.call(() -> s3Client.uploadPart(request,
+                        RequestBody.fromContentProvider(() -> new ByteArrayInputStream(buffer, 0, length),
+                                length, "application/octet-stream")));
+                return CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build();
+            } catch (RuntimeException ex) {
+                if (attempt >= maxPartAttempts) {
+                    throw ex;
+                }
+                logger.warn("Retrying part {} of {} (attempt {} failed: {})", partNumber, key, attempt, ex.getMessage());
+                try {
+                    Thread.sleep(100L << Math.min(attempt, 6));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
+    }
+    
+    private void abort(String key, String uploadId, List<CompletableFuture<CompletedPart>> parts, AtomicBoolean failed) {
+        failed.set(true);
+        // Let parts that are mid-transfer settle so the abort is not raced by a late part
+        try {
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture[0])).join();
+        } catch (RuntimeException ignored) {
+            // failures are reported by the caller
+        }
+        try {
+            requestLimiter.call(() -> s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build()));
+        } catch (RuntimeException ex) {
+            logger.error("Could not abort multipart upload {} for {}", uploadId, key, ex);
+        }
+    }
+    
+    // Waits for one of the node's send slots; a full node turns the upload away rather than queueing it forever
+    private void acquireSendPermit(String key) throws IOException {
+        try {
+            if (!sendPermits.tryAcquire(sendPermitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new TooManyTransfersException("Timed out waiting to send " + key + " to S3",
+                        S3RequestLimiter.RETRY_AFTER);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Upload interrupted: " + key, ex);
+        }
+    }
+    
+    private byte[] takeBuffer() {
+        byte[] buffer = freeBuffers.poll();
+        if (buffer == null) {
+            return new byte[partSize];
+        }
+        idleBuffers.decrementAndGet();
+        return buffer;
+    }
+    
+    // Keeps up to maxBufferedParts idle buffers for reuse; any beyond that are left to the garbage collector
+    private void recycleBuffer(byte[] buffer) {
+        if (idleBuffers.incrementAndGet() <= maxIdleBuffers) {
+            freeBuffers.offer(buffer);
+        } else {
+            idleBuffers.decrementAndGet();
+        }
+    }
+    
+    private static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = inputStream.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                break;
+            }
+            offset += read;
+        }
+        return offset;
+    }
+}
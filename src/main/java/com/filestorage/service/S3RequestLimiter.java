@@ -0,0 +1,50 @@
+package com.filestorage.service;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Caps the number of blocking S3 requests in flight. With virtual threads nothing else bounds
+ * how many requests a node starts, so without it S3 throttling turns into ever more parallel
+ * retries. Callers that cannot get a slot within the timeout fail with a
+ * {@link TooManyTransfersException} instead of queueing forever.
+ */
+class S3RequestLimiter {
+    
+    // Slots free up as requests finish, so a client turned away can come back soon
+    static final Duration RETRY_AFTER = Duration.ofSeconds(1);
+    
+    private final Semaphore permits;
+    private final long timeoutMillis;
+    
+    S3RequestLimiter(int maxConcurrentRequests, Duration timeout) {
+        this.permits = new Semaphore(Math.max(maxConcurrentRequests, 1), true);
+        this.timeoutMillis = timeout.toMillis();
+    }
+    
+    <T> T call(Supplier<T> request) {
+        acquire();
+        try {
+            return request.get();
+        } finally {
+            release();
+        }
+    }
+    
+    void acquire() {
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new TooManyTransfersException("Timed out waiting for an S3 request slot", RETRY_AFTER);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for an S3 request slot", ex);
+        }
+    }
+    
+    void release() {
+        permits.release();
+    }
+}
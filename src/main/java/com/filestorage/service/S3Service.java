@@ -1,67 +1,663 @@
 package com.filestorage.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PreDestroy;
+import com.filestorage.model.StorageTier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.context.annotation.Profile;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.ContentDisposition;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3BaseClientBuilder;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
 import software.amazon.awssdk.services.s3.model.*;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedPutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.UploadPartPresignRequest;
 
 import java.io.IOException;
-import java.util.UUID;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 @Service
-public class S3Service {
+@ConditionalOnProperty(name = "storage.backend", havingValue = "s3")
+public class S3Service implements PresigningStorageBackend, TieredStorageBackend {
+    
+    private static final Logger logger = LoggerFactory.getLogger(S3Service.class);
+    
+    // DeleteObjects accepts at most 1000 keys per request
+    private static final int DELETE_BATCH_SIZE = 1000;
+    
+    private static final int MAX_PARTS = 10000;
+    
+    // CopyObject handles up to 5 GB; larger objects are copied a part at a time
+    private static final long MAX_COPY_SIZE = 5L << 30;
+    private static final long COPY_PART_SIZE = 1L << 30;
     
     private final S3Client s3Client;
+    // Only created in async mode (aws.s3.async.enabled)
+    private final S3AsyncClient s3AsyncClient;
     private final String bucketName;
+    private final long multipartThreshold;
+    private final S3MultipartUploader multipartUploader;
+    private final S3RequestLimiter requestLimiter;
+    private final S3RequestLimiter downloadLimiter;
+    
+    private final S3Presigner s3Presigner;
+    private final Duration presignedUrlExpiry;
+    private final long presignedMultipartThreshold;
+    private final long partSize;
+    private final Cache<String, URL> presignedDownloads;
+    
+    private final StorageClass coldStorageClass;
+    private final Tier restoreTier;
+    private final int restoreDays;
     
     public S3Service(@Value("${aws.s3.bucket-name}") String bucketName,
-                     @Value("${aws.s3.region}") String region) {
+                     @Value("${aws.s3.region}") String region,
+                     @Value("${aws.s3.multipart.threshold:16MB}") DataSize multipartThreshold,
+                     @Value("${aws.s3.multipart.part-size:8MB}") DataSize partSize,
+                     @Value("${aws.s3.multipart.max-in-flight-parts:4}") int maxInFlightParts,
+                     @Value("${aws.s3.multipart.max-buffered-parts:16}") int maxBufferedParts,
+                     @Value("${aws.s3.multipart.max-part-attempts:3}") int maxPartAttempts,
+                     @Value("${aws.s3.async.enabled:false}") boolean asyncEnabled,
+                     @Value("${aws.s3.async.max-concurrency:256}") int asyncMaxConcurrency,
+                     @Value("${aws.s3.max-concurrent-requests:50}") int maxConcurrentRequests,
+                     @Value("${aws.s3.max-concurrent-downloads:200}") int maxConcurrentDownloads,
+                     @Value("${aws.s3.request-slot-timeout:30s}") Duration requestSlotTimeout,
+                     @Value("${aws.s3.presigned.expiry:15m}") Duration presignedUrlExpiry,
+                     @Value("${aws.s3.presigned.url-cache-margin:2m}") Duration presignedUrlCacheMargin,
+                     @Value("${aws.s3.presigned.multipart-threshold:1GB}") DataSize presignedMultipartThreshold,
+                     @Value("${aws.s3.endpoint:}") String endpoint,
+                     @Value("${aws.s3.access-key:}") String accessKey,
+                     @Value("${aws.s3.secret-key:}") String secretKey,
+                     @Value("${storage.lifecycle.s3-storage-class:STANDARD_IA}") String coldStorageClass,
+                     @Value("${storage.lifecycle.s3-restore-tier:Standard}") String restoreTier,
+                     @Value("${storage.lifecycle.s3-restore-days:7}") int restoreDays) {
         this.bucketName = bucketName;
-        this.s3Client = S3Client.builder()
+        AwsCredentialsProvider credentials = credentialsProvider(accessKey, secretKey);
+        // A streamed download keeps its connection until the client has read the body, so the pool
+        // has room for every download slot on top of the request slots
+        this.s3Client = configure(S3Client.builder(), region, endpoint, credentials)
+                .httpClientBuilder(ApacheHttpClient.builder()
+                        .maxConnections(Math.max(maxConcurrentRequests, 1) + Math.max(maxConcurrentDownloads, 1)))
+                .build();
+        this.s3AsyncClient = asyncEnabled
+                ? configure(S3AsyncClient.builder(), region, endpoint, credentials)
+                        .httpClientBuilder(NettyNioAsyncHttpClient.builder().maxConcurrency(asyncMaxConcurrency))
+                        .build()
+                : null;
+        this.multipartThreshold = multipartThreshold.toBytes();
+        this.partSize = partSize.toBytes();
+        
+        S3Presigner.Builder presigner = S3Presigner.builder()
                 .region(Region.of(region))
-                .credentialsProvider(DefaultCredentialsProvider.create())
+                .credentialsProvider(credentials);
+        if (!endpoint.isBlank()) {
+            presigner.endpointOverride(URI.create(endpoint))
+                    .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build());
+        }
+        this.s3Presigner = presigner.build();
+        this.presignedUrlExpiry = presignedUrlExpiry;
+        this.presignedMultipartThreshold = presignedMultipartThreshold.toBytes();
+        // A cached URL is handed out until shortly before it expires, so clients always get a usable one
+        Duration cacheFor = presignedUrlExpiry.minus(presignedUrlCacheMargin);
+        this.presignedDownloads = Caffeine.newBuilder()
+                .maximumSize(10_000)
+                .expireAfterWrite(cacheFor.isNegative() ? Duration.ZERO : cacheFor)
                 .build();
+        // Blocking requests share one limit; the async client is bounded by its own connection pool
+        this.requestLimiter = new S3RequestLimiter(maxConcurrentRequests, requestSlotTimeout);
+        this.downloadLimiter = new S3RequestLimiter(maxConcurrentDownloads, requestSlotTimeout);
+        this.multipartUploader = new S3MultipartUploader(s3Client, bucketName, (int) partSize.toBytes(),
+                maxInFlightParts, maxBufferedParts, maxPartAttempts, requestSlotTimeout, requestLimiter);
+        this.coldStorageClass = StorageClass.fromValue(coldStorageClass);
+        this.restoreTier = Tier.fromValue(restoreTier);
+        this.restoreDays = restoreDays;
+        if (this.coldStorageClass == StorageClass.UNKNOWN_TO_SDK_VERSION || this.restoreTier == Tier.UNKNOWN_TO_SDK_VERSION) {
+            throw new IllegalStateException("Unknown storage.lifecycle.s3-storage-class or s3-restore-tier");
+        }
+    }
+    
+    // An explicit endpoint points the clients at an S3-compatible store, which usually wants path-style URLs
+    private static <B extends S3BaseClientBuilder<B, ?>> B configure(B builder, String region, String endpoint,
+                                                                    AwsCredentialsProvider credentials) {
+        builder.region(Region.of(region))
+                .credentialsProvider(credentials);
+        if (!endpoint.isBlank()) {
+            builder.endpointOverride(URI.create(endpoint))
+                    .forcePathStyle(true);
+        }
+        return builder;
+    }
+    
+    // Explicit keys are for S3-compatible stores; AWS deployments use the default chain (environment, profile, role)
+    private static AwsCredentialsProvider credentialsProvider(String accessKey, String secretKey) {
+        if (accessKey.isBlank()) {
+            return DefaultCredentialsProvider.create();
+        }
+        return StaticCredentialsProvider.create(AwsBasicCredentials.create(accessKey, secretKey));
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        multipartUploader.shutdown();
+        if (s3AsyncClient != null) {
+            s3AsyncClient.close();
+        }
+        s3Presigner.close();
+    }
+    
+    @Override
+    public void store(String key, InputStream inputStream, long size, String contentType) throws IOException {
+        // Large files, and streams of unknown length, go through the parallel multipart engine
+        if (size < 0 || size >= multipartThreshold) {
+            multipartUploader.upload(key, contentType, inputStream);
+            return;
+        }
+        
+        requestLimiter.call(() -> s3Client.putObject(putObjectRequest(key, contentType),
+                RequestBody.fromInputStream(inputStream, size)));
+    }
+    
+    @Override
+    public CompletableFuture<Void> storeAsync(String key, InputStream inputStream, long size, String contentType) {
+        // Large objects still go through the blocking multipart engine
+        if (s3AsyncClient == null || size < 0 || size >= multipartThreshold) {
+            return PresigningStorageBackend.super.storeAsync(key, inputStream, size, contentType);
+        }
+        
+        Path stagedFile;
+        try {
+            // The SDK then reads the staged copy with asynchronous file I/O. Callers run this on their upload
+            // pool, and the copy is the pass that hashes the upload, so it never holds a request thread
+            stagedFile = Files.createTempFile("s3-upload-", ".tmp");
+            Files.copy(inputStream, stagedFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        
+        return s3AsyncClient.putObject(putObjectRequest(key, contentType), AsyncRequestBody.fromFile(stagedFile))
+                .whenComplete((response, ex) -> deleteQuietly(stagedFile))
+                .thenApply(response -> null);
+    }
+    
+    @Override
+    public ObjectContent read(String key, long start, long end) {
+        // Issuing the request takes a request slot only until the headers arrive. The connection then stays busy
+        // while the client reads the body, which holds a download slot instead, so slow clients cannot starve
+        // uploads and other requests of slots
+        downloadLimiter.acquire();
+        ResponseInputStream<GetObjectResponse> inputStream;
+        try {
+            inputStream = requestLimiter.call(() -> s3Client.getObject(getObjectRequest(key, start, end)));
+        } catch (RuntimeException ex) {
+            downloadLimiter.release();
+            ObjectArchivedException archived = restoreIfArchived(key, ex);
+            throw archived != null ? archived : ex;
+        }
+        
+        return new ObjectContent() {
+            private final AtomicBoolean closed = new AtomicBoolean();
+            
+            @Override
+            public InputStream getInputStream() {
+                return inputStream;
+            }
+            
+            @Override
+            public void close() throws IOException {
+                if (closed.compareAndSet(false, true)) {
+                    try {
+                        inputStream.close();
+                    } finally {
+                        downloadLimiter.release();
+                    }
+                }
+            }
+        };
     }
     
-    public String uploadFile(MultipartFile file) throws IOException {
-        String fileName = UUID.randomUUID().toString() + "-" + file.getOriginalFilename();
+    @Override
+    public CompletableFuture<ObjectContent> readAsync(String key, long start, long end) {
+        if (s3AsyncClient == null) {
+            return PresigningStorageBackend.super.readAsync(key, start, end);
+        }
         
-        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+        // Completes when the response headers arrive; the body is then pulled one buffer at a time,
+        // so a slow client stalls the S3 connection instead of filling the heap
+        return s3AsyncClient.getObject(getObjectRequest(key, start, end), AsyncResponseTransformer.toBlockingInputStream())
+                .thenApply(ObjectContent::of)
+                .exceptionallyCompose(ex -> {
+                    ObjectArchivedException archived = restoreIfArchived(key, ex);
+                    return CompletableFuture.failedFuture(archived != null ? archived : ex);
+                });
+    }
+    
+    @Override
+    public boolean exists(String key) {
+        HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
                 .bucket(bucketName)
-                .key(fileName)
-                .contentType(file.getContentType())
+                .key(key)
                 .build();
         
-        s3Client.putObject(putObjectRequest, 
-                RequestBody.fromInputStream(file.getInputStream(), file.getSize()));
-        
-        return fileName;
+        try {
+            requestLimiter.call(() -> s3Client.headObject(headObjectRequest));
+            return true;
+        } catch (S3Exception ex) {
+            if (ex.statusCode() == 404) {
+                return false;
+            }
+            throw ex;
+        }
     }
     
-    public byte[] downloadFile(String fileName) {
-        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+    /**
+     * Rewrites the object in place with the tier's storage class: COLD uses
+     * {@code storage.lifecycle.s3-storage-class}, STANDARD the S3 default. An object on an archive
+     * class has to be restored before it can be copied back; the restore is requested and an
+     * {@link ObjectArchivedException} thrown, so a later run completes the move.
+     */
+    @Override
+    public void moveToTier(String key, StorageTier tier) {
+        StorageClass target = tier == StorageTier.COLD ? coldStorageClass : StorageClass.STANDARD;
+        HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
                 .bucket(bucketName)
-                .key(fileName)
+                .key(key)
                 .build();
+        HeadObjectResponse head = requestLimiter.call(() -> s3Client.headObject(headObjectRequest));
+        // HEAD leaves the storage class out for STANDARD objects
+        StorageClass current = head.storageClass() != null ? head.storageClass() : StorageClass.STANDARD;
+        if (current == target) {
+            return;
+        }
         
-        return s3Client.getObjectAsBytes(getObjectRequest).asByteArray();
+        try {
+            if (head.contentLength() <= MAX_COPY_SIZE) {
+                requestLimiter.call(() -> s3Client.copyObject(CopyObjectRequest.builder()
+                        .sourceBucket(bucketName)
+                        .sourceKey(key)
+                        .destinationBucket(bucketName)
+                        .destinationKey(key)
+                        .storageClass(target)
+                        .metadataDirective(MetadataDirective.COPY)
+                        .build()));
+            } else {
+                copyInParts(key, head, target);
+            }
+        } catch (RuntimeException ex) {
+            ObjectArchivedException archived = restoreIfArchived(key, ex);
+            throw archived != null ? archived : ex;
+        }
     }
     
-    public void deleteFile(String fileName) {
+    @Override
+    public void delete(String key) {
         DeleteObjectRequest deleteObjectRequest = DeleteObjectRequest.builder()
                 .bucket(bucketName)
-                .key(fileName)
+                .key(key)
+                .build();
+        
+        requestLimiter.call(() -> s3Client.deleteObject(deleteObjectRequest));
+    }
+    
+    @Override
+    public Map<String, String> deleteAll(Collection<String> keys) {
+        Map<String, String> failures = new LinkedHashMap<>();
+        List<ObjectIdentifier> batch = new ArrayList<>(DELETE_BATCH_SIZE);
+        for (String key : keys) {
+            batch.add(ObjectIdentifier.builder().key(key).build());
+            if (batch.size() == DELETE_BATCH_SIZE) {
+                deleteBatch(batch, failures);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            deleteBatch(batch, failures);
+        }
+        return failures;
+    }
+    
+    @Override
+    public Stream<ListedObject> list() {
+        ListObjectsV2Request firstPage = ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .build();
+        
+        // Pages are fetched as the stream is consumed
+        return Stream.iterate(requestLimiter.call(() -> s3Client.listObjectsV2(firstPage)), Objects::nonNull,
+                        page -> page.isTruncated()
+                                ? requestLimiter.call(() -> s3Client.listObjectsV2(firstPage.toBuilder()
+                                        .continuationToken(page.nextContinuationToken())
+                                        .build()))
+                                : null)
+                .flatMap(page -> page.contents().stream())
+                .map(object -> new ListedObject(object.key(), object.lastModified()));
+    }
+    
+    @Override
+    public URL presignDownload(String key, String fileName, String contentType) {
+        String contentDisposition = ContentDisposition.attachment()
+                .filename(fileName, StandardCharsets.UTF_8)
+                .build()
+                .toString();
+        return presignedDownloads.get(key + '\n' + contentDisposition + '\n' + contentType,
+                cacheKey -> s3Presigner.presignGetObject(GetObjectPresignRequest.builder()
+                        .signatureDuration(presignedUrlExpiry)
+                        .getObjectRequest(request -> request
+                                .bucket(bucketName)
+                                .key(key)
+                                .responseContentType(contentType)
+                                .responseContentDisposition(contentDisposition))
+                        .build()).url());
+    }
+    
+    @Override
+    public DirectUpload presignUpload(String key, String contentType, long size, String contentHash) {
+        if (size < presignedMultipartThreshold) {
+            PutObjectRequest.Builder putObjectRequest = PutObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .contentType(contentType)
+                    .contentLength(size);
+            if (contentHash != null) {
+                // S3 recomputes the checksum and rejects the PUT when the bytes differ
+                putObjectRequest.checksumSHA256(toBase64(contentHash));
+            }
+            
+            PresignedPutObjectRequest presigned = s3Presigner.presignPutObject(PutObjectPresignRequest.builder()
+                    .signatureDuration(presignedUrlExpiry)
+                    .putObjectRequest(putObjectRequest.build())
+                    .build());
+            return new DirectUpload(null, size, List.of(presigned.url()),
+                    clientHeaders(presigned.signedHeaders()), contentHash != null);
+        }
+        
+        // Parts only carry their own checksums, so the whole-object hash cannot be enforced here
+        long uploadPartSize = partSize(size);
+        int partCount = (int) ((size + uploadPartSize - 1) / uploadPartSize);
+        String uploadId = createUpload(key, contentType);
+        
+        List<URL> partUrls = new ArrayList<>(partCount);
+        for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+            UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .partNumber(partNumber)
+                    .build();
+            partUrls.add(s3Presigner.presignUploadPart(UploadPartPresignRequest.builder()
+                    .signatureDuration(presignedUrlExpiry)
+                    .uploadPartRequest(uploadPartRequest)
+                    .build()).url());
+        }
+        return new DirectUpload(uploadId, uploadPartSize, partUrls, Map.of(), false);
+    }
+    
+    @Override
+    public long partSize(long size) {
+        return Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+    }
+    
+    @Override
+    public String createUpload(String key, String contentType) {
+        CreateMultipartUploadRequest createRequest = CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .contentType(contentType)
+                .build();
+        return requestLimiter.call(() -> s3Client.createMultipartUpload(createRequest)).uploadId();
+    }
+    
+    @Override
+    public String uploadPart(String key, String multipartUploadId, int partNumber, InputStream inputStream, long size) {
+        UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .uploadId(multipartUploadId)
+                .partNumber(partNumber)
+                .contentLength(size)
+                .build();
+        return requestLimiter.call(() -> s3Client.uploadPart(uploadPartRequest,
+                RequestBody.fromInputStream(inputStream, size))).eTag();
+    }
+    
+    @Override
+    public void completeUpload(String key, String multipartUploadId, List<String> partETags) {
+        if (multipartUploadId == null) {
+            return;
+        }
+        
+        List<CompletedPart> parts = new ArrayList<>(partETags.size());
+        for (int i = 0; i < partETags.size(); i++) {
+            parts.add(CompletedPart.builder().partNumber(i + 1).eTag(partETags.get(i)).build());
+        }
+        requestLimiter.call(() -> s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .uploadId(multipartUploadId)
+                .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                .build()));
+    }
+    
+    @Override
+    public long verifyUpload(String key, String contentHash) {
+        HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .checksumMode(ChecksumMode.ENABLED)
+                .build();
+        
+        HeadObjectResponse head;
+        try {
+            head = requestLimiter.call(() -> s3Client.headObject(headObjectRequest));
+        } catch (S3Exception ex) {
+            if (ex.statusCode() == 404) {
+                return -1;
+            }
+            throw ex;
+        }
+        if (contentHash != null && !toBase64(contentHash).equals(head.checksumSHA256())) {
+            return -1;
+        }
+        return head.contentLength();
+    }
+    
+    @Override
+    public void abortUpload(String key, String multipartUploadId) {
+        if (multipartUploadId == null) {
+            delete(key);
+            return;
+        }
+        requestLimiter.call(() -> s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .uploadId(multipartUploadId)
+                .build()));
+    }
+    
+    @Override
+    public String getLocation(String key) {
+        return String.format("https://%s.s3.amazonaws.com/%s", bucketName, key);
+    }
+    
+    private void copyInParts(String key, HeadObjectResponse head, StorageClass target) {
+        String uploadId = requestLimiter.call(() -> s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .contentType(head.contentType())
+                .contentEncoding(head.contentEncoding())
+                .metadata(head.metadata())
+                .storageClass(target)
+                .build())).uploadId();
+        try {
+            List<CompletedPart> parts = new ArrayList<>();
+            for (long start = 0; start < head.contentLength(); start += COPY_PART_SIZE) {
+                int partNumber = parts.size() + 1;
+                String range = "bytes=" + start + "-" + (Math.min(start + COPY_PART_SIZE, head.contentLength()) - 1);
+                UploadPartCopyResponse copied = requestLimiter.call(() -> s3Client.uploadPartCopy(UploadPartCopyRequest.builder()
+                        .sourceBucket(bucketName)
+                        .sourceKey(key)
+                        .destinationBucket(bucketName)
+                        .destinationKey(key)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .copySourceRange(range)
+                        .build()));
+                parts.add(CompletedPart.builder().partNumber(partNumber).eTag(copied.copyPartResult().eTag()).build());
+            }
+            requestLimiter.call(() -> s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                    .build()));
+        } catch (RuntimeException ex) {
+            abortUpload(key, uploadId);
+            throw ex;
+        }
+    }
+    
+    // Reading an object on an archive storage class fails until it is restored: requests that and returns
+    // the exception telling the caller when to retry, or null when the failure had another cause
+    private ObjectArchivedException restoreIfArchived(String key, Throwable ex) {
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        if (!(cause instanceof S3Exception s3Exception) || s3Exception.awsErrorDetails() == null
+                || !"InvalidObjectState".equals(s3Exception.awsErrorDetails().errorCode())) {
+            return null;
+        }
+        
+        RestoreObjectRequest restoreObjectRequest = RestoreObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .restoreRequest(RestoreRequest.builder()
+                        .days(restoreDays)
+                        .glacierJobParameters(GlacierJobParameters.builder().tier(restoreTier).build())
+                        .build())
                 .build();
+        // The async client's reads fail on its event loop threads, which must not block
+        if (s3AsyncClient != null) {
+            s3AsyncClient.restoreObject(restoreObjectRequest).whenComplete((response, restoreEx) -> {
+                if (restoreEx != null) {
+                    logRestoreFailure(key, restoreEx instanceof CompletionException && restoreEx.getCause() != null
+                            ? restoreEx.getCause() : restoreEx);
+                }
+            });
+        } else {
+            try {
+                requestLimiter.call(() -> s3Client.restoreObject(restoreObjectRequest));
+            } catch (RuntimeException restoreEx) {
+                logRestoreFailure(key, restoreEx);
+            }
+        }
         
-        s3Client.deleteObject(deleteObjectRequest);
+        Duration retryAfter = switch (restoreTier) {
+            case EXPEDITED -> Duration.ofMinutes(5);
+            case BULK -> Duration.ofHours(12);
+            default -> Duration.ofHours(5);
+        };
+        return new ObjectArchivedException("Object " + key + " is being restored from archive storage", retryAfter);
+    }
+    
+    private static void logRestoreFailure(String key, Throwable ex) {
+        // 409: a restore is already running
+        if (!(ex instanceof S3Exception s3Exception && s3Exception.statusCode() == 409)) {
+            logger.warn("Could not request restore of {}", key, ex);
+        }
+    }
+    
+    private PutObjectRequest putObjectRequest(String key, String contentType) {
+        return PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .contentType(contentType)
+                .build();
+    }
+    
+    private GetObjectRequest getObjectRequest(String key, long start, long end) {
+        GetObjectRequest.Builder getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key);
+        
+        // end < 0 means "to the end of the object"; a plain GET is used for the full object
+        if (start > 0 || end >= 0) {
+            getObjectRequest.range("bytes=" + start + "-" + (end >= 0 ? end : ""));
+        }
+        return getObjectRequest.build();
+    }
+    
+    private void deleteBatch(List<ObjectIdentifier> batch, Map<String, String> failures) {
+        DeleteObjectsRequest deleteObjectsRequest = DeleteObjectsRequest.builder()
+                .bucket(bucketName)
+                .delete(Delete.builder().objects(batch).quiet(true).build())
+                .build();
+        
+        try {
+            // Quiet mode only reports the keys that failed
+            for (S3Error error : requestLimiter.call(() -> s3Client.deleteObjects(deleteObjectsRequest)).errors()) {
+                failures.put(error.key(), error.code() + ": " + error.message());
+            }
+        } catch (RuntimeException ex) {
+            batch.forEach(object -> failures.put(object.key(), ex.getMessage()));
+        }
+    }
+    
+    // Host is set by the client's HTTP stack; everything else that was signed has to be sent as-is
+    private static Map<String, String> clientHeaders(Map<String, List<String>> signedHeaders) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        signedHeaders.forEach((name, values) -> {
+            if (!name.equalsIgnoreCase("host")) {
+                headers.put(name, String.join(",", values));
+            }
+        });
+        return headers;
+    }
+    
+    private static String toBase64(String hexDigest) {
+        return Base64.getEncoder().encodeToString(HexFormat.of().parseHex(hexDigest));
     }
     
-    public String getFileUrl(String fileName) {
-        return String.format("https://%s.s3.amazonaws.com/%s", bucketName, fileName);
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            logger.warn("Could not delete staged upload {}", path, ex);
+        }
     }
 }
@@ -0,0 +1,75 @@
+package com.filestorage.service;
+
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Where file bytes live. The active implementation is selected with {@code storage.backend}
+ * ({@code s3} or {@code local}).
+ */
+public interface StorageBackend {
+    
+    // size is -1 when the stream's length is not known up front
+    void store(String key, InputStream inputStream, long size, String contentType) throws IOException;
+    
+    default void store(String key, MultipartFile file) throws IOException {
+        try (InputStream inputStream = file.getInputStream()) {
+            store(key, inputStream, file.getSize(), file.getContentType());
+        }
+    }
+    
+    /**
+     * Completes once the bytes are stored. Blocking backends store on the caller's thread and
+     * return a completed future; non-blocking ones release the caller while the transfer runs.
+     * Either way the stream has been read to the end when this returns, and the caller closes it.
+     */
+    default CompletableFuture<Void> storeAsync(String key, InputStream inputStream, long size, String contentType) {
+        try {
+            store(key, inputStream, size, contentType);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException | RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+    
+    // end < 0 reads to the end of the object
+    ObjectContent read(String key, long start, long end) throws IOException;
+    
+    // Completes once the object can be streamed; see storeAsync for how blocking backends behave
+    default CompletableFuture<ObjectContent> readAsync(String key, long start, long end) {
+        try {
+            return CompletableFuture.completedFuture(read(key, start, end));
+        } catch (IOException | RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+    
+    boolean exists(String key) throws IOException;
+    
+    void delete(String key) throws IOException;
+    
+    // Returns the keys that could not be deleted, mapped to the reason
+    default Map<String, String> deleteAll(Collection<String> keys) {
+        Map<String, String> failures = new LinkedHashMap<>();
+        for (String key : keys) {
+            try {
+                delete(key);
+            } catch (IOException | RuntimeException ex) {
+                failures.put(key, ex.getMessage());
+            }
+        }
+        return failures;
+    }
+    
+    // Every stored object, for reconciliation against the database; the caller closes the stream
+    Stream<ListedObject> list() throws IOException;
+    
+    String getLocation(String key);
+}
@@ -0,0 +1,127 @@
+package com.filestorage.service;
+
+import com.filestorage.model.FileStatus;
+import com.filestorage.model.StorageTier;
+import com.filestorage.repository.FileMetadataRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves files nobody has read for {@code storage.lifecycle.cold-after} to the backend's cold tier,
+ * and back again once they are read or uploaded anew. Decisions are per stored object: content
+ * shared by several files only goes cold when none of them has been read. Objects keep their keys,
+ * so downloads find them on either tier.
+ */
+@Service
+@ConditionalOnProperty(name = "storage.lifecycle.enabled", havingValue = "true")
+public class StorageLifecycleService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(StorageLifecycleService.class);
+    
+    private static final int BATCH_SIZE = 100;
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+    
+    @Autowired
+    private FileMetadataCache fileMetadataCache;
+    
+    @Value("${storage.lifecycle.cold-after:90d}")
+    private Duration coldAfter;
+    
+    // Caps each direction per run, so a first run over a large backlog is spread over several
+    @Value("${storage.lifecycle.max-moves:1000}")
+    private int maxMoves;
+    
+    private final Map<StorageTier, Counter> moved;
+    
+    public StorageLifecycleService(MeterRegistry meterRegistry) {
+        this.moved = Map.of(
+                StorageTier.COLD, movedCounter(meterRegistry, StorageTier.COLD),
+                StorageTier.STANDARD, movedCounter(meterRegistry, StorageTier.STANDARD));
+    }
+    
+    @PostConstruct
+    public void init() {
+        if (!(storageBackend instanceof TieredStorageBackend)) {
+            logger.warn("storage.lifecycle.enabled is set but the storage backend has no cold tier; files will not move");
+        }
+    }
+    
+    @Scheduled(fixedDelayString = "${storage.lifecycle.interval:PT24H}",
+               initialDelayString = "${storage.lifecycle.initial-delay:PT10M}")
+    public void migrate() {
+        if (!(storageBackend instanceof TieredStorageBackend tiered)) {
+            return;
+        }
+        LocalDateTime cutoff = LocalDateTime.now().minus(coldAfter);
+        int promoted = move(tiered, StorageTier.STANDARD, after -> fileMetadataRepository.findKeysToPromote(after, cutoff,
+                StorageTier.COLD, PageRequest.of(0, BATCH_SIZE)));
+        int demoted = move(tiered, StorageTier.COLD, after -> fileMetadataRepository.findKeysToDemote(after, cutoff,
+                StorageTier.COLD, FileStatus.PENDING, PageRequest.of(0, BATCH_SIZE)));
+        if (promoted > 0 || demoted > 0) {
+            logger.info("Storage lifecycle moved {} objects to the cold tier and {} back", demoted, promoted);
+        }
+    }
+    
+    // Walks the candidate keys in order; a key that fails is skipped and tried again on the next run
+    private int move(TieredStorageBackend tiered, StorageTier tier, KeyPage candidates) {
+        int moves = 0;
+        String after = "";
+        List<String> keys;
+        do {
+            keys = candidates.after(after);
+            for (String key : keys) {
+                if (moves == maxMoves) {
+                    return moves;
+                }
+                try {
+                    // The object moves first: if the row update is lost, the next run repeats a move that does nothing
+                    tiered.moveToTier(key, tier);
+                    fileMetadataRepository.updateStorageTier(key, tier);
+                    fileMetadataCache.evictStorageKey(key);
+                    moved.get(tier).increment();
+                    moves++;
+                } catch (ObjectArchivedException ex) {
+                    logger.info("Restore requested for {} before it can move to {}", key, tier);
+                } catch (IOException | RuntimeException ex) {
+                    logger.warn("Could not move {} to the {} tier", key, tier, ex);
+                }
+            }
+            if (!keys.isEmpty()) {
+                after = keys.get(keys.size() - 1);
+            }
+        } while (keys.size() == BATCH_SIZE);
+        return moves;
+    }
+    
+    private static Counter movedCounter(MeterRegistry meterRegistry, StorageTier tier) {
+        return Counter.builder("storage.lifecycle.moved")
+                .description("Objects moved between storage tiers")
+                .tag("tier", tier.name().toLowerCase())
+                .register(meterRegistry);
+    }
+    
+    @FunctionalInterface
+    private interface KeyPage {
+        List<String> after(String key);
+    }
+}
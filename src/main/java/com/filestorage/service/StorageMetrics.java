@@ -0,0 +1,237 @@
+package com.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency, throughput and concurrency of calls into the storage backend. Every timer is
+ * registered up front for each operation, outcome and size bucket, so recording on the hot
+ * path is a few array lookups with no meter registration or tag allocation.
+ */
+@Component
+public class StorageMetrics {
+    
+    public enum Operation {
+        PUT, GET, DELETE
+    }
+    
+    @FunctionalInterface
+    public interface StorageCall<T> {
+        CompletableFuture<T> call() throws IOException;
+    }
+    
+    private static final long[] SIZE_BOUNDS = {64L << 10, 1L << 20, 16L << 20, 256L << 20};
+    private static final String[] SIZE_TAGS = {"64KB", "1MB", "16MB", "256MB", "larger", "none"};
+    private static final int NO_SIZE = SIZE_TAGS.length - 1;
+    
+    // Smaller transfers mostly measure request latency, not bandwidth
+    private static final long MIN_THROUGHPUT_SAMPLE = 1L << 20;
+    
+    // [operation][success ? 0 : 1][size bucket]
+    private final Timer[][][] requests;
+    private final AtomicInteger uploadsInFlight = new AtomicInteger();
+    private final AtomicInteger downloadsInFlight = new AtomicInteger();
+    private final Counter bytesUploaded;
+    private final Counter bytesDownloaded;
+    private final DistributionSummary uploadThroughput;
+    private final DistributionSummary downloadThroughput;
+    
+    public StorageMetrics(@Value("${storage.backend:local}") String backend, MeterRegistry meterRegistry) {
+        Operation[] operations = Operation.values();
+        requests = new Timer[operations.length][2][SIZE_TAGS.length];
+        for (Operation operation : operations) {
+            for (int outcome = 0; outcome < 2; outcome++) {
+                for (int size = 0; size < SIZE_TAGS.length; size++) {
+                    requests[operation.ordinal()][outcome][size] = Timer.builder("storage.requests")
+                            .description("Storage backend calls; for gets, the time until the object can be streamed")
+                            .tag("backend", backend)
+                            .tag("operation", operation.name().toLowerCase(Locale.ROOT))
+                            .tag("outcome", outcome == 0 ? "success" : "error")
+                            .tag("size", SIZE_TAGS[size])
+                            .register(meterRegistry);
+                }
+            }
+        }
+        
+        Gauge.builder("storage.transfers.active", uploadsInFlight, AtomicInteger::get)
+                .description("Uploads to storage in progress")
+                .tag("backend", backend)
+                .tag("direction", "upload")
+                .register(meterRegistry);
+        Gauge.builder("storage.transfers.active", downloadsInFlight, AtomicInteger::get)
+                .description("Downloads from storage opened and not yet closed")
+                .tag("backend", backend)
+                .tag("direction", "download")
+                .register(meterRegistry);
+        
+        bytesUploaded = transferredBytes(meterRegistry, backend, "upload");
+        bytesDownloaded = transferredBytes(meterRegistry, backend, "download");
+        uploadThroughput = throughput(meterRegistry, backend, "upload");
+        downloadThroughput = throughput(meterRegistry, backend, "download");
+    }
+    
+    // Times a store of the given number of bytes, counting it in flight until it completes
+    public <T> CompletableFuture<T> timePut(long size, StorageCall<T> put) {
+        long start = System.nanoTime();
+        uploadsInFlight.incrementAndGet();
+        return invoke(put).whenComplete((ignored, ex) -> recordPut(start, size, ex == null));
+    }
+    
+    // Times a store whose size is only known once it is done; the call completes with the bytes stored
+    public CompletableFuture<Long> timeStreamedPut(StorageCall<Long> put) {
+        long start = System.nanoTime();
+        uploadsInFlight.incrementAndGet();
+        return invoke(put).whenComplete((size, ex) -> recordPut(start, ex == null ? size : -1, ex == null));
+    }
+    
+    /**
+     * Times opening a read of {@code size} bytes. The returned content stays in flight until it
+     * is closed, when the bytes actually read and the overall throughput are recorded.
+     */
+    public CompletableFuture<ObjectContent> timeGet(long size, StorageCall<ObjectContent> get) {
+        long start = System.nanoTime();
+        downloadsInFlight.incrementAndGet();
+        return invoke(get)
+                .whenComplete((content, ex) -> {
+                    timer(Operation.GET, ex == null, bucket(size)).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    if (ex != null) {
+                        downloadsInFlight.decrementAndGet();
+                    }
+                })
+                .thenApply(content -> new MeteredContent(content, start));
+    }
+    
+    public void recordDelete(long startNanos, boolean success) {
+        timer(Operation.DELETE, success, NO_SIZE).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    private static <T> CompletableFuture<T> invoke(StorageCall<T> call) {
+        try {
+            return call.call();
+        } catch (IOException | RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+    
+    private void recordPut(long start, long size, boolean success) {
+        uploadsInFlight.decrementAndGet();
+        long elapsed = System.nanoTime() - start;
+        timer(Operation.PUT, success, bucket(size)).record(elapsed, TimeUnit.NANOSECONDS);
+        if (success && size > 0) {
+            bytesUploaded.increment(size);
+            recordThroughput(uploadThroughput, size, elapsed);
+        }
+    }
+    
+    private Timer timer(Operation operation, boolean success, int sizeBucket) {
+        return requests[operation.ordinal()][success ? 0 : 1][sizeBucket];
+    }
+    
+    private static int bucket(long size) {
+        if (size < 0) {
+            return NO_SIZE;
+        }
+        for (int i = 0; i < SIZE_BOUNDS.length; i++) {
+            if (size <= SIZE_BOUNDS[i]) {
+                return i;
+            }
+        }
+        return SIZE_BOUNDS.length;
+    }
+    
+    private static void recordThroughput(DistributionSummary summary, long bytes, long elapsedNanos) {
+        if (bytes >= MIN_THROUGHPUT_SAMPLE && elapsedNanos > 0) {
+            summary.record(bytes * 1e9 / elapsedNanos);
+        }
+    }
+    
+    private static Counter transferredBytes(MeterRegistry meterRegistry, String backend, String direction) {
+        return Counter.builder("storage.transfer.bytes")
+                .description("Bytes moved to or from storage")
+                .baseUnit("bytes")
+                .tag("backend", backend)
+                .tag("direction", direction)
+                .register(meterRegistry);
+    }
+    
+    private static DistributionSummary throughput(MeterRegistry meterRegistry, String backend, String direction) {
+        return DistributionSummary.builder("storage.transfer.throughput")
+                .description("Per-transfer throughput of transfers of at least 1 MB")
+                .baseUnit("bytes.per.second")
+                .tag("backend", backend)
+                .tag("direction", direction)
+                .register(meterRegistry);
+    }
+    
+    // Counts what the caller actually reads; zero-copy transfers are passed through untouched
+    private class MeteredContent implements ObjectContent {
+        
+        private final ObjectContent content;
+        private final long start;
+        private long bytesRead;
+        private boolean closed;
+        
+        MeteredContent(ObjectContent content, long start) {
+            this.content = content;
+            this.start = start;
+        }
+        
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new FilterInputStream(content.getInputStream()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        bytesRead++;
+                    }
+                    return b;
+                }
+                
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int read = super.read(buffer, offset, length);
+                    if (read > 0) {
+                        bytesRead += read;
+                    }
+                    return read;
+                }
+            };
+        }
+        
+        @Override
+        public long transferTo(OutputStream outputStream) throws IOException {
+            long transferred = content.transferTo(outputStream);
+            bytesRead += transferred;
+            return transferred;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                content.close();
+            } finally {
+                if (!closed) {
+                    closed = true;
+                    downloadsInFlight.decrementAndGet();
+                    bytesDownloaded.increment(bytesRead);
+                    recordThroughput(downloadThroughput, bytesRead, System.nanoTime() - start);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.filestorage.service;
+
+import com.filestorage.model.FileReference;
+import com.filestorage.model.FileStatus;
+import com.filestorage.repository.FileMetadataRepository;
+import com.filestorage.repository.PendingUploadRepository;
+import com.filestorage.repository.StoredObjectRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Brings storage and the database back in line ({@code storage.reconcile.enabled}). Objects that no
+ * file, stored object or pending upload refers to are deleted, and file rows whose object is gone
+ * from storage are removed like a bulk delete would. Anything younger than the grace period is left
+ * alone, since its upload may still be completing. A run that would remove more than
+ * {@code max-removals} of either kind removes nothing of that kind: that many at once points to a
+ * misconfigured bucket or directory rather than drift.
+ */
+@Service
+@ConditionalOnProperty(name = "storage.reconcile.enabled", havingValue = "true")
+public class StorageReconciler {
+    
+    private static final Logger logger = LoggerFactory.getLogger(StorageReconciler.class);
+    
+    private static final int BATCH_SIZE = 1000;
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+    
+    @Autowired
+    private StoredObjectRepository storedObjectRepository;
+    
+    @Autowired
+    private PendingUploadRepository pendingUploadRepository;
+    
+    @Autowired
+    private FileStorageService fileStorageService;
+    
+    @Autowired(required = false)
+    private UploadSpool uploadSpool;
+    
+    @Value("${storage.reconcile.grace-period:PT1H}")
+    private Duration gracePeriod;
+    
+    // Rows still waiting in another node's write-behind spool are only given up on after this long
+    @Value("${storage.reconcile.pending-timeout:24h}")
+    private Duration pendingTimeout;
+    
+    @Value("${storage.reconcile.max-removals:1000}")
+    private int maxRemovals;
+    
+    private final Counter objectsRemoved;
+    private final Counter filesRemoved;
+    
+    public StorageReconciler(MeterRegistry meterRegistry) {
+        this.objectsRemoved = Counter.builder("storage.reconcile.removed")
+                .description("Objects and file rows removed by reconciliation")
+                .tag("kind", "object")
+                .register(meterRegistry);
+        this.filesRemoved = Counter.builder("storage.reconcile.removed")
+                .description("Objects and file rows removed by reconciliation")
+                .tag("kind", "file")
+                .register(meterRegistry);
+    }
+    
+    @Scheduled(fixedDelayString = "${storage.reconcile.interval:PT6H}",
+               initialDelayString = "${storage.reconcile.interval:PT6H}")
+    public void reconcile() {
+        Instant cutoff = Instant.now().minus(gracePeriod);
+        Listing listing;
+        try {
+            listing = listStorage(cutoff);
+        } catch (IOException | RuntimeException ex) {
+            // Without a complete listing every file would look missing
+            logger.error("Reconciliation skipped: could not list storage", ex);
+            return;
+        }
+        removeOrphanedObjects(listing.orphans());
+        removeMissingFiles(listing.keyHashes(), cutoff);
+    }
+    
+    /**
+     * One pass over storage. Objects older than the cutoff are checked against the database a batch
+     * at a time; every key is also recorded as a 64-bit hash, so the file rows can be checked against
+     * the listing afterwards with 8 bytes per object instead of the keys themselves.
+     */
+    private Listing listStorage(Instant cutoff) throws IOException {
+        List<String> orphans = new ArrayList<>();
+        long[] keyHashes = new long[1024];
+        int keyCount = 0;
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        try (Stream<ListedObject> objects = storageBackend.list()) {
+            Iterator<ListedObject> iterator = objects.iterator();
+            while (iterator.hasNext()) {
+                ListedObject object = iterator.next();
+                if (keyCount == keyHashes.length) {
+                    keyHashes = Arrays.copyOf(keyHashes, keyCount * 2);
+                }
+                keyHashes[keyCount++] = hash(object.key());
+                
+                // Orphans beyond the limit are not collected; the count is enough to refuse the pass
+                if (object.lastModified().isBefore(cutoff) && orphans.size() <= maxRemovals) {
+                    batch.add(object.key());
+                    if (batch.size() == BATCH_SIZE) {
+                        orphans.addAll(findUnreferenced(batch));
+                        batch.clear();
+                    }
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            orphans.addAll(findUnreferenced(batch));
+        }
+        
+        keyHashes = Arrays.copyOf(keyHashes, keyCount);
+        Arrays.sort(keyHashes);
+        return new Listing(orphans, keyHashes);
+    }
+    
+    private List<String> findUnreferenced(List<String> keys) {
+        Set<String> referenced = new HashSet<>(fileMetadataRepository.findExistingFileNames(keys));
+        referenced.addAll(storedObjectRepository.findExistingStorageKeys(keys));
+        referenced.addAll(pendingUploadRepository.findExistingStorageKeys(keys));
+        return keys.stream().filter(key -> !referenced.contains(key)).toList();
+    }
+    
+    private void removeOrphanedObjects(List<String> orphans) {
+        if (orphans.isEmpty()) {
+            return;
+        }
+        if (orphans.size() > maxRemovals) {
+            logger.error("Reconciliation found more than {} objects without metadata; none were deleted", maxRemovals);
+            return;
+        }
+        Map<String, String> failures = storageBackend.deleteAll(orphans);
+        objectsRemoved.increment(orphans.size() - failures.size());
+        logger.info("Reconciliation deleted {} objects without metadata", orphans.size() - failures.size());
+        failures.forEach((key, reason) -> logger.warn("Could not delete orphaned object {}: {}", key, reason));
+    }
+    
+    private void removeMissingFiles(long[] keyHashes, Instant cutoff) {
+        LocalDateTime rowCutoff = LocalDateTime.ofInstant(cutoff, ZoneId.systemDefault());
+        LocalDateTime pendingCutoff = LocalDateTime.now().minus(pendingTimeout);
+        List<FileReference> missing = new ArrayList<>();
+        long afterId = 0;
+        List<FileReference> page;
+        do {
+            page = fileMetadataRepository.findReconcilableAfter(afterId, FileStatus.PENDING, rowCutoff, pendingCutoff,
+                    PageRequest.of(0, BATCH_SIZE));
+            for (FileReference file : page) {
+                // A hash collision can only hide a missing object, never condemn a present one
+                if (Arrays.binarySearch(keyHashes, hash(file.getFileName())) < 0
+                        && (uploadSpool == null || !uploadSpool.contains(file.getFileName()))) {
+                    missing.add(file);
+                    if (missing.size() > maxRemovals) {
+                        logger.error("Reconciliation found more than {} files missing from storage; none were removed",
+                                maxRemovals);
+                        return;
+                    }
+                }
+            }
+            if (!page.isEmpty()) {
+                afterId = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == BATCH_SIZE);
+        
+        // The listing is a snapshot: a write-behind push may have landed since, so each candidate is checked again
+        missing.removeIf(file -> !confirmMissing(file.getFileName()));
+        if (missing.isEmpty()) {
+            return;
+        }
+        missing.stream()
+                .collect(Collectors.groupingBy(FileReference::getUserId))
+                .forEach((userId, files) -> {
+                    fileStorageService.removeFiles(userId, files);
+                    filesRemoved.increment(files.size());
+                });
+        logger.warn("Reconciliation removed {} files whose objects are missing from storage", missing.size());
+    }
+    
+    private boolean confirmMissing(String key) {
+        try {
+            return !storageBackend.exists(key);
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Could not check {}; leaving its files for the next run", key, ex);
+            return false;
+        }
+    }
+    
+    // 64-bit FNV-1a
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+    
+    private record Listing(List<String> orphans, long[] keyHashes) {
+    }
+}
@@ -0,0 +1,16 @@
+package com.filestorage.service;
+
+public record StorageUsage(long bytesUsed, long fileCount, long maxBytes, long maxFiles) {
+    
+    public long getRemainingBytes() {
+        return Math.max(0, maxBytes - bytesUsed);
+    }
+    
+    public int getPercentUsed() {
+        return maxBytes <= 0 ? 100 : (int) Math.min(100, bytesUsed * 100 / maxBytes);
+    }
+    
+    public boolean allows(long bytes, long files) {
+        return bytesUsed + bytes <= maxBytes && fileCount + files <= maxFiles;
+    }
+}
@@ -0,0 +1,15 @@
+package com.filestorage.service;
+
+import com.filestorage.model.StorageTier;
+
+import java.io.IOException;
+
+/**
+ * A backend that can keep rarely read objects on a cheaper tier. Objects keep their key when they
+ * move, and reads, deletes and listings find them on either tier.
+ */
+public interface TieredStorageBackend extends StorageBackend {
+    
+    // Moving an object to the tier it is already on does nothing
+    void moveToTier(String key, StorageTier tier) throws IOException;
+}
@@ -0,0 +1,224 @@
+package com.filestorage.service;
+
+import com.filestorage.model.RevokedToken;
+import com.filestorage.repository.RevokedTokenRepository;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Issues and verifies the signed tokens of the stateless mode ({@code security.token.enabled}).
+ * A token is {@code keyId.payload.signature}: the payload carries the user id and name, when it
+ * was issued and expires, and a random token id, signed with HMAC-SHA256. Verifying one needs no
+ * database or session lookup, only the keys and an in-memory copy of the revocation list.
+ */
+@Service
+public class TokenService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(TokenService.class);
+    
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    
+    @Autowired
+    private RevokedTokenRepository revokedTokenRepository;
+    
+    @Autowired
+    private Environment environment;
+    
+    @Value("${security.token.enabled:false}")
+    private boolean enabled;
+    
+    @Value("${security.token.ttl:12h}")
+    private Duration ttl;
+    
+    // Signs new tokens; the other configured keys only verify, so a key can be retired without logging anyone out
+    @Value("${security.token.active-key:}")
+    private String activeKeyId;
+    
+    private final SecureRandom random = new SecureRandom();
+    private Map<String, SecretKeySpec> keys;
+    
+    // Token id to expiry, and user id to the instant before which their tokens are revoked. Entries are only
+    // added, or dropped once they can no longer match a live token, so no lock is needed around the repository calls
+    private final Map<Long, Long> revokedTokens = new ConcurrentHashMap<>();
+    private final Map<Long, Long> revokedUsers = new ConcurrentHashMap<>();
+    
+    @PostConstruct
+    public void init() {
+        Map<String, String> configured = Binder.get(environment)
+                .bind("security.token.keys", Bindable.mapOf(String.class, String.class))
+                .orElse(Map.of());
+        keys = new HashMap<>();
+        configured.forEach((id, secret) -> {
+            byte[] key = Base64.getDecoder().decode(secret);
+            if (id.contains(".") || key.length < 32) {
+                throw new IllegalStateException("Token key " + id + " must have an id without dots and at least 32 bytes");
+            }
+            keys.put(id, new SecretKeySpec(key, ALGORITHM));
+        });
+        
+        if (keys.isEmpty()) {
+            byte[] key = new byte[32];
+            random.nextBytes(key);
+            activeKeyId = "local";
+            keys.put(activeKeyId, new SecretKeySpec(key, ALGORITHM));
+            if (enabled) {
+                logger.warn("No security.token.keys configured; tokens are signed with a random key and only "
+                        + "accepted by this node until it restarts");
+            }
+        } else if (!keys.containsKey(activeKeyId)) {
+            throw new IllegalStateException("security.token.active-key must name one of security.token.keys");
+        }
+        refreshRevocations();
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    public Duration getTtl() {
+        return ttl;
+    }
+    
+    public IssuedToken issue(FileStorageUserDetails user) {
+        long issuedAt = System.currentTimeMillis();
+        long expiresAt = issuedAt + ttl.toMillis();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream payload = new DataOutputStream(bytes)) {
+            payload.writeLong(user.getUserId());
+            payload.writeLong(issuedAt);
+            payload.writeLong(expiresAt);
+            payload.writeLong(random.nextLong());
+            payload.writeUTF(user.getUsername());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        String signed = activeKeyId + "." + ENCODER.encodeToString(bytes.toByteArray());
+        return new IssuedToken(signed + "." + ENCODER.encodeToString(sign(activeKeyId, signed)),
+                Instant.ofEpochMilli(expiresAt));
+    }
+    
+    // The token's user, when the signature checks out and the token has neither expired nor been revoked
+    public Optional<FileStorageUserDetails> verify(String token) {
+        return decode(token)
+                .filter(claims -> claims.expiresAt() > System.currentTimeMillis())
+                .filter(claims -> !isRevoked(claims))
+                .map(claims -> new FileStorageUserDetails(claims.userId(), claims.username(), "", true, List.of()));
+    }
+    
+    // Logout: this token stops working at once on this node, and on the others after their next refresh
+    public void revoke(String token) {
+        decode(token).ifPresent(claims -> {
+            revokedTokenRepository.save(new RevokedToken(null, claims.tokenId(), claims.userId(), null,
+                    toLocalDateTime(claims.expiresAt())));
+            revokedTokens.put(claims.tokenId(), claims.expiresAt());
+        });
+    }
+    
+    // Invalidates every token the user holds, e.g. when the account is removed
+    public void revokeUser(Long userId) {
+        long now = System.currentTimeMillis();
+        revokedTokenRepository.save(new RevokedToken(null, null, userId, now, toLocalDateTime(now + ttl.toMillis())));
+        revokedUsers.merge(userId, now, Math::max);
+    }
+    
+    // Picks up revocations made on other nodes and drops entries whose tokens have expired
+    @Scheduled(fixedDelayString = "${security.token.revocation-refresh:PT30S}")
+    public void refreshRevocations() {
+        if (!enabled) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        revokedTokenRepository.deleteExpired(now);
+        for (RevokedToken revoked : revokedTokenRepository.findByExpiresAtAfter(now)) {
+            if (revoked.getTokenId() != null) {
+                revokedTokens.put(revoked.getTokenId(), toEpochMillis(revoked.getExpiresAt()));
+            } else {
+                revokedUsers.merge(revoked.getUserId(), revoked.getIssuedBefore(), Math::max);
+            }
+        }
+        // Merged rather than replaced, so a revocation made here while the query ran is not lost
+        long nowMillis = System.currentTimeMillis();
+        revokedTokens.values().removeIf(expiresAt -> expiresAt <= nowMillis);
+        revokedUsers.values().removeIf(issuedBefore -> issuedBefore + ttl.toMillis() <= nowMillis);
+    }
+    
+    private boolean isRevoked(Claims claims) {
+        Long issuedBefore = revokedUsers.get(claims.userId());
+        return revokedTokens.containsKey(claims.tokenId()) || (issuedBefore != null && claims.issuedAt() <= issuedBefore);
+    }
+    
+    private Optional<Claims> decode(String token) {
+        if (!StringUtils.hasText(token)) {
+            return Optional.empty();
+        }
+        int signatureStart = token.lastIndexOf('.');
+        int payloadStart = token.indexOf('.');
+        if (payloadStart <= 0 || signatureStart <= payloadStart) {
+            return Optional.empty();
+        }
+        String keyId = token.substring(0, payloadStart);
+        if (!keys.containsKey(keyId)) {
+            return Optional.empty();
+        }
+        
+        try {
+            String signed = token.substring(0, signatureStart);
+            byte[] signature = DECODER.decode(token.substring(signatureStart + 1));
+            if (!MessageDigest.isEqual(signature, sign(keyId, signed))) {
+                return Optional.empty();
+            }
+            DataInputStream payload = new DataInputStream(new ByteArrayInputStream(
+                    DECODER.decode(signed.substring(payloadStart + 1))));
+            return Optional.of(new Claims(payload.readLong(), payload.readLong(), payload.readLong(),
+                    payload.readLong(), payload.readUTF()));
+        } catch (IllegalArgumentException | IOException ex) {
+            return Optional.empty();
+        }
+    }
+    
+    private byte[] sign(String keyId, String signed) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(keys.get(keyId));
+            return mac.doFinal(signed.getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Could not sign token", ex);
+        }
+    }
+    
+    private static LocalDateTime toLocalDateTime(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+    }
+    
+    private static long toEpochMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+    
+    private record Claims(long userId, long issuedAt, long expiresAt, long tokenId, String username) {
+    }
+}
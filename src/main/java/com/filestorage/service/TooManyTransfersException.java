@@ -0,0 +1,23 @@
+package com.filestorage.service;
+
+import java.time.Duration;
+
+// Raised when a transfer is turned away by admission control; the client should try again after retryAfter
+public class TooManyTransfersException extends RuntimeException {
+    
+    private final Duration retryAfter;
+    
+    public TooManyTransfersException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+    
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+    
+    // For the Retry-After header; rounded up, so a client waiting exactly this long finds capacity there
+    public long getRetryAfterSeconds() {
+        return Math.max(1, (retryAfter.toMillis() + 999) / 1000);
+    }
+}
@@ -0,0 +1,200 @@
+package com.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for uploads and downloads. The node admits uploads while the bytes of the
+ * uploads it is receiving stay under a cap, and downloads while that cap is not reached; each user
+ * also has token buckets for transfer requests and for bytes transferred. Everything is kept in
+ * atomics, so admitting a request takes no lock, and a rejected request costs one failed check.
+ */
+@Component
+public class TransferLimiter {
+    
+    public enum Direction {
+        UPLOAD, DOWNLOAD
+    }
+    
+    private enum Reason {
+        IN_FLIGHT, REQUESTS, BANDWIDTH
+    }
+    
+    private final boolean enabled;
+    private final long maxInFlightBytes;
+    private final long unknownLengthBytes;
+    private final Duration busyRetryAfter;
+    private final double requestsPerSecond;
+    private final long requestBurst;
+    private final double bytesPerSecond;
+    private final long byteBurst;
+    
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicInteger inFlightTransfers = new AtomicInteger();
+    private final Map<Long, UserLimits> users = new ConcurrentHashMap<>();
+    
+    // [direction][reason]
+    private final Counter[][] rejected;
+    
+    public TransferLimiter(@Value("${storage.admission.enabled:true}") boolean enabled,
+                           @Value("${storage.admission.max-in-flight-bytes:512MB}") DataSize maxInFlightBytes,
+                           @Value("${storage.admission.unknown-length-bytes:8MB}") DataSize unknownLengthBytes,
+                           @Value("${storage.admission.busy-retry-after:2s}") Duration busyRetryAfter,
+                           @Value("${storage.rate-limit.requests-per-second:10}") double requestsPerSecond,
+                           @Value("${storage.rate-limit.request-burst:30}") long requestBurst,
+                           @Value("${storage.rate-limit.bytes-per-second:25MB}") DataSize bytesPerSecond,
+                           @Value("${storage.rate-limit.byte-burst:200MB}") DataSize byteBurst,
+                           MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.maxInFlightBytes = maxInFlightBytes.toBytes();
+        this.unknownLengthBytes = unknownLengthBytes.toBytes();
+        this.busyRetryAfter = busyRetryAfter;
+        this.requestsPerSecond = requestsPerSecond;
+        this.requestBurst = requestBurst;
+        this.bytesPerSecond = bytesPerSecond.toBytes();
+        this.byteBurst = byteBurst.toBytes();
+        
+        Gauge.builder("admission.inflight.bytes", inFlightBytes, AtomicLong::get)
+                .description("Bytes of admitted uploads still being received")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("admission.inflight.transfers", inFlightTransfers, AtomicInteger::get)
+                .description("Admitted uploads and downloads in progress")
+                .register(meterRegistry);
+        Gauge.builder("admission.users.tracked", users, Map::size)
+                .description("Users with rate limit state, i.e. with transfers in the last few minutes")
+                .register(meterRegistry);
+        rejected = new Counter[Direction.values().length][Reason.values().length];
+        for (Direction direction : Direction.values()) {
+            for (Reason reason : Reason.values()) {
+                rejected[direction.ordinal()][reason.ordinal()] = Counter.builder("admission.rejected")
+                        .description("Transfers turned away with 429")
+                        .tag("direction", direction.name().toLowerCase(Locale.ROOT))
+                        .tag("reason", reason.name().toLowerCase(Locale.ROOT).replace('_', '-'))
+                        .register(meterRegistry);
+            }
+        }
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Admits a transfer or throws {@link TooManyTransfersException}. contentLength is the upload's
+     * declared size, or -1 when unknown (and for downloads); the returned permit must be released
+     * when the transfer ends.
+     */
+    public Permit admit(Long userId, Direction direction, long contentLength) {
+        // The node's capacity is checked first, so a request turned away for being busy costs the user no tokens
+        long reserved = 0;
+        if (direction == Direction.UPLOAD) {
+            reserved = contentLength >= 0 ? contentLength : unknownLengthBytes;
+            if (!reserve(reserved)) {
+                throw reject(direction, Reason.IN_FLIGHT, busyRetryAfter);
+            }
+        } else if (inFlightBytes.get() >= maxInFlightBytes) {
+            throw reject(direction, Reason.IN_FLIGHT, busyRetryAfter);
+        }
+        
+        UserLimits limits = users.computeIfAbsent(userId, id -> new UserLimits());
+        long wait = limits.requests.tryAcquire(1);
+        if (wait > 0) {
+            inFlightBytes.addAndGet(-reserved);
+            throw reject(direction, Reason.REQUESTS, Duration.ofNanos(wait));
+        }
+        
+        // Uploads pay for their bytes up front, so parallel uploads from one user are held back at once;
+        // downloads pay when they end, once their size is known
+        wait = limits.bandwidth.tryAcquire(direction == Direction.UPLOAD ? reserved : 0);
+        if (wait > 0) {
+            inFlightBytes.addAndGet(-reserved);
+            limits.requests.refund(1);
+            throw reject(direction, Reason.BANDWIDTH, Duration.ofNanos(wait));
+        }
+        inFlightTransfers.incrementAndGet();
+        return new Permit(limits, direction, reserved);
+    }
+    
+    // Drops the state of users whose buckets have filled up again; they start afresh with full buckets
+    @Scheduled(fixedDelayString = "${storage.rate-limit.eviction-interval:PT5M}")
+    public void evictIdleUsers() {
+        users.values().removeIf(UserLimits::isIdle);
+    }
+    
+    // One oversized upload is admitted when nothing else is in flight, so it can never be starved
+    private boolean reserve(long bytes) {
+        while (true) {
+            long current = inFlightBytes.get();
+            if (current > 0 && current + bytes > maxInFlightBytes) {
+                return false;
+            }
+            if (inFlightBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+    
+    private TooManyTransfersException reject(Direction direction, Reason reason, Duration retryAfter) {
+        rejected[direction.ordinal()][reason.ordinal()].increment();
+        String message = switch (reason) {
+            case IN_FLIGHT -> "The server is busy with other transfers";
+            case REQUESTS -> "Too many transfer requests";
+            case BANDWIDTH -> "Transfer bandwidth limit reached";
+        };
+        return new TooManyTransfersException(message, retryAfter);
+    }
+    
+    private class UserLimits {
+        
+        final RateBucket requests = new RateBucket(requestsPerSecond, requestBurst);
+        final RateBucket bandwidth = new RateBucket(bytesPerSecond, byteBurst);
+        
+        boolean isIdle() {
+            return requests.isFull() && bandwidth.isFull();
+        }
+    }
+    
+    /**
+     * An admitted transfer. Releasing it returns its reserved bytes to the node and charges a
+     * download's bytes to the user; releasing twice has no effect.
+     */
+    public class Permit {
+        
+        private final UserLimits limits;
+        private final Direction direction;
+        private final long reservedBytes;
+        private final AtomicBoolean released = new AtomicBoolean();
+        
+        private Permit(UserLimits limits, Direction direction, long reservedBytes) {
+            this.limits = limits;
+            this.direction = direction;
+            this.reservedBytes = reservedBytes;
+        }
+        
+        // transferredBytes is the size of the response for downloads, or -1 when it is not known
+        public void release(long transferredBytes) {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            inFlightBytes.addAndGet(-reservedBytes);
+            inFlightTransfers.decrementAndGet();
+            if (direction == Direction.DOWNLOAD) {
+                limits.bandwidth.charge(transferredBytes >= 0 ? transferredBytes : unknownLengthBytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.filestorage.service;
+
+import com.filestorage.model.FileMetadata;
+
+// Outcome of one file in a multi-file upload; fileId is null when error is set
+public record UploadResult(String originalFileName, Long fileId, String error) {
+    
+    public static UploadResult stored(FileMetadata fileMetadata) {
+        return new UploadResult(fileMetadata.getOriginalFileName(), fileMetadata.getId(), null);
+    }
+    
+    public static UploadResult failed(String originalFileName, String error) {
+        return new UploadResult(originalFileName, null, error);
+    }
+}
@@ -0,0 +1,309 @@
+package com.filestorage.service;
+
+import com.filestorage.model.FileStatus;
+import com.filestorage.repository.FileMetadataRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Write-behind for uploads ({@code storage.write-behind.enabled}): the bytes are written durably to
+ * a local spool directory and the upload is answered once its metadata row is committed as PENDING.
+ * A pool of workers then pushes each spooled object to the storage backend, retrying with backoff,
+ * and marks its rows AVAILABLE. Until then downloads are served from the spool. Entries survive a
+ * restart and are picked up again by the next drain; the spool belongs to this node only.
+ */
+@Component
+@ConditionalOnProperty(name = "storage.write-behind.enabled", havingValue = "true")
+public class UploadSpool {
+    
+    private static final Logger logger = LoggerFactory.getLogger(UploadSpool.class);
+    
+    private static final String DATA_SUFFIX = ".data";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_PREFIX = ".tmp-";
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+    
+    @Autowired
+    private FileMetadataCache fileMetadataCache;
+    
+    @Autowired
+    private StorageMetrics storageMetrics;
+    
+    private final Path directory;
+    private final Duration maxRetryDelay;
+    private final Duration abandonAfter;
+    private final ScheduledExecutorService workers;
+    
+    // Keys waiting for a worker; one may be submitted again while it is being pushed, which is harmless
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> failedAttempts = new ConcurrentHashMap<>();
+    private final Counter retries;
+    
+    public UploadSpool(@Value("${storage.write-behind.spool-directory:./spool}") String directory,
+                       @Value("${storage.write-behind.workers:4}") int workers,
+                       @Value("${storage.write-behind.max-retry-delay:5m}") Duration maxRetryDelay,
+                       @Value("${storage.write-behind.abandon-after:1h}") Duration abandonAfter,
+                       MeterRegistry meterRegistry) throws IOException {
+        this.directory = Paths.get(directory).toAbsolutePath().normalize();
+        this.maxRetryDelay = maxRetryDelay;
+        this.abandonAfter = abandonAfter;
+        Files.createDirectories(this.directory);
+        
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newScheduledThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "write-behind-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        this.retries = Counter.builder("storage.writebehind.retries")
+                .description("Failed attempts to push a spooled upload to storage")
+                .register(meterRegistry);
+        Gauge.builder("storage.writebehind.pending", queued, Set::size)
+                .description("Spooled uploads waiting to be pushed to storage")
+                .register(meterRegistry);
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        // Whatever is still spooled is pushed after the next start
+        workers.shutdownNow();
+    }
+    
+    public void write(String key, String contentType, InputStream inputStream) throws IOException {
+        Path tempFile = newTempFile();
+        try {
+            Files.copy(inputStream, tempFile);
+            commit(key, contentType, tempFile);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+    
+    public boolean contains(String key) {
+        return Files.exists(dataFile(key));
+    }
+    
+    // Returns null when the key is not (or no longer) spooled
+    public ObjectContent read(String key, long start, long end) {
+        try {
+            return FileChannelContent.open(dataFile(key), start, end);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+    
+    // Drops the spooled copy, e.g. because the file was deleted before it reached storage
+    public void discard(String key) {
+        deleteQuietly(metaFile(key));
+        deleteQuietly(dataFile(key));
+    }
+    
+    // Queues the key for pushing; called once its metadata row has committed
+    public void submit(String key) {
+        if (queued.add(key)) {
+            schedule(key, Duration.ZERO);
+        }
+    }
+    
+    // Picks up entries left by a restart or missed submit, and sweeps writes that never completed
+    @Scheduled(fixedDelayString = "${storage.write-behind.poll-interval:PT1M}")
+    public void drain() {
+        Instant staleBefore = Instant.now().minus(abandonAfter);
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(path -> {
+                String name = path.getFileName().toString();
+                try {
+                    if (name.endsWith(META_SUFFIX)) {
+                        submit(readKey(path));
+                    } else if ((name.startsWith(TEMP_PREFIX)
+                            || (name.endsWith(DATA_SUFFIX) && !Files.exists(metaFileFor(path))))
+                            && Files.getLastModifiedTime(path).toInstant().isBefore(staleBefore)) {
+                        // A data file gets its meta file before the upload is answered, so one without was never committed
+                        Files.deleteIfExists(path);
+                    }
+                } catch (NoSuchFileException ex) {
+                    // Pushed or discarded while listing
+                } catch (IOException ex) {
+                    logger.warn("Could not read spool entry {}", path, ex);
+                }
+            });
+        } catch (IOException ex) {
+            logger.error("Could not list the write-behind spool {}", directory, ex);
+        }
+    }
+    
+    private void schedule(String key, Duration delay) {
+        try {
+            workers.schedule(() -> push(key), delay.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // Shutting down; the next start drains it
+            queued.remove(key);
+        }
+    }
+    
+    private void push(String key) {
+        queued.remove(key);
+        try {
+            Path dataFile = dataFile(key);
+            Path metaFile = metaFile(key);
+            if (!Files.exists(metaFile)) {
+                // Already pushed (or discarded); rows committed after that still need marking
+                if (fileMetadataRepository.markAvailable(key, FileStatus.PENDING, FileStatus.AVAILABLE) > 0) {
+                    fileMetadataCache.evictStorageKey(key);
+                }
+                failedAttempts.remove(key);
+                return;
+            }
+            
+            if (!fileMetadataRepository.existsByFileName(key)) {
+                // Either its row has not committed yet (it is submitted when it does) or the upload failed
+                if (Files.getLastModifiedTime(metaFile).toInstant().isBefore(Instant.now().minus(abandonAfter))) {
+                    logger.warn("Discarding spooled upload {} that has no metadata", key);
+                    discard(key);
+                }
+                failedAttempts.remove(key);
+                return;
+            }
+            
+            long size = Files.size(dataFile);
+            String contentType = readContentType(metaFile);
+            storageMetrics.timePut(size, () -> {
+                try (InputStream inputStream = Files.newInputStream(dataFile)) {
+                    storageBackend.store(key, inputStream, size, contentType);
+                }
+                return CompletableFuture.<Void>completedFuture(null);
+            }).join();
+            
+            if (fileMetadataRepository.markAvailable(key, FileStatus.PENDING, FileStatus.AVAILABLE) > 0) {
+                fileMetadataCache.evictStorageKey(key);
+            } else if (!fileMetadataRepository.existsByFileName(key)) {
+                // Deleted while it was being pushed, after the delete had already cleared storage
+                storageBackend.delete(key);
+            }
+            discard(key);
+            failedAttempts.remove(key);
+        } catch (IOException | RuntimeException ex) {
+            int attempts = failedAttempts.merge(key, 1, Integer::sum);
+            retries.increment();
+            Duration delay = Duration.ofSeconds(1L << Math.min(attempts, 20));
+            if (delay.compareTo(maxRetryDelay) > 0) {
+                delay = maxRetryDelay;
+            }
+            logger.warn("Could not push spooled upload {} (attempt {}); retrying in {}", key, attempts, delay, ex);
+            if (queued.add(key)) {
+                schedule(key, delay);
+            }
+        }
+    }
+    
+    // The data file is synced and renamed into place first, then its meta file; an entry exists once both do
+    private void commit(String key, String contentType, Path tempFile) throws IOException {
+        force(tempFile);
+        Files.move(tempFile, dataFile(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        
+        Path tempMeta = newTempFile();
+        try {
+            try (DataOutputStream meta = new DataOutputStream(Files.newOutputStream(tempMeta))) {
+                meta.writeUTF(key);
+                meta.writeUTF(contentType != null ? contentType : "");
+            }
+            force(tempMeta);
+            Files.move(tempMeta, metaFile(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempMeta);
+        }
+        
+        // Makes the renames themselves durable; not every platform can open a directory for this
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            logger.debug("Could not sync spool directory {}", directory, ex);
+        }
+    }
+    
+    private Path newTempFile() {
+        return directory.resolve(TEMP_PREFIX + UUID.randomUUID());
+    }
+    
+    // Entries are named by a hash of the key, which may contain characters the file system rejects
+    private Path dataFile(String key) {
+        return directory.resolve(entryName(key) + DATA_SUFFIX);
+    }
+    
+    private Path metaFile(String key) {
+        return directory.resolve(entryName(key) + META_SUFFIX);
+    }
+    
+    private static Path metaFileFor(Path dataFile) {
+        String name = dataFile.getFileName().toString();
+        return dataFile.resolveSibling(name.substring(0, name.length() - DATA_SUFFIX.length()) + META_SUFFIX);
+    }
+    
+    private static String entryName(String key) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                    .digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+    
+    private static String readKey(Path metaFile) throws IOException {
+        try (DataInputStream meta = new DataInputStream(Files.newInputStream(metaFile))) {
+            return meta.readUTF();
+        }
+    }
+    
+    private static String readContentType(Path metaFile) throws IOException {
+        try (DataInputStream meta = new DataInputStream(Files.newInputStream(metaFile))) {
+            meta.readUTF();
+            String contentType = meta.readUTF();
+            return contentType.isEmpty() ? null : contentType;
+        }
+    }
+    
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+    
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            logger.warn("Could not delete spool file {}", path, ex);
+        }
+    }
+}
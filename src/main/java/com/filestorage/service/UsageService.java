@@ -0,0 +1,186 @@
+package com.filestorage.service;
+
+import com.filestorage.model.UsageTotals;
+import com.filestorage.model.UserUsage;
+import com.filestorage.repository.FileMetadataRepository;
+import com.filestorage.repository.UserUsageRepository;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Per-user storage usage and quotas. Usage is adjusted in the same transaction that inserts or
+ * deletes file rows, so reading it never scans a user's files. Each user has {@code stripes}
+ * counter rows and every update picks one at random, so parallel uploads by one user rarely wait
+ * on the same row lock.
+ */
+@Service
+public class UsageService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(UsageService.class);
+    
+    @Autowired
+    private UserUsageRepository userUsageRepository;
+    
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+    
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    
+    @Value("${storage.quota.max-bytes:10GB}")
+    private DataSize maxBytes;
+    
+    @Value("${storage.quota.max-files:100000}")
+    private long maxFiles;
+    
+    @Value("${storage.quota.stripes:8}")
+    private int stripes;
+    
+    // Users whose stripes are known to exist, so the check runs once per user and process
+    private final Set<Long> initializedUsers = ConcurrentHashMap.newKeySet();
+    
+    // Suspends the caller's transaction while missing stripes are created, each insert then committing on its
+    // own, so a stripe created concurrently elsewhere cannot roll the caller back
+    private TransactionTemplate outsideTransaction;
+    
+    @PostConstruct
+    public void init() {
+        outsideTransaction = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        outsideTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_NOT_SUPPORTED);
+    }
+    
+    public StorageUsage getUsage(Long userId) {
+        initialize(userId);
+        Optional<UsageTotals> totals = userUsageRepository.findTotals(userId);
+        return new StorageUsage(totals.map(UsageTotals::getBytesUsed).orElse(0L),
+                totals.map(UsageTotals::getFileCount).orElse(0L), maxBytes.toBytes(), maxFiles);
+    }
+    
+    /**
+     * Fails when the files would take the user over quota. Checked before anything is stored, against
+     * committed usage: uploads that are in flight at the same time can together overshoot it.
+     */
+    public void checkQuota(Long userId, long bytes, int files) {
+        StorageUsage usage = getUsage(userId);
+        if (!usage.allows(bytes, files)) {
+            throw new QuotaExceededException(usage);
+        }
+    }
+    
+    // Must be called in the transaction that inserts (positive) or deletes (negative) the file rows
+    public void record(Long userId, long bytes, long files) {
+        if (bytes == 0 && files == 0) {
+            return;
+        }
+        int stripe = ThreadLocalRandom.current().nextInt(stripes);
+        if (userUsageRepository.add(userId, stripe, bytes, files) == 1) {
+            return;
+        }
+        
+        // The stripe is missing, e.g. the stripe count was raised or another node removed the rows. They are
+        // created outside this transaction, so their scan of the files cannot see this change, which is then added
+        initializedUsers.remove(userId);
+        outsideTransaction.executeWithoutResult(status -> initialize(userId));
+        if (userUsageRepository.add(userId, stripe, bytes, files) == 1) {
+            return;
+        }
+        int existing = userUsageRepository.findByUserId(userId).stream().mapToInt(UserUsage::getStripe).min()
+                .orElseThrow(() -> new IllegalStateException("No usage counters for user " + userId));
+        userUsageRepository.add(userId, existing, bytes, files);
+    }
+    
+    public void deleteUsage(Long userId) {
+        userUsageRepository.deleteByUserId(userId);
+        initializedUsers.remove(userId);
+    }
+    
+    // Corrects usage that drifted from the files, e.g. after rows were changed outside the application
+    @Scheduled(fixedDelayString = "${storage.quota.reconcile-interval:PT1H}",
+            initialDelayString = "${storage.quota.reconcile-interval:PT1H}")
+    public void reconcile() {
+        // A cheap unlocked pass finds the candidates; each one is checked again under its locks
+        Map<Long, UsageTotals> actual = fileMetadataRepository.findAllUsage().stream()
+                .collect(Collectors.toMap(UsageTotals::getUserId, Function.identity()));
+        int corrected = 0;
+        for (UsageTotals recorded : userUsageRepository.findAllTotals()) {
+            if (!matches(recorded, actual.get(recorded.getUserId()))) {
+                Boolean changed = transactionTemplate.execute(status -> reconcileUser(recorded.getUserId()));
+                if (Boolean.TRUE.equals(changed)) {
+                    corrected++;
+                }
+            }
+        }
+        if (corrected > 0) {
+            logger.info("Corrected storage usage of {} users", corrected);
+        }
+    }
+    
+    private boolean reconcileUser(Long userId) {
+        // With the stripes locked, uploads and deletes by this user wait, so the files read below
+        // are exactly what the stripes should add up to once this commits
+        List<UserUsage> rows = userUsageRepository.findByUserIdForUpdate(userId);
+        UsageTotals actual = fileMetadataRepository.findUsage(userId).orElse(null);
+        long bytes = actual == null ? 0 : actual.getBytesUsed();
+        long files = actual == null ? 0 : actual.getFileCount();
+        long recordedBytes = rows.stream().mapToLong(UserUsage::getBytesUsed).sum();
+        long recordedFiles = rows.stream().mapToLong(UserUsage::getFileCount).sum();
+        if (rows.isEmpty() || (recordedBytes == bytes && recordedFiles == files)) {
+            return false;
+        }
+        
+        logger.warn("Usage of user {} was {} bytes in {} files, files add up to {} bytes in {} files",
+                userId, recordedBytes, recordedFiles, bytes, files);
+        for (UserUsage row : rows) {
+            boolean first = row == rows.get(0);
+            row.setBytesUsed(first ? bytes : 0L);
+            row.setFileCount(first ? files : 0L);
+        }
+        return true;
+    }
+    
+    // Creates missing stripes; a user who had files before usage was tracked starts from a scan of them
+    private void initialize(Long userId) {
+        if (initializedUsers.contains(userId)) {
+            return;
+        }
+        List<UserUsage> existing = userUsageRepository.findByUserId(userId);
+        if (existing.size() < stripes) {
+            Set<Integer> present = existing.stream().map(UserUsage::getStripe).collect(Collectors.toSet());
+            UsageTotals actual = existing.isEmpty() ? fileMetadataRepository.findUsage(userId).orElse(null) : null;
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                if (present.contains(stripe)) {
+                    continue;
+                }
+                boolean seeded = actual != null && present.isEmpty() && stripe == 0;
+                try {
+                    userUsageRepository.saveAndFlush(new UserUsage(null, userId, stripe,
+                            seeded ? actual.getBytesUsed() : 0L, seeded ? actual.getFileCount() : 0L));
+                } catch (DataIntegrityViolationException ex) {
+                    // Created concurrently by another request or node
+                }
+            }
+        }
+        initializedUsers.add(userId);
+    }
+    
+    private static boolean matches(UsageTotals recorded, UsageTotals actual) {
+        long bytes = actual == null ? 0 : actual.getBytesUsed();
+        long files = actual == null ? 0 : actual.getFileCount();
+        return recorded.getBytesUsed() == bytes && recorded.getFileCount() == files;
+    }
+}
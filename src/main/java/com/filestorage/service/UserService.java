@@ -15,6 +15,15 @@ public class UserService {
     @Autowired
     private PasswordEncoder passwordEncoder;
     
+    @Autowired
+    private FileStorageService fileStorageService;
+    
+    @Autowired
+    private UsageService usageService;
+    
+    @Autowired
+    private TokenService tokenService;
+    
     public User registerUser(String username, String email, String password) {
         if (userRepository.existsByUsername(username)) {
             throw new RuntimeException("Username already exists!");
@@ -37,4 +46,13 @@ public class UserService {
         return userRepository.findByUsername(username)
                 .orElseThrow(() -> new RuntimeException("User not found"));
     }
+    
+    public BulkDeleteResult deleteUser(Long userId) {
+        // Same batched path as the bulk delete API, so storage sees DeleteObjects batches
+        BulkDeleteResult result = fileStorageService.deleteAllFiles(userId);
+        usageService.deleteUsage(userId);
+        tokenService.revokeUser(userId);
+        userRepository.deleteById(userId);
+        return result;
+    }
 }
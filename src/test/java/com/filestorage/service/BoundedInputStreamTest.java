@@ -0,0 +1,68 @@
+package com.filestorage.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BoundedInputStreamTest {
+    
+    @Test
+    void readsAStreamOfExactlyTheMaximumSize() throws IOException {
+        BoundedInputStream bounded = new BoundedInputStream(bytes(100), 100);
+        
+        assertThat(bounded.readAllBytes()).hasSize(100);
+        assertThat(bounded.getCount()).isEqualTo(100);
+        assertThat(bounded.isLimitExceeded()).isFalse();
+    }
+    
+    @Test
+    void failsTheReadThatGoesPastTheMaximum() throws IOException {
+        BoundedInputStream bounded = new BoundedInputStream(bytes(101), 100);
+        byte[] buffer = new byte[60];
+        
+        assertThat(bounded.read(buffer, 0, buffer.length)).isEqualTo(60);
+        assertThatThrownBy(() -> bounded.read(buffer, 0, buffer.length))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("100 bytes");
+        assertThat(bounded.isLimitExceeded()).isTrue();
+        assertThat(bounded.getMaxSize()).isEqualTo(100);
+    }
+    
+    @Test
+    void countsSingleByteReads() throws IOException {
+        BoundedInputStream bounded = new BoundedInputStream(bytes(3), 2);
+        
+        assertThat(bounded.read()).isGreaterThanOrEqualTo(0);
+        assertThat(bounded.read()).isGreaterThanOrEqualTo(0);
+        assertThatThrownBy(bounded::read).isInstanceOf(IOException.class);
+        assertThat(bounded.getCount()).isEqualTo(3);
+    }
+    
+    @Test
+    void countsSkippedBytes() throws IOException {
+        BoundedInputStream bounded = new BoundedInputStream(bytes(50), 40);
+        
+        assertThat(bounded.skip(30)).isEqualTo(30);
+        assertThatThrownBy(() -> bounded.skip(20)).isInstanceOf(IOException.class);
+        assertThat(bounded.isLimitExceeded()).isTrue();
+    }
+    
+    @Test
+    void endOfStreamIsNotCounted() throws IOException {
+        BoundedInputStream bounded = new BoundedInputStream(bytes(0), 0);
+        
+        assertThat(bounded.read()).isEqualTo(-1);
+        assertThat(bounded.read(new byte[8], 0, 8)).isEqualTo(-1);
+        assertThat(bounded.getCount()).isZero();
+        assertThat(bounded.markSupported()).isFalse();
+    }
+    
+    private static InputStream bytes(int length) {
+        return new ByteArrayInputStream(new byte[length]);
+    }
+}
@@ -0,0 +1,43 @@
+package com.filestorage.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FileCursorTest {
+    
+    @Test
+    void decodesWhatItEncodes() {
+        FileCursor cursor = new FileCursor(LocalDateTime.of(2024, 2, 29, 23, 59, 59, 123_456_789), 42L);
+        
+        assertThat(FileCursor.decode(cursor.encode())).isEqualTo(cursor);
+    }
+    
+    @Test
+    void encodesAsAnUrlSafeToken() {
+        String token = new FileCursor(LocalDateTime.of(2024, 1, 1, 0, 0), Long.MAX_VALUE).encode();
+        
+        assertThat(token).matches("[A-Za-z0-9_-]+");
+    }
+    
+    @Test
+    void rejectsMalformedTokens() {
+        assertThatThrownBy(() -> FileCursor.decode("not a cursor!"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> FileCursor.decode(encode("2024-01-01T00:00")))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> FileCursor.decode(encode("yesterday|1")))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> FileCursor.decode(encode("2024-01-01T00:00|one")))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+    
+    private static String encode(String raw) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+}
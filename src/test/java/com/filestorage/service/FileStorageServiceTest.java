@@ -0,0 +1,130 @@
+package com.filestorage.service;
+
+import com.filestorage.model.FileMetadata;
+import com.filestorage.model.StoredObject;
+import com.filestorage.repository.StoredObjectRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = {
+        "spring.jpa.show-sql=false",
+        "logging.level.org.hibernate.SQL=INFO",
+        "logging.level.org.springframework.security=INFO"
+})
+class FileStorageServiceTest {
+    
+    @TempDir
+    static Path uploadDirectory;
+    
+    @DynamicPropertySource
+    static void storage(DynamicPropertyRegistry registry) {
+        registry.add("file.upload-dir", () -> uploadDirectory.resolve("hot").toString());
+        registry.add("storage.lifecycle.cold-directory", () -> uploadDirectory.resolve("cold").toString());
+    }
+    
+    @Autowired
+    private FileStorageService fileStorageService;
+    
+    @Autowired
+    private UserService userService;
+    
+    @Autowired
+    private StoredObjectRepository storedObjectRepository;
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    private Long userId;
+    
+    @BeforeEach
+    void setUp() {
+        String username = "user-" + UUID.randomUUID();
+        userId = userService.registerUser(username, username + "@example.com", "password").getId();
+    }
+    
+    @Test
+    void identicalUploadsShareOneStoredObject() throws IOException {
+        byte[] content = uniqueContent();
+        
+        FileMetadata first = fileStorageService.storeFile(file("a.txt", content), userId);
+        FileMetadata second = fileStorageService.storeFile(file("b.txt", content), userId);
+        
+        assertThat(second.getFileName()).isEqualTo(first.getFileName());
+        assertThat(second.getContentHash()).isEqualTo(first.getContentHash());
+        assertThat(referenceCount(first)).isEqualTo(2);
+        assertThat(storageBackend.exists(first.getFileName())).isTrue();
+    }
+    
+    @Test
+    void identicalFilesInOneBatchShareOneStoredObject() {
+        byte[] content = uniqueContent();
+        
+        List<UploadResult> results = fileStorageService.storeFilesAsync(
+                List.of(file("a.txt", content), file("b.txt", content)), userId).join();
+        
+        assertThat(results).allSatisfy(result -> assertThat(result.error()).isNull());
+        FileMetadata first = fileStorageService.getFileMetadata(results.get(0).fileId(), userId);
+        FileMetadata second = fileStorageService.getFileMetadata(results.get(1).fileId(), userId);
+        assertThat(second.getFileName()).isEqualTo(first.getFileName());
+        assertThat(referenceCount(first)).isEqualTo(2);
+    }
+    
+    @Test
+    void deletingAFileReleasesItsReferenceAndTheLastOneRemovesTheObject() throws IOException {
+        byte[] content = uniqueContent();
+        FileMetadata first = fileStorageService.storeFile(file("a.txt", content), userId);
+        FileMetadata second = fileStorageService.storeFile(file("b.txt", content), userId);
+        
+        fileStorageService.deleteFile(first.getId(), userId);
+        
+        assertThat(referenceCount(second)).isEqualTo(1);
+        assertThat(storageBackend.exists(second.getFileName())).isTrue();
+        
+        fileStorageService.deleteFile(second.getId(), userId);
+        
+        assertThat(storedObjectRepository.findByContentHash(second.getContentHash())).isEmpty();
+        assertThat(storageBackend.exists(second.getFileName())).isFalse();
+    }
+    
+    @Test
+    void bulkDeleteReleasesEveryReference() throws IOException {
+        byte[] content = uniqueContent();
+        FileMetadata first = fileStorageService.storeFile(file("a.txt", content), userId);
+        FileMetadata second = fileStorageService.storeFile(file("b.txt", content), userId);
+        FileMetadata other = fileStorageService.storeFile(file("c.txt", uniqueContent()), userId);
+        
+        BulkDeleteResult result = fileStorageService.deleteFiles(userId, List.of(first.getId(), second.getId()), null);
+        
+        assertThat(result.deleted()).isEqualTo(2);
+        assertThat(storedObjectRepository.findByContentHash(first.getContentHash())).isEmpty();
+        assertThat(storageBackend.exists(first.getFileName())).isFalse();
+        assertThat(referenceCount(other)).isEqualTo(1);
+    }
+    
+    private long referenceCount(FileMetadata fileMetadata) {
+        return storedObjectRepository.findByContentHash(fileMetadata.getContentHash())
+                .map(StoredObject::getReferenceCount)
+                .orElse(0L);
+    }
+    
+    private static MockMultipartFile file(String name, byte[] content) {
+        return new MockMultipartFile("file", name, "text/plain", content);
+    }
+    
+    private static byte[] uniqueContent() {
+        return ("content " + UUID.randomUUID()).getBytes();
+    }
+}
@@ -0,0 +1,66 @@
+package com.filestorage.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RateBucketTest {
+    
+    // 10 units a second: one unit is 100ms of refill, far longer than the test takes to run
+    private final RateBucket bucket = new RateBucket(10, 5);
+    
+    @Test
+    void startsFullAndAdmitsUpToItsCapacity() {
+        assertThat(bucket.isFull()).isTrue();
+        for (int i = 0; i < 5; i++) {
+            assertThat(bucket.tryAcquire(1)).isZero();
+        }
+        assertThat(bucket.isFull()).isFalse();
+    }
+    
+    @Test
+    void reportsTheWaitUntilEnoughTokensRefill() {
+        assertThat(bucket.tryAcquire(5)).isZero();
+        
+        long wait = bucket.tryAcquire(2);
+        assertThat(wait).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(150))
+                .isLessThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(200));
+    }
+    
+    @Test
+    void rejectedRequestsTakeNoTokens() {
+        assertThat(bucket.tryAcquire(4)).isZero();
+        assertThat(bucket.tryAcquire(2)).isPositive();
+        assertThat(bucket.tryAcquire(1)).isZero();
+    }
+    
+    @Test
+    void admitsMoreThanTheCapacityOnlyWhenFullAndThenOwesTheDifference() {
+        assertThat(bucket.tryAcquire(1)).isZero();
+        assertThat(bucket.tryAcquire(20)).isPositive();
+        
+        RateBucket full = new RateBucket(10, 5);
+        assertThat(full.tryAcquire(20)).isZero();
+        // 20 units took 2s of refill; one more needs 2.1s minus the 0.5s a full bucket holds
+        assertThat(full.tryAcquire(1)).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(1500));
+    }
+    
+    @Test
+    void chargeGoesIntoDebt() {
+        bucket.charge(10);
+        
+        assertThat(bucket.isFull()).isFalse();
+        assertThat(bucket.tryAcquire(1)).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(500));
+    }
+    
+    @Test
+    void refundGivesTokensBack() {
+        assertThat(bucket.tryAcquire(5)).isZero();
+        bucket.refund(5);
+        
+        assertThat(bucket.isFull()).isTrue();
+        assertThat(bucket.tryAcquire(5)).isZero();
+    }
+}
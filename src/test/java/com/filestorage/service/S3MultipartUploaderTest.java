@@ -0,0 +1,190 @@
+package com.filestorage.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class S3MultipartUploaderTest {
+    
+    private static final int PART_SIZE = S3MultipartUploader.MIN_PART_SIZE;
+    
+    private final S3Client s3Client = mock(S3Client.class);
+    private final S3MultipartUploader uploader = new S3MultipartUploader(s3Client, "bucket", PART_SIZE, 2, 4, 2,
+            Duration.ofSeconds(5), new S3RequestLimiter(8, Duration.ofSeconds(5)));
+    
+    // Part number to the bytes S3 was sent for it
+    private final Map<Integer, byte[]> receivedParts = new ConcurrentHashMap<>();
+    
+    @AfterEach
+    void tearDown() {
+        uploader.shutdown();
+    }
+    
+    @Test
+    void sendsAStreamThatFitsInOnePartAsASinglePut() throws IOException {
+        byte[] content = content(PART_SIZE - 1);
+        ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+        byte[][] sent = new byte[1][];
+        // The part buffer is reused once the request returns, so the body is read during the call
+        when(s3Client.putObject(request.capture(), any(RequestBody.class))).thenAnswer(invocation -> {
+            sent[0] = read(invocation.getArgument(1));
+            return PutObjectResponse.builder().build();
+        });
+        
+        uploader.upload("key", "text/plain", new ByteArrayInputStream(content));
+        
+        assertThat(request.getValue().key()).isEqualTo("key");
+        assertThat(request.getValue().contentLength()).isEqualTo(content.length);
+        assertThat(request.getValue().contentType()).isEqualTo("text/plain");
+        assertThat(sent[0]).isEqualTo(content);
+        verify(s3Client, never()).createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    }
+    
+    @Test
+    void sendsLongerStreamsAsMultipartUploads() throws IOException {
+        byte[] content = content(2 * PART_SIZE + 1000);
+        mockMultipart();
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete =
+                ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        when(s3Client.completeMultipartUpload(complete.capture()))
+                .thenReturn(CompleteMultipartUploadResponse.builder().build());
+        
+        uploader.upload("key", "application/octet-stream", new ByteArrayInputStream(content));
+        
+        assertThat(complete.getValue().uploadId()).isEqualTo("upload-1");
+        List<CompletedPart> parts = complete.getValue().multipartUpload().parts();
+        assertThat(parts).extracting(CompletedPart::partNumber).containsExactly(1, 2, 3);
+        assertThat(parts).extracting(CompletedPart::eTag).containsExactly("etag-1", "etag-2", "etag-3");
+        assertThat(reassembled(3)).isEqualTo(content);
+        verify(s3Client, never()).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    }
+    
+    @Test
+    void aStreamOfExactlyOnePartEndsWithoutAnEmptyPart() throws IOException {
+        byte[] content = content(PART_SIZE);
+        mockMultipart();
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete =
+                ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        when(s3Client.completeMultipartUpload(complete.capture()))
+                .thenReturn(CompleteMultipartUploadResponse.builder().build());
+        
+        uploader.upload("key", null, new ByteArrayInputStream(content));
+        
+        assertThat(complete.getValue().multipartUpload().parts()).hasSize(1);
+        assertThat(reassembled(1)).isEqualTo(content);
+    }
+    
+    @Test
+    void retriesAFailedPart() throws IOException {
+        byte[] content = content(PART_SIZE + 10);
+        when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload-1").build());
+        when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenThrow(S3Exception.builder().statusCode(500).message("try again").build())
+                .thenAnswer(invocation -> recordPart(invocation.getArgument(0), invocation.getArgument(1)));
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+                .thenReturn(CompleteMultipartUploadResponse.builder().build());
+        
+        uploader.upload("key", null, new ByteArrayInputStream(content));
+        
+        verify(s3Client, times(3)).uploadPart(any(UploadPartRequest.class), any(RequestBody.class));
+        assertThat(reassembled(2)).isEqualTo(content);
+    }
+    
+    @Test
+    void abortsTheUploadWhenAPartKeepsFailing() {
+        when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload-1").build());
+        when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenThrow(S3Exception.builder().statusCode(500).message("down").build());
+        
+        assertThatThrownBy(() -> uploader.upload("key", null, new ByteArrayInputStream(content(2 * PART_SIZE))))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("key");
+        
+        ArgumentCaptor<AbortMultipartUploadRequest> abort = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        verify(s3Client).abortMultipartUpload(abort.capture());
+        assertThat(abort.getValue().uploadId()).isEqualTo("upload-1");
+        verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+    
+    @Test
+    void abortsTheUploadWhenTheClientStreamFails() {
+        mockMultipart();
+        InputStream failing = new InputStream() {
+            private int remaining = PART_SIZE + 10;
+            
+            @Override
+            public int read() throws IOException {
+                if (remaining == 0) {
+                    throw new IOException("client went away");
+                }
+                remaining--;
+                return 1;
+            }
+        };
+        
+        assertThatThrownBy(() -> uploader.upload("key", null, failing))
+                .isInstanceOf(IOException.class)
+                .hasMessage("client went away");
+        
+        verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+    
+    private void mockMultipart() {
+        when(s3Client.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+                .thenReturn(CreateMultipartUploadResponse.builder().uploadId("upload-1").build());
+        when(s3Client.uploadPart(any(UploadPartRequest.class), any(RequestBody.class)))
+                .thenAnswer(invocation -> recordPart(invocation.getArgument(0), invocation.getArgument(1)));
+    }
+    
+    private UploadPartResponse recordPart(UploadPartRequest request, RequestBody body) {
+        byte[] bytes = read(body);
+        assertThat(request.contentLength()).isEqualTo(bytes.length);
+        receivedParts.put(request.partNumber(), bytes);
+        return UploadPartResponse.builder().eTag("etag-" + request.partNumber()).build();
+    }
+    
+    private byte[] reassembled(int partCount) {
+        assertThat(receivedParts).hasSize(partCount);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int part = 1; part <= partCount; part++) {
+            out.writeBytes(receivedParts.get(part));
+        }
+        return out.toByteArray();
+    }
+    
+    private static byte[] read(RequestBody body) {
+        try (InputStream inputStream = body.contentStreamProvider().newStream()) {
+            return inputStream.readAllBytes();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+    
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,149 @@
+package com.filestorage.service;
+
+import com.filestorage.model.RevokedToken;
+import com.filestorage.repository.RevokedTokenRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TokenServiceTest {
+    
+    private static final String KEY = Base64.getEncoder().encodeToString(new byte[32]);
+    
+    private final RevokedTokenRepository revokedTokenRepository = mock(RevokedTokenRepository.class);
+    private final FileStorageUserDetails alice = new FileStorageUserDetails(7L, "alice", "", true, List.of());
+    
+    private TokenService tokenService;
+    
+    @BeforeEach
+    void setUp() {
+        tokenService = tokenService(new MockEnvironment()
+                .withProperty("security.token.keys.k1", KEY)
+                .withProperty("security.token.keys.k2", Base64.getEncoder().encodeToString(new byte[48])),
+                "k1", Duration.ofHours(1));
+    }
+    
+    @Test
+    void verifiesTheTokensItIssues() {
+        IssuedToken issued = tokenService.issue(alice);
+        
+        assertThat(issued.token()).startsWith("k1.");
+        assertThat(tokenService.verify(issued.token())).hasValueSatisfying(user -> {
+            assertThat(user.getUserId()).isEqualTo(7L);
+            assertThat(user.getUsername()).isEqualTo("alice");
+        });
+    }
+    
+    @Test
+    void rejectsTamperedTokens() {
+        String token = tokenService.issue(alice).token();
+        String[] parts = token.split("\\.");
+        byte[] payload = Base64.getUrlDecoder().decode(parts[1]);
+        // The user id is the first field of the payload
+        payload[7] = 8;
+        String forged = parts[0] + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(payload) + "." + parts[2];
+        
+        assertThat(tokenService.verify(forged)).isEmpty();
+        assertThat(tokenService.verify(parts[0] + "." + parts[1] + ".AAAA")).isEmpty();
+        assertThat(tokenService.verify("k2." + parts[1] + "." + parts[2])).isEmpty();
+        assertThat(tokenService.verify("unknown." + parts[1] + "." + parts[2])).isEmpty();
+        assertThat(tokenService.verify("garbage")).isEmpty();
+        assertThat(tokenService.verify(null)).isEmpty();
+    }
+    
+    @Test
+    void rejectsTokensSignedWithAnotherKey() {
+        TokenService otherNode = tokenService(new MockEnvironment(), null, Duration.ofHours(1));
+        
+        assertThat(tokenService.verify(otherNode.issue(alice).token())).isEmpty();
+    }
+    
+    @Test
+    void keysThatOnlyVerifyStillAcceptTheirTokens() {
+        TokenService rotated = tokenService(new MockEnvironment()
+                .withProperty("security.token.keys.k1", KEY)
+                .withProperty("security.token.keys.k2", Base64.getEncoder().encodeToString(new byte[48])),
+                "k2", Duration.ofHours(1));
+        
+        assertThat(rotated.verify(tokenService.issue(alice).token())).isPresent();
+    }
+    
+    @Test
+    void rejectsExpiredTokens() {
+        TokenService shortLived = tokenService(new MockEnvironment().withProperty("security.token.keys.k1", KEY),
+                "k1", Duration.ZERO);
+        
+        String token = shortLived.issue(alice).token();
+        
+        assertThat(shortLived.verify(token)).isEmpty();
+        assertThat(tokenService.verify(token)).isEmpty();
+    }
+    
+    @Test
+    void revokedTokensStopWorking() {
+        String revoked = tokenService.issue(alice).token();
+        String other = tokenService.issue(alice).token();
+        
+        tokenService.revoke(revoked);
+        
+        assertThat(tokenService.verify(revoked)).isEmpty();
+        assertThat(tokenService.verify(other)).isPresent();
+        verify(revokedTokenRepository).save(argThat(row -> row.getTokenId() != null && row.getUserId() == 7L));
+    }
+    
+    @Test
+    void revokingAUserRevokesTheTokensIssuedBefore() throws InterruptedException {
+        String before = tokenService.issue(alice).token();
+        String otherUser = tokenService.issue(new FileStorageUserDetails(8L, "bob", "", true, List.of())).token();
+        
+        tokenService.revokeUser(7L);
+        Thread.sleep(5);
+        
+        assertThat(tokenService.verify(before)).isEmpty();
+        assertThat(tokenService.verify(otherUser)).isPresent();
+        assertThat(tokenService.verify(tokenService.issue(alice).token())).isPresent();
+    }
+    
+    @Test
+    void picksUpRevocationsMadeOnOtherNodes() {
+        String token = tokenService.issue(alice).token();
+        when(revokedTokenRepository.findByExpiresAtAfter(any())).thenReturn(List.of(
+                new RevokedToken(1L, null, 7L, System.currentTimeMillis(), LocalDateTime.now().plusHours(1))));
+        
+        tokenService.refreshRevocations();
+        
+        assertThat(tokenService.verify(token)).isEmpty();
+    }
+    
+    @Test
+    void refusesAnActiveKeyThatIsNotConfigured() {
+        assertThatThrownBy(() -> tokenService(new MockEnvironment().withProperty("security.token.keys.k1", KEY),
+                "missing", Duration.ofHours(1)))
+                .isInstanceOf(IllegalStateException.class);
+    }
+    
+    private TokenService tokenService(MockEnvironment environment, String activeKey, Duration ttl) {
+        TokenService service = new TokenService();
+        ReflectionTestUtils.setField(service, "revokedTokenRepository", revokedTokenRepository);
+        ReflectionTestUtils.setField(service, "environment", environment);
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "ttl", ttl);
+        ReflectionTestUtils.setField(service, "activeKeyId", activeKey);
+        service.init();
+        return service;
+    }
+}
@@ -0,0 +1,127 @@
+package com.filestorage.service;
+
+import com.filestorage.service.TransferLimiter.Direction;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TransferLimiterTest {
+    
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    
+    // 1000 bytes in flight; 3 requests and 1000 bytes per user, refilling too slowly to matter during a test
+    private final TransferLimiter limiter = new TransferLimiter(true, DataSize.ofBytes(1000), DataSize.ofBytes(100),
+            Duration.ofSeconds(2), 0.01, 3, DataSize.ofBytes(1), DataSize.ofBytes(1000), meterRegistry);
+    
+    @Test
+    void uploadsReserveTheirBytesUntilReleased() {
+        TransferLimiter.Permit permit = limiter.admit(1L, Direction.UPLOAD, 600);
+        assertThat(inFlightBytes()).isEqualTo(600);
+        
+        assertThatThrownBy(() -> limiter.admit(2L, Direction.UPLOAD, 600))
+                .isInstanceOf(TooManyTransfersException.class)
+                .hasMessageContaining("busy")
+                .extracting(ex -> ((TooManyTransfersException) ex).getRetryAfter())
+                .isEqualTo(Duration.ofSeconds(2));
+        
+        permit.release(-1);
+        permit.release(-1);
+        assertThat(inFlightBytes()).isZero();
+        limiter.admit(2L, Direction.UPLOAD, 600).release(-1);
+    }
+    
+    @Test
+    void uploadsOfUnknownLengthReserveTheConfiguredSize() {
+        limiter.admit(1L, Direction.UPLOAD, -1);
+        
+        assertThat(inFlightBytes()).isEqualTo(100);
+    }
+    
+    @Test
+    void anOversizedUploadIsAdmittedWhenNothingElseIsInFlight() {
+        TransferLimiter.Permit permit = limiter.admit(1L, Direction.UPLOAD, 5000);
+        
+        assertThat(inFlightBytes()).isEqualTo(5000);
+        assertThatThrownBy(() -> limiter.admit(2L, Direction.UPLOAD, 1))
+                .isInstanceOf(TooManyTransfersException.class);
+        permit.release(-1);
+    }
+    
+    @Test
+    void downloadsAreTurnedAwayWhileTheInFlightCapIsReached() {
+        limiter.admit(1L, Direction.UPLOAD, 1000);
+        
+        assertThatThrownBy(() -> limiter.admit(2L, Direction.DOWNLOAD, -1))
+                .isInstanceOf(TooManyTransfersException.class)
+                .hasMessageContaining("busy");
+    }
+    
+    @Test
+    void requestsBeyondTheBurstAreRejected() {
+        for (int i = 0; i < 3; i++) {
+            limiter.admit(1L, Direction.DOWNLOAD, -1).release(0);
+        }
+        
+        assertThatThrownBy(() -> limiter.admit(1L, Direction.DOWNLOAD, -1))
+                .isInstanceOf(TooManyTransfersException.class)
+                .hasMessage("Too many transfer requests");
+        // Other users have their own buckets
+        limiter.admit(2L, Direction.DOWNLOAD, -1).release(0);
+    }
+    
+    @Test
+    void aBusyNodeCostsTheUserNoRequestTokens() {
+        TransferLimiter.Permit other = limiter.admit(1L, Direction.UPLOAD, 1000);
+        for (int i = 0; i < 5; i++) {
+            assertThatThrownBy(() -> limiter.admit(2L, Direction.UPLOAD, 10))
+                    .hasMessageContaining("busy");
+        }
+        other.release(-1);
+        
+        for (int i = 0; i < 3; i++) {
+            limiter.admit(2L, Direction.DOWNLOAD, -1).release(0);
+        }
+    }
+    
+    @Test
+    void aBandwidthRejectionReturnsTheReservationAndTheRequestToken() {
+        limiter.admit(1L, Direction.UPLOAD, 1000).release(-1);
+        
+        assertThatThrownBy(() -> limiter.admit(1L, Direction.UPLOAD, 500))
+                .isInstanceOf(TooManyTransfersException.class)
+                .hasMessage("Transfer bandwidth limit reached");
+        assertThat(inFlightBytes()).isZero();
+        
+        // One of the three requests was used; the rejected one was given back
+        limiter.admit(1L, Direction.DOWNLOAD, -1);
+        limiter.admit(1L, Direction.DOWNLOAD, -1);
+        assertThatThrownBy(() -> limiter.admit(1L, Direction.DOWNLOAD, -1))
+                .hasMessage("Too many transfer requests");
+    }
+    
+    @Test
+    void downloadsAreChargedForTheirBytesWhenReleased() {
+        limiter.admit(1L, Direction.DOWNLOAD, -1).release(1000);
+        
+        assertThatThrownBy(() -> limiter.admit(1L, Direction.UPLOAD, 10))
+                .hasMessage("Transfer bandwidth limit reached");
+    }
+    
+    @Test
+    void rejectionsAreCountedByDirectionAndReason() {
+        limiter.admit(1L, Direction.UPLOAD, 1000);
+        assertThatThrownBy(() -> limiter.admit(2L, Direction.UPLOAD, 10));
+        
+        assertThat(meterRegistry.get("admission.rejected").tag("direction", "upload").tag("reason", "in-flight")
+                .counter().count()).isEqualTo(1);
+    }
+    
+    private double inFlightBytes() {
+        return meterRegistry.get("admission.inflight.bytes").gauge().value();
+    }
+}